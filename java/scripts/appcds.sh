@@ -0,0 +1,17 @@
+#!/bin/bash
+# Builds an AppCDS archive (JDK 13 or later) of the classes PizzaStore loads
+# at startup, so later runs map them instead of loading and verifying them.
+# Rebuild it after every compile.sh; a stale archive is ignored by the JVM.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+ARCHIVE=$DIR/../classes/pizzastore.jsa
+
+# training run: starts in fast-start mode and exits from the main menu,
+# which waits for the background start so its classes are archived too
+echo 9 | java -XX:ArchiveClassesAtExit=$ARCHIVE -Dpizzastore.fastStart=true \
+   -cp $CP PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER > /dev/null
+
+#run the java program with the archive
+#Use your database name, port number and login
+java -XX:SharedArchiveFile=$ARCHIVE -Dpizzastore.fastStart=true \
+   -cp $CP PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
@@ -0,0 +1,170 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Admission control in front of order placement.  An order is let through
+ * to the database only if
+ *   - its store's token bucket has a token: every store may place storeRate
+ *     orders per second on average, with bursts of up to storeBurst, so one
+ *     busy store cannot take the capacity of the others, and
+ *   - fewer than limit orders are being written right now.  The limit
+ *     adapts to the database (AIMD): every write faster than
+ *     latencyTargetMillis raises it by 1/limit, and a slower or failed write
+ *     cuts it by a tenth, at most once per latencyTargetMillis.
+ * An order over the concurrency limit waits up to queueMillis for a slot.
+ * A rejected order gets a hint of how long to wait before retrying.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.admission.storeRate            orders per second per store (default 5)
+ *   pizzastore.admission.storeBurst           tokens a store can save up (default 20)
+ *   pizzastore.admission.initialLimit         starting concurrent writes (default 20)
+ *   pizzastore.admission.minLimit             lowest limit (default 2)
+ *   pizzastore.admission.maxLimit             highest limit (default 200)
+ *   pizzastore.admission.latencyTargetMillis  write latency still healthy (default 250)
+ *   pizzastore.admission.queueMillis          longest wait for a slot (default 100)
+ */
+public class AdmissionController {
+
+   /** The outcome of admit(): a permit to write, or a rejection. */
+   public final class Ticket {
+      private final boolean admitted;
+      private final long retryAfterMillis;
+      private final long startedAt;
+      private boolean done = false;
+
+      private Ticket(boolean admitted, long retryAfterMillis) {
+         this.admitted = admitted;
+         this.retryAfterMillis = retryAfterMillis;
+         this.startedAt = System.nanoTime();
+      }
+
+      public boolean admitted() {
+         return admitted;
+      }
+
+      /** @return how long to wait before trying again, if rejected */
+      public long retryAfterMillis() {
+         return retryAfterMillis;
+      }
+
+      /**
+       * Ends an admitted write, which frees its slot and feeds its latency
+       * to the limit.  Calls after the first are ignored.
+       *
+       * @param succeeded false if the write failed
+       */
+      public void done(boolean succeeded) {
+         if (!admitted || done) return;
+         done = true;
+         release((System.nanoTime() - startedAt) / 1000000, succeeded);
+      }
+   }//end Ticket
+
+   /* tokens refill continuously at rate per millisecond, up to burst */
+   private static final class Bucket {
+      double tokens;
+      long refilledAt;
+
+      Bucket(double burst) {
+         this.tokens = burst;
+         this.refilledAt = System.currentTimeMillis();
+      }
+   }//end Bucket
+
+   private final double ratePerMilli;
+   private final double burst;
+   private final double minLimit;
+   private final double maxLimit;
+   private final long latencyTargetMillis;
+   private final long queueMillis;
+   private final ConcurrentHashMap<Integer, Bucket> buckets = new ConcurrentHashMap<Integer, Bucket>();
+
+   // guarded by this
+   private double limit;
+   private int inFlight = 0;
+   private long lastDecreaseAt = 0;
+   private double averageLatencyMillis = 0;
+
+   public AdmissionController() {
+      this.ratePerMilli = Double.parseDouble(System.getProperty("pizzastore.admission.storeRate", "5")) / 1000;
+      this.burst = Double.parseDouble(System.getProperty("pizzastore.admission.storeBurst", "20"));
+      this.limit = Integer.getInteger("pizzastore.admission.initialLimit", 20);
+      this.minLimit = Integer.getInteger("pizzastore.admission.minLimit", 2);
+      this.maxLimit = Integer.getInteger("pizzastore.admission.maxLimit", 200);
+      this.latencyTargetMillis = Long.getLong("pizzastore.admission.latencyTargetMillis", 250L);
+      this.queueMillis = Long.getLong("pizzastore.admission.queueMillis", 100L);
+   }//end AdmissionController
+
+   /**
+    * Asks to write an order for the store.  An admitted ticket must be
+    * ended with done().
+    */
+   public Ticket admit(int storeID) {
+      long tokenWait = takeToken(storeID);
+      if (tokenWait > 0) return new Ticket(false, tokenWait);
+
+      long deadline = System.currentTimeMillis() + queueMillis;
+      synchronized (this) {
+         while (inFlight >= (int) limit) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+               giveBackToken(storeID);
+               return new Ticket(false, Math.max(1, Math.round(averageLatencyMillis)));
+            }//end if
+            try {
+               wait(left);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               giveBackToken(storeID);
+               return new Ticket(false, queueMillis);
+            }//end try
+         }//end while
+         inFlight++;
+      }
+      return new Ticket(true, 0);
+   }//end admit
+
+   /** @return the current concurrency limit and writes in flight */
+   public synchronized String status() {
+      return String.format("limit %d, in flight %d, avg write %.0f ms", (int) limit, inFlight, averageLatencyMillis);
+   }//end status
+
+   private synchronized void release(long latencyMillis, boolean succeeded) {
+      inFlight--;
+      averageLatencyMillis = averageLatencyMillis == 0 ? latencyMillis
+                                                       : 0.9 * averageLatencyMillis + 0.1 * latencyMillis;
+      long now = System.currentTimeMillis();
+      if (!succeeded || latencyMillis > latencyTargetMillis) {
+         if (now - lastDecreaseAt >= latencyTargetMillis) {
+            limit = Math.max(minLimit, limit * 0.9);
+            lastDecreaseAt = now;
+         }//end if
+      } else {
+         limit = Math.min(maxLimit, limit + 1 / limit);
+      }//end if
+      notifyAll();
+   }//end release
+
+   /* @return 0 if a token was taken, else the wait until the next one */
+   private long takeToken(int storeID) {
+      Bucket bucket = buckets.computeIfAbsent(storeID, k -> new Bucket(burst));
+      synchronized (bucket) {
+         long now = System.currentTimeMillis();
+         bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) * ratePerMilli);
+         bucket.refilledAt = now;
+         if (bucket.tokens >= 1) {
+            bucket.tokens -= 1;
+            return 0;
+         }//end if
+         return Math.max(1, (long) Math.ceil((1 - bucket.tokens) / ratePerMilli));
+      }
+   }//end takeToken
+
+   /* an order turned away by the global limit does not use up its store's rate */
+   private void giveBackToken(int storeID) {
+      Bucket bucket = buckets.get(storeID);
+      synchronized (bucket) {
+         bucket.tokens = Math.min(burst, bucket.tokens + 1);
+      }
+   }//end giveBackToken
+
+}//end AdmissionController
@@ -0,0 +1,288 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Shopping carts kept in memory by session, so an order can be built over
+ * several steps and survives a failed or interrupted checkout.  Cart edits
+ * are checked against the cached menu and never touch the database; only
+ * checkout() writes, as one order through the given Checkout.
+ *
+ * A cart expires ttlSeconds after its last use.  When there are more than
+ * maxCarts, the least recently used cart is dropped.
+ *
+ * Every cart carries an idempotency key that changes whenever the cart
+ * does, so checking out the same cart twice cannot place two orders.
+ *
+ * The menu is taken from the fast-start hot data when there is one, and is
+ * otherwise read on a pooled connection at most every menuSeconds.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.cart.ttlSeconds   idle time before a cart expires (default 1800)
+ *   pizzastore.cart.maxCarts     carts kept at most (default 10000)
+ *   pizzastore.cart.menuSeconds  age of the menu before it is read again (default 60)
+ */
+public class CartStore {
+
+   /** Writes a checked-out cart as an order and returns its orderID. */
+   public interface Checkout {
+      int submit(OrderRequest order) throws Exception;
+   }
+
+   /** A copy of a cart, for display. */
+   public static final class View {
+      public final String login;
+      public final int storeID;
+      public final Map<String, Integer> lines;
+      public final long totalCents;
+
+      View(String login, int storeID, Map<String, Integer> lines, long totalCents) {
+         this.login = login;
+         this.storeID = storeID;
+         this.lines = Collections.unmodifiableMap(lines);
+         this.totalCents = totalCents;
+      }
+   }//end View
+
+   /* guarded by the store */
+   private static final class Cart {
+      final String login;
+      final int storeID;
+      final LinkedHashMap<String, Integer> lines = new LinkedHashMap<String, Integer>();
+      long touchedAt;
+      boolean checkingOut = false;
+      String idempotencyKey = UUID.randomUUID().toString();
+
+      Cart(String login, int storeID) {
+         this.login = login;
+         this.storeID = storeID;
+      }
+   }//end Cart
+
+   private final PizzaStore esql;
+   private final long ttlMillis;
+   private final long menuMillis;
+   private final LinkedHashMap<String, Cart> carts;
+   private volatile Map<String, MenuItem> menu = null;
+   private volatile HotDataSnapshot menuSource = null;
+   private volatile long menuReadAt = 0;
+
+   public CartStore(PizzaStore esql) {
+      this.esql = esql;
+      this.ttlMillis = Long.getLong("pizzastore.cart.ttlSeconds", 1800L) * 1000;
+      this.menuMillis = Long.getLong("pizzastore.cart.menuSeconds", 60L) * 1000;
+      final int maxCarts = Integer.getInteger("pizzastore.cart.maxCarts", 10000);
+      this.carts = new LinkedHashMap<String, Cart>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Cart> eldest) {
+            return size() > maxCarts;
+         }
+      };
+   }//end CartStore
+
+   /**
+    * Starts an empty cart for the session, replacing any cart it had.
+    */
+   public synchronized void open(String sessionID, String login, int storeID) {
+      expire();
+      Cart cart = new Cart(login, storeID);
+      cart.touchedAt = System.currentTimeMillis();
+      carts.put(sessionID, cart);
+   }//end open
+
+   /**
+    * @return a copy of the session's cart, or null if it has none or it expired
+    * @throws java.sql.SQLException when the menu cannot be read
+    */
+   public View get(String sessionID) throws SQLException {
+      Map<String, MenuItem> items = menu();
+      synchronized (this) {
+         Cart cart = cart(sessionID);
+         if (cart == null) return null;
+         Map<String, Integer> lines = new LinkedHashMap<String, Integer>(cart.lines);
+         long total = 0;
+         for (Map.Entry<String, Integer> line : lines.entrySet()) {
+            MenuItem item = items.get(line.getKey());
+            if (item != null) total += item.priceCents * line.getValue();
+         }//end for
+         return new View(cart.login, cart.storeID, lines, total);
+      }
+   }//end get
+
+   /**
+    * Adds quantity of an item to the session's cart.
+    *
+    * @return the item's new quantity in the cart
+    * @throws java.lang.IllegalArgumentException when there is no such item or quantity is not positive
+    * @throws java.lang.IllegalStateException when the session has no cart or it is being checked out
+    * @throws java.sql.SQLException when the menu cannot be read
+    */
+   public int add(String sessionID, String itemName, int quantity) throws SQLException {
+      if (quantity <= 0) throw new IllegalArgumentException("Quantity must be positive!");
+      MenuItem item = menuItem(itemName);
+      synchronized (this) {
+         return edited(sessionID).lines.merge(item.itemName, quantity, Integer::sum);
+      }
+   }//end add
+
+   /**
+    * Sets an item's quantity in the session's cart; 0 removes it.
+    *
+    * @throws java.lang.IllegalArgumentException when there is no such item or quantity is negative
+    * @throws java.lang.IllegalStateException when the session has no cart or it is being checked out
+    * @throws java.sql.SQLException when the menu cannot be read
+    */
+   public void update(String sessionID, String itemName, int quantity) throws SQLException {
+      if (quantity < 0) throw new IllegalArgumentException("Quantity must not be negative!");
+      if (quantity == 0) {
+         remove(sessionID, itemName);
+         return;
+      }//end if
+      MenuItem item = menuItem(itemName);
+      synchronized (this) {
+         edited(sessionID).lines.put(item.itemName, quantity);
+      }
+   }//end update
+
+   /**
+    * Takes an item out of the session's cart.
+    *
+    * @return whether the item was in the cart
+    * @throws java.lang.IllegalStateException when the session has no cart or it is being checked out
+    */
+   public synchronized boolean remove(String sessionID, String itemName) {
+      return edited(sessionID).lines.remove(itemName) != null;
+   }//end remove
+
+   /** Drops the session's cart, if it has one. */
+   public synchronized void discard(String sessionID) {
+      carts.remove(sessionID);
+   }//end discard
+
+   /**
+    * Prices the session's cart from the current menu and hands it to submit
+    * as one order.  The cart is dropped once submit returns; if it throws,
+    * the cart is kept as it was so the checkout can be retried with the
+    * same idempotency key.  The cart
+    * cannot be changed while it is being checked out.
+    *
+    * @return the orderID returned by submit
+    * @throws java.lang.IllegalStateException when the session has no cart, it is empty,
+    *         it is already being checked out, or an item left the menu
+    */
+   public int checkout(String sessionID, Checkout submit) throws Exception {
+      Map<String, MenuItem> items = menu();
+      Cart cart;
+      synchronized (this) {
+         cart = editable(sessionID);
+         if (cart.lines.isEmpty()) throw new IllegalStateException("No items in order!");
+         cart.checkingOut = true;
+      }
+      boolean placed = false;
+      try {
+         // lines cannot change while checkingOut is set
+         String[] itemNames = new String[cart.lines.size()];
+         int[] quantities = new int[itemNames.length];
+         long totalCents = 0;
+         int i = 0;
+         for (Map.Entry<String, Integer> line : cart.lines.entrySet()) {
+            MenuItem item = items.get(line.getKey());
+            if (item == null) throw new IllegalStateException(line.getKey() + " is no longer on the menu.");
+            itemNames[i] = line.getKey();
+            quantities[i++] = line.getValue();
+            totalCents += item.priceCents * line.getValue();
+         }//end for
+         int orderID = submit.submit(new OrderRequest(cart.login, cart.storeID, totalCents,
+                                                      System.currentTimeMillis(), itemNames, quantities,
+                                                      cart.idempotencyKey));
+         placed = true;
+         return orderID;
+      } finally {
+         synchronized (this) {
+            cart.checkingOut = false;
+            cart.touchedAt = System.currentTimeMillis();
+            if (placed && carts.get(sessionID) == cart) carts.remove(sessionID);
+         }
+      }
+   }//end checkout
+
+   public synchronized int size() {
+      expire();
+      return carts.size();
+   }//end size
+
+   /* the live cart of a session, or null; a lookup counts as use */
+   private Cart cart(String sessionID) {
+      Cart cart = carts.get(sessionID);
+      if (cart == null) return null;
+      long now = System.currentTimeMillis();
+      if (!cart.checkingOut && now - cart.touchedAt > ttlMillis) {
+         carts.remove(sessionID);
+         return null;
+      }//end if
+      cart.touchedAt = now;
+      return cart;
+   }//end cart
+
+   private Cart editable(String sessionID) {
+      Cart cart = cart(sessionID);
+      if (cart == null) throw new IllegalStateException("No cart for this session; it may have expired.");
+      if (cart.checkingOut) throw new IllegalStateException("The cart is being checked out.");
+      return cart;
+   }//end editable
+
+   /* a cart about to change is a new order */
+   private Cart edited(String sessionID) {
+      Cart cart = editable(sessionID);
+      cart.idempotencyKey = UUID.randomUUID().toString();
+      return cart;
+   }//end edited
+
+   /* least recently used first, so stop at the first live cart */
+   private void expire() {
+      long now = System.currentTimeMillis();
+      Iterator<Cart> it = carts.values().iterator();
+      while (it.hasNext()) {
+         Cart cart = it.next();
+         if (now - cart.touchedAt <= ttlMillis) break;
+         if (!cart.checkingOut) it.remove();
+      }//end while
+   }//end expire
+
+   private MenuItem menuItem(String itemName) throws SQLException {
+      MenuItem item = menu().get(itemName);
+      if (item == null) throw new IllegalArgumentException("Invalid item name!");
+      return item;
+   }//end menuItem
+
+   /* the hot data menu when there is one, else our own copy */
+   private Map<String, MenuItem> menu() throws SQLException {
+      HotDataSnapshot hot = esql.getHotData();
+      if (hot != null) {
+         if (hot != menuSource) {
+            menu = byName(hot.items);
+            menuSource = hot;
+         }//end if
+         return menu;
+      }//end if
+      if (menu == null || menuSource != null || System.currentTimeMillis() - menuReadAt > menuMillis) {
+         menu = byName(esql.getConnectionPool().query("SELECT itemName, ingredients, typeOfItem, price, description " +
+                                                      "FROM Items WHERE NOT retired", JdbcBackend.MENU_ITEM));
+         menuSource = null;
+         menuReadAt = System.currentTimeMillis();
+      }//end if
+      return menu;
+   }//end menu
+
+   private static Map<String, MenuItem> byName(List<MenuItem> items) {
+      Map<String, MenuItem> byName = new HashMap<String, MenuItem>(items.size() * 2);
+      for (MenuItem item : items) byName.put(item.itemName, item);
+      return byName;
+   }//end byName
+
+}//end CartStore
@@ -0,0 +1,177 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the database behind a PizzaStore so that a restart or failover
+ * costs a few seconds instead of the session.
+ *
+ * A daemon thread runs SELECT 1 every intervalSeconds on a connection of
+ * its own, so it never competes with the interactive one.  When the probe
+ * fails, the database is marked down, the PizzaStore is told its
+ * connections are stale (the interactive connection is reopened on its
+ * next use and idle pooled connections are dropped), and the probe is
+ * retried after backoffMillis, doubling up to maxBackoffMillis, until the
+ * database answers again.
+ *
+ * Outages, time spent down and reconnects of the interactive connection
+ * are counted for status().
+ *
+ * Settings are read from system properties:
+ *   pizzastore.health.intervalSeconds   time between checks while up (default 5)
+ *   pizzastore.health.backoffMillis     first retry delay while down (default 100)
+ *   pizzastore.health.maxBackoffMillis  longest retry delay (default 5000)
+ */
+public class ConnectionMonitor {
+
+   private final PizzaStore esql;
+   private final long intervalMillis;
+   private final long initialBackoffMillis;
+   private final long maxBackoffMillis;
+   private ScheduledExecutorService scheduler = null;
+   private Connection probe = null;
+   private long backoffMillis;
+
+   // guarded by this
+   private long downSince = 0;
+   private long downMillis = 0;
+   private int outages = 0;
+   private int reconnects = 0;
+   private int failedReconnects = 0;
+
+   public ConnectionMonitor(PizzaStore esql) {
+      this.esql = esql;
+      this.intervalMillis = Long.getLong("pizzastore.health.intervalSeconds", 5L) * 1000;
+      this.initialBackoffMillis = Long.getLong("pizzastore.health.backoffMillis", 100L);
+      this.maxBackoffMillis = Long.getLong("pizzastore.health.maxBackoffMillis", 5000L);
+      this.backoffMillis = initialBackoffMillis;
+   }//end ConnectionMonitor
+
+   /**
+    * Starts checking the database every intervalSeconds on a daemon thread.
+    */
+   public synchronized void start() {
+      if (scheduler != null) return;
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "connection-health");
+         t.setDaemon(true);
+         return t;
+      });
+      scheduler.schedule(this::check, intervalMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   public synchronized void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+         scheduler = null;
+         closeProbe();
+      }//end if
+   }//end stop
+
+   /**
+    * @return whether the last check found the database unreachable
+    */
+   public synchronized boolean isDown() {
+      return downSince != 0;
+   }//end isDown
+
+   /**
+    * Marks the database down after a connection failure seen outside the
+    * monitor.  The first failure of an outage makes the connections stale.
+    */
+   public void connectionFailed(SQLException cause) {
+      if (markDown(cause)) esql.connectionsLost();
+   }//end connectionFailed
+
+   /**
+    * Counts an attempt to reopen the interactive connection.
+    */
+   public synchronized void noteReconnect(boolean succeeded) {
+      if (succeeded) reconnects++;
+      else failedReconnects++;
+   }//end noteReconnect
+
+   /**
+    * @return outages, time down and reconnects so far
+    */
+   public synchronized String status() {
+      long down = downMillis + (downSince == 0 ? 0 : System.currentTimeMillis() - downSince);
+      return String.format("%s, %d outage(s), %d ms down, %d reconnect(s), %d failed",
+                           downSince == 0 ? "up" : "down", outages, down, reconnects, failedReconnects);
+   }//end status
+
+   /**
+    * @return whether some activity happened worth reporting at exit
+    */
+   public synchronized boolean hadOutages() {
+      return outages > 0 || reconnects > 0 || failedReconnects > 0;
+   }//end hadOutages
+
+   /**
+    * Tells a broken connection from an error in the statement itself:
+    * SQLState class 08 (connection exception), an administrator shutdown
+    * (57P01-57P03), or an I/O error reported by the driver without a state.
+    */
+   public static boolean isConnectionFailure(SQLException e) {
+      String state = e.getSQLState();
+      if (state != null && (state.startsWith("08") || state.startsWith("57P0"))) return true;
+      String message = e.getMessage();
+      return message != null && (message.contains("I/O error") || message.contains("onnection refused")
+                                 || message.contains("has been closed"));
+   }//end isConnectionFailure
+
+   private void check() {
+      long delay;
+      try {
+         if (probe == null) probe = esql.openConnection();
+         Statement stmt = probe.createStatement();
+         try {
+            stmt.executeQuery("SELECT 1").close();
+         } finally {
+            stmt.close();
+         }
+         markUp();
+         backoffMillis = initialBackoffMillis;
+         delay = intervalMillis;
+      } catch (SQLException e) {
+         closeProbe();
+         connectionFailed(e);
+         delay = backoffMillis;
+         backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+      }//end try
+      synchronized (this) {
+         if (scheduler != null) scheduler.schedule(this::check, delay, TimeUnit.MILLISECONDS);
+      }
+   }//end check
+
+   /* @return true for the first failure of an outage */
+   private synchronized boolean markDown(SQLException cause) {
+      if (downSince != 0) return false;
+      downSince = System.currentTimeMillis();
+      outages++;
+      System.err.println("Database connection lost: " + cause.getMessage());
+      return true;
+   }//end markDown
+
+   private synchronized void markUp() {
+      if (downSince == 0) return;
+      long down = System.currentTimeMillis() - downSince;
+      downMillis += down;
+      downSince = 0;
+      System.err.println("Database reachable again after " + down + " ms");
+   }//end markUp
+
+   private void closeProbe() {
+      if (probe == null) return;
+      try {
+         probe.close();
+      } catch (SQLException e) {
+         // the connection is already broken
+      }//end try
+      probe = null;
+   }//end closeProbe
+
+}//end ConnectionMonitor
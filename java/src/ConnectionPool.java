@@ -0,0 +1,182 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of extra connections to one database, shared by work that
+ * runs queries in parallel (see StoreReport).  Connections are opened on
+ * first use and kept until close().  A connection that breaks is dropped
+ * and replaced by a new one on a later borrow().
+ *
+ * Settings are read from system properties:
+ *   pizzastore.pool.size         connections per database (default 8)
+ *   pizzastore.pool.waitSeconds  longest wait for a free connection (default 30)
+ */
+public class ConnectionPool {
+
+   private final PizzaStore db;
+   private final int size;
+   private final long waitSeconds;
+   private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+   private final List<Connection> opened = new ArrayList<Connection>();
+   private boolean closed = false;
+
+   public ConnectionPool(PizzaStore db) {
+      this.db = db;
+      this.size = Integer.getInteger("pizzastore.pool.size", 8);
+      this.waitSeconds = Long.getLong("pizzastore.pool.waitSeconds", 30L);
+   }//end ConnectionPool
+
+   public int size() {
+      return size;
+   }//end size
+
+   /**
+    * Takes an idle connection, opening one if fewer than size are open, and
+    * otherwise waiting for one to be released.
+    *
+    * @throws java.sql.SQLException when no connection is free in time
+    */
+   public Connection borrow() throws SQLException {
+      Connection connection = idle.poll();
+      if (connection != null) return connection;
+      synchronized (this) {
+         if (closed) throw new SQLException("Connection pool is closed");
+         if (opened.size() < size) {
+            connection = db.openConnection();
+            opened.add(connection);
+            return connection;
+         }//end if
+      }
+      try {
+         connection = idle.poll(waitSeconds, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+      if (connection == null) throw new SQLException("No pooled connection free after " + waitSeconds + "s");
+      return connection;
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection.  A connection left in a transaction is
+    * rolled back first; one that fails is dropped and reopened later.
+    */
+   public void release(Connection connection) {
+      try {
+         if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+         }//end if
+         idle.add(connection);
+      } catch (SQLException e) {
+         discard(connection);
+      }//end try
+   }//end release
+
+   /**
+    * Drops a borrowed connection that is broken, freeing its place.
+    */
+   public void discard(Connection connection) {
+      synchronized (this) {
+         opened.remove(connection);
+      }
+      try {
+         connection.close();
+      } catch (SQLException ignored) {
+         // the connection is broken anyway
+      }//end try
+   }//end discard
+
+   /**
+    * Drops the idle connections, after the database was lost; they are
+    * reopened as needed.
+    */
+   public void evictIdle() {
+      Connection connection;
+      while ((connection = idle.poll()) != null) discard(connection);
+   }//end evictIdle
+
+   /**
+    * Runs a query on a pooled connection and maps every row.  If the
+    * connection turns out to be broken, the query is run once more on a
+    * new one.
+    *
+    * @throws java.sql.SQLException when the query fails
+    */
+   public <T> List<T> query(String sql, PizzaStore.RowMapper<T> mapper) throws SQLException {
+      try {
+         return queryOnce(sql, mapper);
+      } catch (SQLException e) {
+         if (!ConnectionMonitor.isConnectionFailure(e)) throw e;
+         return queryOnce(sql, mapper);
+      }//end try
+   }//end query
+
+   /**
+    * Runs an INSERT, UPDATE or DELETE on a pooled connection in autocommit
+    * mode.  It is not run again if the connection breaks, since it may have
+    * been applied.
+    *
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when the statement fails
+    */
+   public int update(String sql) throws SQLException {
+      Connection connection = borrow();
+      boolean broken = false;
+      try {
+         Statement stmt = connection.createStatement();
+         try {
+            return stmt.executeUpdate(sql);
+         } finally {
+            stmt.close();
+         }
+      } catch (SQLException e) {
+         broken = ConnectionMonitor.isConnectionFailure(e);
+         throw e;
+      } finally {
+         if (broken) discard(connection);
+         else release(connection);
+      }
+   }//end update
+
+   private <T> List<T> queryOnce(String sql, PizzaStore.RowMapper<T> mapper) throws SQLException {
+      Connection connection = borrow();
+      boolean broken = false;
+      try {
+         Statement stmt = connection.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(sql);
+            List<T> result = new ArrayList<T>();
+            while (rs.next()) result.add(mapper.mapRow(rs));
+            return result;
+         } finally {
+            stmt.close();
+         }
+      } catch (SQLException e) {
+         broken = ConnectionMonitor.isConnectionFailure(e);
+         throw e;
+      } finally {
+         if (broken) discard(connection);
+         else release(connection);
+      }
+   }//end queryOnce
+
+   public synchronized void close() {
+      closed = true;
+      for (Connection connection : opened) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end for
+      opened.clear();
+      idle.clear();
+   }//end close
+
+}//end ConnectionPool
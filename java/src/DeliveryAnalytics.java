@@ -0,0 +1,182 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from placing an order to its 'complete' transition, per store, as
+ * LatencySketches fed from OrderStatusHistory.
+ *
+ * Each run reads only the history rows after the checkpoint, the last
+ * historyID read on each order shard, and adds them to the sketches.  The
+ * checkpoints and sketches are saved to a snapshot file after every run, so
+ * history is never scanned twice.  Rows are read once they are settleSeconds
+ * old, which gives transactions that took a lower historyID time to commit.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.analytics.snapshot         snapshot file (default delivery_analytics.snapshot)
+ *   pizzastore.analytics.intervalSeconds  time between runs (default 60)
+ *   pizzastore.analytics.settleSeconds    age before a row is read (default 5)
+ *   pizzastore.analytics.batchSize        rows per query (default 5000)
+ */
+public class DeliveryAnalytics {
+
+   private static final int MAGIC = 0x444C5631;   // "DLV1"
+
+   private final List<PizzaStore> shards;
+   private final File snapshot;
+   private final long[] checkpoints;
+   private final Map<Integer, LatencySketch> byStore = new TreeMap<Integer, LatencySketch>();
+   private final long intervalSeconds;
+   private final int settleSeconds;
+   private final int batchSize;
+   private ScheduledExecutorService scheduler = null;
+
+   public DeliveryAnalytics(List<PizzaStore> shards) {
+      this.shards = shards;
+      this.snapshot = new File(System.getProperty("pizzastore.analytics.snapshot", "delivery_analytics.snapshot"));
+      this.checkpoints = new long[shards.size()];
+      this.intervalSeconds = Long.getLong("pizzastore.analytics.intervalSeconds", 60L);
+      this.settleSeconds = Integer.getInteger("pizzastore.analytics.settleSeconds", 5);
+      this.batchSize = Integer.getInteger("pizzastore.analytics.batchSize", 5000);
+      load();
+   }//end DeliveryAnalytics
+
+   /**
+    * Runs right away and then every intervalSeconds on a daemon thread.
+    */
+   public synchronized void start() {
+      if (scheduler != null) return;
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "delivery-analytics");
+         t.setDaemon(true);
+         return t;
+      });
+      scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            runOnce();
+         } catch (SQLException | IOException e) {
+            System.err.println("Delivery analytics failed: " + e.getMessage());
+         }//end try
+      }, 0, intervalSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   public synchronized void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+         scheduler = null;
+      }//end if
+   }//end stop
+
+   /**
+    * Adds the completions recorded since the checkpoints and saves the
+    * snapshot.
+    *
+    * @return the number of completions added
+    * @throws java.sql.SQLException when a shard cannot be read
+    * @throws java.io.IOException when the snapshot cannot be written
+    */
+   public synchronized int runOnce() throws SQLException, IOException {
+      int added = 0;
+      for (int shard = 0; shard < shards.size(); shard++) {
+         Connection connection = shards.get(shard).openConnection();
+         try {
+            Statement stmt = connection.createStatement();
+            int rows;
+            do {
+               ResultSet rs = stmt.executeQuery(String.format(
+                  "SELECT historyID, storeID, EXTRACT(EPOCH FROM (changedAt - orderTimestamp)) * 1000 " +
+                  "FROM OrderStatusHistory WHERE historyID > %d AND orderStatus = 'complete' " +
+                  "AND recordedAt < now() - interval '%d seconds' ORDER BY historyID LIMIT %d",
+                  checkpoints[shard], settleSeconds, batchSize));
+               rows = 0;
+               while (rs.next()) {
+                  checkpoints[shard] = rs.getLong(1);
+                  byStore.computeIfAbsent(rs.getInt(2), k -> new LatencySketch()).add(Math.round(rs.getDouble(3)));
+                  rows++;
+               }//end while
+               added += rows;
+            } while (rows == batchSize);
+            stmt.close();
+         } finally {
+            connection.close();
+         }
+      }//end for
+      save();
+      return added;
+   }//end runOnce
+
+   /**
+    * Prints p50/p95/p99 time to complete for every store and overall.
+    */
+   public synchronized void printReport() {
+      System.out.println("storeID\tcompleted\tp50\tp95\tp99");
+      LatencySketch all = new LatencySketch();
+      for (Map.Entry<Integer, LatencySketch> e : byStore.entrySet()) {
+         printLine(String.valueOf(e.getKey()), e.getValue());
+         all.merge(e.getValue());
+      }//end for
+      printLine("all", all);
+   }//end printReport
+
+   private static void printLine(String label, LatencySketch sketch) {
+      System.out.printf("%s\t%d\t%s\t%s\t%s\n", label, sketch.count(), minutes(sketch.quantile(0.50)),
+                        minutes(sketch.quantile(0.95)), minutes(sketch.quantile(0.99)));
+   }//end printLine
+
+   private static String minutes(long millis) {
+      return String.format("%.1f min", millis / 60000.0);
+   }//end minutes
+
+   /* a snapshot for a different number of shards is ignored */
+   private void load() {
+      if (!snapshot.exists()) return;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+         if (in.readInt() != MAGIC || in.readInt() != checkpoints.length) return;
+         long[] saved = new long[checkpoints.length];
+         for (int i = 0; i < saved.length; i++) saved[i] = in.readLong();
+         Map<Integer, LatencySketch> sketches = new TreeMap<Integer, LatencySketch>();
+         int stores = in.readInt();
+         for (int i = 0; i < stores; i++) {
+            int storeID = in.readInt();
+            sketches.put(storeID, LatencySketch.readFrom(in));
+         }//end for
+         System.arraycopy(saved, 0, checkpoints, 0, saved.length);
+         byStore.putAll(sketches);
+      } catch (IOException e) {
+         System.err.println("Ignoring delivery analytics snapshot: " + e.getMessage());
+      }//end try
+   }//end load
+
+   private void save() throws IOException {
+      File tmp = new File(snapshot.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+         out.writeInt(MAGIC);
+         out.writeInt(checkpoints.length);
+         for (long checkpoint : checkpoints) out.writeLong(checkpoint);
+         out.writeInt(byStore.size());
+         for (Map.Entry<Integer, LatencySketch> e : byStore.entrySet()) {
+            out.writeInt(e.getKey());
+            e.getValue().writeTo(out);
+         }//end for
+      }
+      Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end save
+
+}//end DeliveryAnalytics
@@ -0,0 +1,399 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Assigns pending orders to available drivers.
+ *
+ * Each store has its own queue of pending orders (oldest first) and its own
+ * pool of drivers (fewest active deliveries first, then longest idle), both
+ * guarded by a per-store lock, so dispatching at one store never waits on
+ * another.  dispatch() hands out a batch of assignments under one lock
+ * acquisition and save() writes a whole batch to DriverAssignment in a
+ * single statement.
+ *
+ * Run "java DispatchEngine [stores] [drivers] [orders] [threads]" for an
+ * in-memory throughput simulation.
+ */
+public class DispatchEngine {
+
+   /** An order handed to a driver. */
+   public static final class Assignment {
+      public final int orderID;
+      public final int storeID;
+      public final String driverLogin;
+      public final long assignedAtMillis;
+      // queued again by undo()
+      final PendingOrder order;
+
+      Assignment(PendingOrder order, String driverLogin, long assignedAtMillis) {
+         this.orderID = order.orderID;
+         this.storeID = order.storeID;
+         this.driverLogin = driverLogin;
+         this.assignedAtMillis = assignedAtMillis;
+         this.order = order;
+      }
+
+      public String toString() {
+         return "order " + orderID + " -> " + driverLogin;
+      }
+   }//end Assignment
+
+   private static final class Driver {
+      final String login;
+      final int storeID;
+      int capacity;
+      int active = 0;
+      long lastAssignedAt = 0;
+      boolean available = true;
+
+      Driver(String login, int storeID, int capacity) {
+         this.login = login;
+         this.storeID = storeID;
+         this.capacity = capacity;
+      }
+   }//end Driver
+
+   private static final class StoreQueue {
+      final ReentrantLock lock = new ReentrantLock();
+      final PriorityQueue<PendingOrder> orders = new PriorityQueue<PendingOrder>(PendingOrder.ORDER_AGE);
+      final Set<Integer> queued = new HashSet<Integer>();
+      final PriorityQueue<Driver> drivers = new PriorityQueue<Driver>((a, b) ->
+         a.active != b.active ? Integer.compare(a.active, b.active) : Long.compare(a.lastAssignedAt, b.lastAssignedAt));
+   }//end StoreQueue
+
+   private final ConcurrentHashMap<Integer, StoreQueue> stores = new ConcurrentHashMap<Integer, StoreQueue>();
+   private final ConcurrentHashMap<String, Driver> drivers = new ConcurrentHashMap<String, Driver>();
+   // orders currently out with a driver; an entry is added and removed
+   // under the lock of the driver's store
+   private final ConcurrentHashMap<Integer, Driver> assigned = new ConcurrentHashMap<Integer, Driver>();
+   private final AtomicLong assignmentCount = new AtomicLong();
+
+   private StoreQueue store(int storeID) {
+      return stores.computeIfAbsent(storeID, k -> new StoreQueue());
+   }//end store
+
+   /**
+    * Queues a pending order for dispatch.  Orders already queued or already
+    * assigned are ignored.
+    */
+   public void submit(PendingOrder order) {
+      if (assigned.containsKey(order.orderID)) return;
+      StoreQueue queue = store(order.storeID);
+      queue.lock.lock();
+      try {
+         if (queue.queued.add(order.orderID)) queue.orders.add(order);
+      } finally {
+         queue.lock.unlock();
+      }
+   }//end submit
+
+   /**
+    * Marks an order as no longer pending: it is dropped from the queue, and if
+    * a driver had it, the driver gets the capacity back.
+    */
+   public void complete(int orderID, int storeID) {
+      StoreQueue queue = store(storeID);
+      queue.lock.lock();
+      try {
+         if (queue.queued.remove(orderID)) {
+            queue.orders.removeIf(o -> o.orderID == orderID);
+         }//end if
+      } finally {
+         queue.lock.unlock();
+      }
+      release(orderID);
+   }//end complete
+
+   /* gives the driver of an order the capacity of that delivery back */
+   private void release(int orderID) {
+      while (true) {
+         Driver driver = assigned.get(orderID);
+         if (driver == null) return;
+         StoreQueue queue = store(driver.storeID);
+         queue.lock.lock();
+         try {
+            // the driver may have moved to another store meanwhile
+            if (!assigned.remove(orderID, driver)) continue;
+            queue.drivers.remove(driver);
+            driver.active--;
+            if (driver.available) queue.drivers.add(driver);
+            return;
+         } finally {
+            queue.lock.unlock();
+         }
+      }//end while
+   }//end release
+
+   /**
+    * Takes back assignments that could not be saved: each order is queued
+    * again in its old place and its driver gets the capacity back.
+    */
+   public void undo(List<Assignment> batch) {
+      for (Assignment assignment : batch) {
+         release(assignment.orderID);
+         submit(assignment.order);
+      }//end for
+      assignmentCount.addAndGet(-batch.size());
+   }//end undo
+
+   /**
+    * Takes back assignments that lost to another dispatcher, whose driver
+    * has the order already: the drivers get the capacity back and the
+    * orders are not queued again.
+    */
+   public void withdraw(List<Assignment> batch) {
+      for (Assignment assignment : batch) {
+         release(assignment.orderID);
+      }//end for
+      assignmentCount.addAndGet(-batch.size());
+   }//end withdraw
+
+   /** Records an assignment made earlier, e.g. loaded from DriverAssignment. */
+   public void restoreAssignment(int orderID, String driverLogin) {
+      Driver driver = drivers.get(driverLogin);
+      if (driver == null) return;
+      StoreQueue queue = store(driver.storeID);
+      queue.lock.lock();
+      try {
+         if (assigned.putIfAbsent(orderID, driver) != null) return;
+         if (queue.queued.remove(orderID)) queue.orders.removeIf(o -> o.orderID == orderID);
+         queue.drivers.remove(driver);
+         driver.active++;
+         if (driver.available) queue.drivers.add(driver);
+      } finally {
+         queue.lock.unlock();
+      }
+   }//end restoreAssignment
+
+   /**
+    * Makes a driver available at a store.  A driver already on shift there
+    * only gets the new capacity and keeps the deliveries counted against
+    * it; one coming from another store brings them along.
+    *
+    * @param capacity how many orders the driver may carry at once
+    */
+   public void registerDriver(String login, int storeID, int capacity) {
+      Driver existing = drivers.get(login);
+      StoreQueue queue = store(storeID);
+      if (existing != null && existing.storeID == storeID) {
+         queue.lock.lock();
+         try {
+            queue.drivers.remove(existing);
+            existing.capacity = capacity;
+            existing.available = true;
+            queue.drivers.add(existing);
+         } finally {
+            queue.lock.unlock();
+         }
+         return;
+      }//end if
+      unregisterDriver(login);
+      final Driver driver = new Driver(login, storeID, capacity);
+      if (existing != null) {
+         StoreQueue old = store(existing.storeID);
+         old.lock.lock();
+         try {
+            driver.active = existing.active;
+            assigned.replaceAll((orderID, d) -> d == existing ? driver : d);
+         } finally {
+            old.lock.unlock();
+         }
+      }//end if
+      queue.lock.lock();
+      try {
+         drivers.put(login, driver);
+         queue.drivers.remove(driver);
+         queue.drivers.add(driver);
+      } finally {
+         queue.lock.unlock();
+      }
+   }//end registerDriver
+
+   /** Takes a driver off shift; orders already assigned stay assigned. */
+   public void unregisterDriver(String login) {
+      Driver driver = drivers.remove(login);
+      if (driver == null) return;
+      StoreQueue queue = store(driver.storeID);
+      queue.lock.lock();
+      try {
+         driver.available = false;
+         queue.drivers.remove(driver);
+      } finally {
+         queue.lock.unlock();
+      }
+   }//end unregisterDriver
+
+   /**
+    * Assigns up to maxBatch of the store's oldest pending orders, each to
+    * the least loaded driver with spare capacity.
+    */
+   public List<Assignment> dispatch(int storeID, int maxBatch) {
+      StoreQueue queue = stores.get(storeID);
+      List<Assignment> result = new ArrayList<Assignment>();
+      if (queue == null) return result;
+      long now = System.currentTimeMillis();
+      queue.lock.lock();
+      try {
+         while (result.size() < maxBatch && !queue.orders.isEmpty()) {
+            Driver driver = queue.drivers.peek();
+            if (driver == null || driver.active >= driver.capacity) break;
+            PendingOrder order = queue.orders.poll();
+            queue.queued.remove(order.orderID);
+            queue.drivers.poll();
+            driver.active++;
+            driver.lastAssignedAt = now;
+            queue.drivers.add(driver);
+            assigned.put(order.orderID, driver);
+            result.add(new Assignment(order, driver.login, now));
+         }//end while
+      } finally {
+         queue.lock.unlock();
+      }
+      assignmentCount.addAndGet(result.size());
+      return result;
+   }//end dispatch
+
+   /**
+    * Dispatches every store once.  Stores whose lock is held by another
+    * dispatcher are skipped rather than waited for.
+    */
+   public List<Assignment> dispatchAll(int maxPerStore) {
+      List<Assignment> result = new ArrayList<Assignment>();
+      for (Integer storeID : stores.keySet()) {
+         StoreQueue queue = stores.get(storeID);
+         if (queue.lock.isLocked()) continue;
+         result.addAll(dispatch(storeID, maxPerStore));
+      }//end for
+      return result;
+   }//end dispatchAll
+
+   public int pendingCount(int storeID) {
+      StoreQueue queue = stores.get(storeID);
+      if (queue == null) return 0;
+      queue.lock.lock();
+      try {
+         return queue.orders.size();
+      } finally {
+         queue.lock.unlock();
+      }
+   }//end pendingCount
+
+   public long getAssignmentCount() {
+      return assignmentCount.get();
+   }//end getAssignmentCount
+
+   /**
+    * Keeps the queues in step with the order feed: new pending orders are
+    * queued and orders that leave 'pending' free their driver.
+    */
+   public void attach(OrderFeed feed) {
+      feed.addListener(event -> {
+         if ("pending".equalsIgnoreCase(event.orderStatus)) {
+            submit(new PendingOrder(event.orderID, event.storeID, event.timestampMillis));
+         } else {
+            complete(event.orderID, event.storeID);
+         }
+      });
+      for (PendingOrder order : feed.allPending()) {
+         submit(order);
+      }//end for
+   }//end attach
+
+   /**
+    * Writes a batch of assignments to DriverAssignment in one statement.
+    * Orders that already have a driver are left unchanged.
+    *
+    * @return the orderIDs of the assignments inserted
+    * @throws java.sql.SQLException when the insert fails
+    */
+   public static Set<Integer> save(Connection connection, List<Assignment> batch) throws SQLException {
+      Set<Integer> saved = new HashSet<Integer>();
+      if (batch.isEmpty()) return saved;
+      StringBuilder sql = new StringBuilder(64 + batch.size() * 64);
+      sql.append("INSERT INTO DriverAssignment (orderID, storeID, driverLogin, assignedAt) VALUES ");
+      for (int i = 0; i < batch.size(); i++) {
+         Assignment a = batch.get(i);
+         if (i > 0) sql.append(", ");
+         sql.append('(').append(a.orderID).append(", ").append(a.storeID).append(", ")
+            .append(PizzaStore.quote(a.driverLogin)).append(", ")
+            .append(PizzaStore.quote(new Timestamp(a.assignedAtMillis).toString())).append(')');
+      }//end for
+      sql.append(" ON CONFLICT (orderID) DO NOTHING RETURNING orderID");
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(sql.toString());
+         while (rs.next()) saved.add(rs.getInt(1));
+         return saved;
+      } finally {
+         stmt.close();
+      }
+   }//end save
+
+   /*
+    * Simulation: producer threads submit orders to random stores while
+    * dispatcher threads assign them and immediately complete a share of the
+    * deliveries to free drivers up again.
+    */
+   public static void main(String[] args) throws InterruptedException {
+      final int storeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+      final int driverCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+      final int orderCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+      final int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+      final DispatchEngine engine = new DispatchEngine();
+      for (int d = 0; d < driverCount; d++) {
+         engine.registerDriver("driver" + d, d % storeCount, 3);
+      }//end for
+
+      final AtomicBoolean producing = new AtomicBoolean(true);
+      final CountDownLatch producersDone = new CountDownLatch(threads);
+      final CountDownLatch dispatchersDone = new CountDownLatch(threads);
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+         final int offset = t;
+         new Thread(() -> {
+            Random random = new Random(offset);
+            for (int i = offset; i < orderCount; i += threads) {
+               engine.submit(new PendingOrder(i, random.nextInt(storeCount), System.currentTimeMillis()));
+            }
+            producersDone.countDown();
+         }).start();
+         new Thread(() -> {
+            while (true) {
+               boolean lastPass = !producing.get();
+               for (Assignment a : engine.dispatchAll(32)) {
+                  engine.complete(a.orderID, a.storeID);
+               }
+               if (lastPass) break;
+            }
+            dispatchersDone.countDown();
+         }).start();
+      }//end for
+      producersDone.await();
+      producing.set(false);
+      dispatchersDone.await();
+      // drain anything a skipped store still holds
+      for (Assignment a : engine.dispatchAll(Integer.MAX_VALUE)) {
+         engine.complete(a.orderID, a.storeID);
+      }//end for
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%d stores, %d drivers, %d threads: %d assignments in %.2f s (%.0f/s)%n",
+                        storeCount, driverCount, threads, engine.getAssignmentCount(), seconds,
+                        engine.getAssignmentCount() / seconds);
+   }//end main
+
+}//end DispatchEngine
@@ -0,0 +1,102 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The menu and store directory kept in memory for fast-start mode.  It
+ * starts from the HotDataSnapshot saved at the previous shutdown, so
+ * viewMenu and viewStores answer before the database is even connected.
+ * Once it is, start() reconciles the cache with the database and then
+ * refreshes it every refreshSeconds and after this client's own changes to
+ * the reference tables.  Queries use pooled connections.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.hotdata.refreshSeconds  time between refreshes (default 30)
+ */
+public class HotDataCache {
+
+   private final PizzaStore esql;
+   private final long refreshSeconds;
+   private volatile HotDataSnapshot current;
+   private volatile boolean reconciled = false;
+   private ScheduledExecutorService scheduler = null;
+
+   /**
+    * @param initial the snapshot of the previous run, or null if there is none
+    */
+   public HotDataCache(PizzaStore esql, HotDataSnapshot initial) {
+      this.esql = esql;
+      this.current = initial;
+      this.refreshSeconds = Long.getLong("pizzastore.hotdata.refreshSeconds", 30L);
+   }//end HotDataCache
+
+   /**
+    * @return the cached data, or null before the first load
+    */
+   public HotDataSnapshot current() {
+      return current;
+   }//end current
+
+   /**
+    * @return whether the cache has been checked against the database
+    */
+   public boolean isReconciled() {
+      return reconciled;
+   }//end isReconciled
+
+   /**
+    * Reconciles right away and then refreshes every refreshSeconds, on a
+    * daemon thread.  Call once the database is reachable.
+    */
+   public synchronized void start() {
+      if (scheduler != null) return;
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "hot-data-refresh");
+         t.setDaemon(true);
+         return t;
+      });
+      scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   /** Reloads the cache soon, e.g. after the menu was changed here. */
+   public synchronized void refreshSoon() {
+      if (scheduler != null) scheduler.execute(this::refresh);
+   }//end refreshSoon
+
+   public synchronized void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+         scheduler = null;
+      }//end if
+   }//end stop
+
+   /**
+    * Saves the cache for the next fast start, if it was reconciled.
+    *
+    * @throws java.io.IOException when the snapshot cannot be written
+    */
+   public void save(File file) throws IOException {
+      if (reconciled && current != null) current.save(file);
+   }//end save
+
+   private void refresh() {
+      try {
+         HotDataSnapshot fresh = HotDataSnapshot.fetch(esql.getConnectionPool());
+         HotDataSnapshot old = current;
+         if (!reconciled && old != null) {
+            int changed = old.differences(fresh);
+            if (changed > 0) {
+               System.err.println("Hot data snapshot was " + changed + " change(s) behind the database; reloaded.");
+            }//end if
+         }//end if
+         current = fresh;
+         reconciled = true;
+      } catch (SQLException e) {
+         System.err.println("Hot data refresh failed: " + e.getMessage());
+      }//end try
+   }//end refresh
+
+}//end HotDataCache
@@ -0,0 +1,170 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The menu, the store directory and the role of every user, saved at
+ * shutdown.  With -Dpizzastore.fastStart=true, main maps this file before
+ * the database connection is up.  It seeds the HotDataCache behind
+ * viewMenu and viewStores, and getUserRole answers from its roles until
+ * the background start is done.
+ */
+public class HotDataSnapshot {
+
+   private static final int MAGIC = 0x484F5431;   // "HOT1"
+
+   public final List<MenuItem> items;
+   public final List<StoreInfo> stores;
+   public final Map<String, String> roles;
+
+   public HotDataSnapshot(List<MenuItem> items, List<StoreInfo> stores, Map<String, String> roles) {
+      this.items = Collections.unmodifiableList(items);
+      this.stores = Collections.unmodifiableList(stores);
+      this.roles = Collections.unmodifiableMap(roles);
+   }//end HotDataSnapshot
+
+   /**
+    * Reads the current menu, stores and roles from the database, on pooled
+    * connections so the interactive one is left alone.
+    *
+    * @throws java.sql.SQLException when a query fails
+    */
+   public static HotDataSnapshot fetch(ConnectionPool pool) throws SQLException {
+      Map<String, String> roles = new HashMap<String, String>();
+      for (String[] row : pool.query("SELECT login, role FROM Users",
+            rs -> new String[] { rs.getString(1), rs.getString(2).trim() })) {
+         roles.put(row[0], row[1]);
+      }//end for
+      return new HotDataSnapshot(
+         pool.query("SELECT itemName, ingredients, typeOfItem, price, description FROM Items " +
+                    "WHERE NOT retired ORDER BY itemName", JdbcBackend.MENU_ITEM),
+         pool.query("SELECT storeID, address, city, state, isOpen, reviewScore, reviewCount FROM Store " +
+                    "ORDER BY storeID", JdbcBackend.STORE),
+         roles);
+   }//end fetch
+
+   /**
+    * Maps and reads a snapshot written by save().
+    *
+    * @return the snapshot, or null if there is none or it cannot be read
+    */
+   public static HotDataSnapshot load(File file) {
+      if (!file.exists()) return null;
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         if (buf.getInt() != MAGIC) return null;
+         int count = buf.getInt();
+         List<MenuItem> items = new ArrayList<MenuItem>(count);
+         for (int i = 0; i < count; i++) {
+            items.add(new MenuItem(getString(buf), getString(buf), getString(buf), buf.getLong(), getString(buf)));
+         }//end for
+         count = buf.getInt();
+         List<StoreInfo> stores = new ArrayList<StoreInfo>(count);
+         for (int i = 0; i < count; i++) {
+            stores.add(new StoreInfo(buf.getInt(), getString(buf), getString(buf), getString(buf), buf.get() != 0,
+                                     buf.getDouble(), buf.getInt()));
+         }//end for
+         count = buf.getInt();
+         Map<String, String> roles = new HashMap<String, String>(count * 2);
+         for (int i = 0; i < count; i++) {
+            roles.put(getString(buf), getString(buf));
+         }//end for
+         return new HotDataSnapshot(items, stores, roles);
+      } catch (IOException | BufferUnderflowException e) {
+         System.err.println("Ignoring hot data snapshot: " + e);
+         return null;
+      }//end try
+   }//end load
+
+   /**
+    * Writes the snapshot to a temporary file and renames it over the old one.
+    *
+    * @throws java.io.IOException when the snapshot cannot be written
+    */
+   public void save(File file) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+         out.writeInt(MAGIC);
+         out.writeInt(items.size());
+         for (MenuItem item : items) {
+            putString(out, item.itemName);
+            putString(out, item.ingredients);
+            putString(out, item.typeOfItem);
+            out.writeLong(item.priceCents);
+            putString(out, item.description);
+         }//end for
+         out.writeInt(stores.size());
+         for (StoreInfo store : stores) {
+            out.writeInt(store.storeID);
+            putString(out, store.address);
+            putString(out, store.city);
+            putString(out, store.state);
+            out.writeByte(store.isOpen ? 1 : 0);
+            out.writeDouble(store.reviewScore);
+            out.writeInt(store.reviewCount);
+         }//end for
+         out.writeInt(roles.size());
+         for (Map.Entry<String, String> e : roles.entrySet()) {
+            putString(out, e.getKey());
+            putString(out, e.getValue());
+         }//end for
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end save
+
+   /**
+    * @return how many items, stores and roles differ from the other snapshot
+    */
+   public int differences(HotDataSnapshot other) {
+      // +1 for every row here, -1 for every row there; what is left differs
+      Map<String, Integer> rows = new HashMap<String, Integer>();
+      for (MenuItem item : items) rows.merge(item.toString(), 1, Integer::sum);
+      for (MenuItem item : other.items) rows.merge(item.toString(), -1, Integer::sum);
+      for (StoreInfo store : stores) rows.merge(store.toString(), 1, Integer::sum);
+      for (StoreInfo store : other.stores) rows.merge(store.toString(), -1, Integer::sum);
+      int changed = 0;
+      for (int count : rows.values()) changed += Math.abs(count);
+      for (Map.Entry<String, String> e : roles.entrySet()) {
+         if (!Objects.equals(e.getValue(), other.roles.get(e.getKey()))) changed++;
+      }//end for
+      for (String login : other.roles.keySet()) {
+         if (!roles.containsKey(login)) changed++;
+      }//end for
+      return changed;
+   }//end differences
+
+   private static void putString(DataOutputStream out, String value) throws IOException {
+      if (value == null) {
+         out.writeInt(-1);
+         return;
+      }//end if
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }//end putString
+
+   private static String getString(MappedByteBuffer buf) {
+      int length = buf.getInt();
+      if (length < 0) return null;
+      byte[] bytes = new byte[length];
+      buf.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }//end getString
+
+}//end HotDataSnapshot
@@ -0,0 +1,371 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PizzaStoreBackend held entirely in memory.
+ *
+ * Orders live in IntHashMaps keyed by the primitive orderID and striped
+ * across read/write locks, so orders with different ids rarely contend.
+ * Secondary indexes map each login and each storeID to the ids of its
+ * orders.  Users, items and stores are small, read-mostly tables kept in
+ * concurrent maps.
+ *
+ * loadCsv() fills the backend from the files in data/, and
+ * "java InMemoryBackend <dataDir> [threads] [ordersPerThread]" runs an order
+ * placement simulation against it.
+ */
+public class InMemoryBackend implements PizzaStoreBackend {
+
+   private static final int STRIPES = 64;
+
+   /* as in Users: loaded users keep their plaintext password, new ones only a hash */
+   private static final class User {
+      final String password;
+      final String passwordHash;
+      final String role;
+      final String phoneNum;
+
+      User(String password, String passwordHash, String role, String phoneNum) {
+         this.password = password;
+         this.passwordHash = passwordHash;
+         this.role = role;
+         this.phoneNum = phoneNum;
+      }
+   }//end User
+
+   /* growable int array used for the secondary indexes */
+   private static final class IntList {
+      private int[] values = new int[4];
+      private int size = 0;
+
+      synchronized void add(int value) {
+         if (size == values.length) values = Arrays.copyOf(values, size * 2);
+         values[size++] = value;
+      }
+
+      synchronized int[] newestFirst() {
+         int[] result = new int[size];
+         for (int i = 0; i < size; i++) result[i] = values[size - 1 - i];
+         return result;
+      }
+   }//end IntList
+
+   private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<String, User>();
+   private final ConcurrentHashMap<String, MenuItem> items = new ConcurrentHashMap<String, MenuItem>();
+   private final ConcurrentHashMap<Integer, StoreInfo> stores = new ConcurrentHashMap<Integer, StoreInfo>();
+
+   @SuppressWarnings("unchecked")
+   private final IntHashMap<OrderInfo>[] orders = (IntHashMap<OrderInfo>[]) new IntHashMap<?>[STRIPES];
+   private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+   private final ConcurrentHashMap<String, IntList> ordersByLogin = new ConcurrentHashMap<String, IntList>();
+   private final ConcurrentHashMap<Integer, IntList> ordersByStore = new ConcurrentHashMap<Integer, IntList>();
+   private final AtomicInteger lastOrderID = new AtomicInteger(0);
+   // idempotency keys of recent orders and their { orderID, login }, least
+   // recently used first
+   private final Map<String, Object[]> orderKeys;
+   private final ConcurrentHashMap<Integer, Integer> reviews = new ConcurrentHashMap<Integer, Integer>();
+
+   public InMemoryBackend() {
+      final int cacheSize = Integer.getInteger("pizzastore.idempotency.cacheSize", 10000);
+      this.orderKeys = new LinkedHashMap<String, Object[]>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest) {
+            return size() > cacheSize;
+         }
+      };
+      for (int i = 0; i < STRIPES; i++) {
+         orders[i] = new IntHashMap<OrderInfo>(1024);
+         locks[i] = new ReentrantReadWriteLock();
+      }//end for
+   }//end InMemoryBackend
+
+   public String getUserRole(String login) {
+      User user = users.get(login);
+      return user == null ? null : user.role;
+   }//end getUserRole
+
+   public boolean createUser(String login, String password, String role, String phoneNum) {
+      return users.putIfAbsent(login, new User(null, LoginService.hashPassword(password), role, phoneNum)) == null;
+   }//end createUser
+
+   public MenuItem getItem(String itemName) {
+      return items.get(itemName);
+   }//end getItem
+
+   public List<MenuItem> listItems() {
+      List<MenuItem> result = new ArrayList<MenuItem>(items.values());
+      result.sort((a, b) -> a.itemName.compareTo(b.itemName));
+      return result;
+   }//end listItems
+
+   public void putItem(MenuItem item) {
+      items.put(item.itemName, item);
+   }//end putItem
+
+   public StoreInfo getStore(int storeID) {
+      return stores.get(storeID);
+   }//end getStore
+
+   public List<StoreInfo> listStores() {
+      List<StoreInfo> result = new ArrayList<StoreInfo>(stores.values());
+      result.sort((a, b) -> Integer.compare(a.storeID, b.storeID));
+      return result;
+   }//end listStores
+
+   public void putStore(StoreInfo store) {
+      stores.put(store.storeID, store);
+   }//end putStore
+
+   /**
+    * A retry with the same idempotency key gets the first orderID back, as
+    * long as the key is among the pizzastore.idempotency.cacheSize most
+    * recent.
+    *
+    * @throws java.sql.SQLException when the key belongs to another user's order
+    */
+   public int placeOrder(OrderRequest order) throws SQLException {
+      if (order.idempotencyKey != null) {
+         synchronized (orderKeys) {
+            Object[] known = orderKeys.get(order.idempotencyKey);
+            if (known == null) {
+               int orderID = placeOrder(order, lastOrderID.incrementAndGet());
+               orderKeys.put(order.idempotencyKey, new Object[] { orderID, order.login });
+               return orderID;
+            }//end if
+            if (!order.login.equals(known[1])) {
+               throw new SQLException("Idempotency key " + order.idempotencyKey + " was used for another order");
+            }//end if
+            return (Integer) known[0];
+         }
+      }//end if
+      return placeOrder(order, lastOrderID.incrementAndGet());
+   }//end placeOrder
+
+   private int placeOrder(OrderRequest order, int orderID) {
+      putOrder(OrderInfo.of(orderID, order, "pending"));
+      return orderID;
+   }//end placeOrder
+
+   public OrderInfo getOrder(int orderID) {
+      int stripe = stripe(orderID);
+      locks[stripe].readLock().lock();
+      try {
+         return orders[stripe].get(orderID);
+      } finally {
+         locks[stripe].readLock().unlock();
+      }
+   }//end getOrder
+
+   public int[] orderIDsForLogin(String login, int limit) {
+      IntList ids = ordersByLogin.get(login);
+      if (ids == null) return new int[0];
+      int[] newest = ids.newestFirst();
+      return limit > 0 && limit < newest.length ? Arrays.copyOf(newest, limit) : newest;
+   }//end orderIDsForLogin
+
+   public int[] orderIDsForStore(int storeID) {
+      IntList ids = ordersByStore.get(storeID);
+      return ids == null ? new int[0] : ids.newestFirst();
+   }//end orderIDsForStore
+
+   public boolean updateOrderStatus(int orderID, String orderStatus) {
+      int stripe = stripe(orderID);
+      locks[stripe].writeLock().lock();
+      try {
+         OrderInfo order = orders[stripe].get(orderID);
+         if (order == null) return false;
+         orders[stripe].put(orderID, order.withStatus(orderStatus));
+         return true;
+      } finally {
+         locks[stripe].writeLock().unlock();
+      }
+   }//end updateOrderStatus
+
+   public int reviewStore(String login, int orderID, int rating, String comment) {
+      OrderInfo order = getOrder(orderID);
+      if (order == null || !order.login.equals(login) || !"complete".equals(order.orderStatus)) return -1;
+      if (reviews.putIfAbsent(orderID, rating) != null) return -1;
+      stores.computeIfPresent(order.storeID, (id, store) -> store.withReview(rating));
+      return order.storeID;
+   }//end reviewStore
+
+   public int[] updateOrderStatuses(int[] orderIDs, int[] expectedVersions, String[] orderStatuses) {
+      int[] versions = new int[orderIDs.length];
+      for (int i = 0; i < orderIDs.length; i++) {
+         int stripe = stripe(orderIDs[i]);
+         locks[stripe].writeLock().lock();
+         try {
+            OrderInfo order = orders[stripe].get(orderIDs[i]);
+            if (order == null || order.version != expectedVersions[i]) {
+               versions[i] = -1;
+               continue;
+            }
+            OrderInfo updated = order.withStatus(orderStatuses[i]);
+            orders[stripe].put(orderIDs[i], updated);
+            versions[i] = updated.version;
+         } finally {
+            locks[stripe].writeLock().unlock();
+         }
+      }//end for
+      return versions;
+   }//end updateOrderStatuses
+
+   /** Stores an order under its own id, e.g. one loaded from foodorder.csv. */
+   public void putOrder(OrderInfo order) {
+      int stripe = stripe(order.orderID);
+      locks[stripe].writeLock().lock();
+      try {
+         orders[stripe].put(order.orderID, order);
+      } finally {
+         locks[stripe].writeLock().unlock();
+      }
+      lastOrderID.accumulateAndGet(order.orderID, Math::max);
+      ordersByLogin.computeIfAbsent(order.login, k -> new IntList()).add(order.orderID);
+      ordersByStore.computeIfAbsent(order.storeID, k -> new IntList()).add(order.orderID);
+   }//end putOrder
+
+   private static int stripe(int orderID) {
+      return (orderID ^ (orderID >>> 16)) & (STRIPES - 1);
+   }//end stripe
+
+   /**
+    * Loads users.csv, items.csv, store.csv, foodorder.csv and
+    * itemsinorder.csv from the data directory.
+    *
+    * @throws java.io.IOException when a file cannot be read
+    */
+   public void loadCsv(File dataDir) throws IOException {
+      for (String[] row : readCsv(new File(dataDir, "users.csv"))) {
+         users.putIfAbsent(row[0], new User(row[1], null, row[2], row[4]));
+      }//end for
+      for (String[] row : readCsv(new File(dataDir, "items.csv"))) {
+         putItem(new MenuItem(row[0], row[1], row[2], PizzaStore.toCents(new BigDecimal(row[3])), row[4]));
+      }//end for
+      for (String[] row : readCsv(new File(dataDir, "store.csv"))) {
+         putStore(new StoreInfo(Integer.parseInt(row[0]), row[1], row[2], row[3], row[4].equals("yes"),
+                                row[5].isEmpty() ? 0.0 : Double.parseDouble(row[5]), row[5].isEmpty() ? 0 : 1));
+      }//end for
+      ConcurrentHashMap<Integer, List<String[]>> lines = new ConcurrentHashMap<Integer, List<String[]>>();
+      for (String[] row : readCsv(new File(dataDir, "itemsinorder.csv"))) {
+         lines.computeIfAbsent(Integer.parseInt(row[0]), k -> new ArrayList<String[]>()).add(row);
+      }//end for
+      for (String[] row : readCsv(new File(dataDir, "foodorder.csv"))) {
+         int orderID = Integer.parseInt(row[0]);
+         List<String[]> orderLines = lines.getOrDefault(orderID, Collections.<String[]>emptyList());
+         String[] itemNames = new String[orderLines.size()];
+         int[] quantities = new int[orderLines.size()];
+         for (int i = 0; i < itemNames.length; i++) {
+            itemNames[i] = orderLines.get(i)[1];
+            quantities[i] = Integer.parseInt(orderLines.get(i)[2]);
+         }//end for
+         putOrder(new OrderInfo(orderID, row[1], Integer.parseInt(row[2]),
+                                PizzaStore.toCents(new BigDecimal(row[3])),
+                                Timestamp.valueOf(row[4]).getTime(), row[5], itemNames, quantities));
+      }//end for
+   }//end loadCsv
+
+   /*
+    * Reads a csv file with a header line.  Fields may be double-quoted and
+    * contain commas; whitespace around fields is dropped.
+    */
+   static List<String[]> readCsv(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line = reader.readLine();
+         while ((line = reader.readLine()) != null) {
+            line = line.replace("\r", "");
+            if (line.trim().isEmpty()) continue;
+            List<String> fields = new ArrayList<String>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+               char c = line.charAt(i);
+               if (c == '"') {
+                  quoted = !quoted;
+               } else if (c == ',' && !quoted) {
+                  fields.add(field.toString().trim());
+                  field.setLength(0);
+               } else {
+                  field.append(c);
+               }//end if
+            }//end for
+            fields.add(field.toString().trim());
+            rows.add(fields.toArray(new String[0]));
+         }//end while
+      } finally {
+         reader.close();
+      }
+      return rows;
+   }//end readCsv
+
+   /*
+    * Simulation: each thread places orders for random customers at random
+    * open stores, reading back the customer's history every tenth order and
+    * completing every other order.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println("Usage: java InMemoryBackend <dataDir> [threads] [ordersPerThread]");
+         return;
+      }//end if
+      final InMemoryBackend backend = new InMemoryBackend();
+      backend.loadCsv(new File(args[0]));
+      final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+      final int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 250000;
+
+      final List<String> customers = new ArrayList<String>();
+      for (java.util.Map.Entry<String, User> e : backend.users.entrySet()) {
+         if (e.getValue().role.equals("customer")) customers.add(e.getKey());
+      }//end for
+      final List<StoreInfo> openStores = new ArrayList<StoreInfo>();
+      for (StoreInfo store : backend.listStores()) {
+         if (store.isOpen) openStores.add(store);
+      }//end for
+      final List<MenuItem> menu = backend.listItems();
+
+      Thread[] workers = new Thread[threads];
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+         final Random random = new Random(t);
+         workers[t] = new Thread(() -> {
+            for (int i = 0; i < perThread; i++) {
+               String login = customers.get(random.nextInt(customers.size()));
+               int storeID = openStores.get(random.nextInt(openStores.size())).storeID;
+               MenuItem item = backend.getItem(menu.get(random.nextInt(menu.size())).itemName);
+               int quantity = 1 + random.nextInt(3);
+               // no idempotency key, so the order goes straight in
+               int orderID = backend.placeOrder(new OrderRequest(login, storeID, item.priceCents * quantity,
+                  System.currentTimeMillis(), new String[] { item.itemName }, new int[] { quantity }),
+                  backend.lastOrderID.incrementAndGet());
+               if (i % 10 == 0) backend.orderIDsForLogin(login, 0);
+               if (i % 2 == 0) backend.updateOrderStatus(orderID, "complete");
+            }
+         });
+         workers[t].start();
+      }//end for
+      for (Thread worker : workers) {
+         worker.join();
+      }//end for
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long total = (long) threads * perThread;
+      System.out.printf("%d threads placed %d orders in %.2f s (%.0f orders/s)%n",
+                        threads, total, seconds, total / seconds);
+   }//end main
+
+}//end InMemoryBackend
@@ -0,0 +1,129 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive int keys to objects, so keys are
+ * never boxed.  Not thread safe; InMemoryBackend stripes instances behind
+ * locks.  Keys must not be Integer.MIN_VALUE, which marks empty slots.
+ */
+public class IntHashMap<V> {
+
+   private static final int EMPTY = Integer.MIN_VALUE;
+
+   private int[] keys;
+   private Object[] values;
+   private int size = 0;
+
+   public IntHashMap() {
+      this(16);
+   }//end IntHashMap
+
+   public IntHashMap(int expectedSize) {
+      int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+      keys = new int[capacity];
+      Arrays.fill(keys, EMPTY);
+      values = new Object[capacity];
+   }//end IntHashMap
+
+   public int size() {
+      return size;
+   }//end size
+
+   @SuppressWarnings("unchecked")
+   public V get(int key) {
+      int slot = find(key);
+      return slot < 0 ? null : (V) values[slot];
+   }//end get
+
+   /**
+    * @return the previous value, or null
+    */
+   @SuppressWarnings("unchecked")
+   public V put(int key, V value) {
+      if (key == EMPTY) throw new IllegalArgumentException("reserved key " + key);
+      int mask = keys.length - 1;
+      int slot = mix(key) & mask;
+      while (keys[slot] != EMPTY) {
+         if (keys[slot] == key) {
+            V old = (V) values[slot];
+            values[slot] = value;
+            return old;
+         }//end if
+         slot = (slot + 1) & mask;
+      }//end while
+      keys[slot] = key;
+      values[slot] = value;
+      if (++size * 4 > keys.length * 3) resize();
+      return null;
+   }//end put
+
+   /**
+    * @return the removed value, or null
+    */
+   @SuppressWarnings("unchecked")
+   public V remove(int key) {
+      int slot = find(key);
+      if (slot < 0) return null;
+      V old = (V) values[slot];
+      // backward-shift deletion keeps probe sequences unbroken without tombstones
+      int mask = keys.length - 1;
+      int hole = slot;
+      int next = (slot + 1) & mask;
+      while (keys[next] != EMPTY) {
+         int home = mix(keys[next]) & mask;
+         if (((next - home) & mask) >= ((next - hole) & mask)) {
+            keys[hole] = keys[next];
+            values[hole] = values[next];
+            hole = next;
+         }//end if
+         next = (next + 1) & mask;
+      }//end while
+      keys[hole] = EMPTY;
+      values[hole] = null;
+      size--;
+      return old;
+   }//end remove
+
+   /** Calls the visitor for every entry, in no particular order. */
+   @SuppressWarnings("unchecked")
+   public void forEach(Visitor<V> visitor) {
+      for (int i = 0; i < keys.length; i++) {
+         if (keys[i] != EMPTY) visitor.visit(keys[i], (V) values[i]);
+      }//end for
+   }//end forEach
+
+   public interface Visitor<V> {
+      void visit(int key, V value);
+   }//end Visitor
+
+   private int find(int key) {
+      int mask = keys.length - 1;
+      int slot = mix(key) & mask;
+      while (keys[slot] != EMPTY) {
+         if (keys[slot] == key) return slot;
+         slot = (slot + 1) & mask;
+      }//end while
+      return -1;
+   }//end find
+
+   private void resize() {
+      int[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new int[oldKeys.length * 2];
+      Arrays.fill(keys, EMPTY);
+      values = new Object[oldKeys.length * 2];
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldKeys[i] != EMPTY) {
+            @SuppressWarnings("unchecked")
+            V value = (V) oldValues[i];
+            put(oldKeys[i], value);
+         }//end if
+      }//end for
+   }//end resize
+
+   private static int mix(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }//end mix
+
+}//end IntHashMap
@@ -0,0 +1,243 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PizzaStoreBackend on the PizzaStore database connection.
+ */
+public class JdbcBackend implements PizzaStoreBackend {
+
+   static final PizzaStore.RowMapper<MenuItem> MENU_ITEM = rs -> new MenuItem(
+      rs.getString(1).trim(), rs.getString(2), rs.getString(3).trim(),
+      PizzaStore.toCents(rs.getBigDecimal(4)), rs.getString(5));
+
+   static final PizzaStore.RowMapper<StoreInfo> STORE = rs -> new StoreInfo(
+      rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+      rs.getString(5).trim().equals("yes"), rs.getDouble(6), rs.getInt(7));
+
+   private final PizzaStore esql;
+   private final int casRetries = Integer.getInteger("pizzastore.orders.casRetries", 5);
+
+   // idempotency keys of recent orders and their { orderID, login }, least
+   // recently used first
+   private final Map<String, Object[]> recentKeys;
+
+   public JdbcBackend(PizzaStore esql) {
+      this.esql = esql;
+      final int cacheSize = Integer.getInteger("pizzastore.idempotency.cacheSize", 10000);
+      this.recentKeys = new LinkedHashMap<String, Object[]>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Object[]> eldest) {
+            return size() > cacheSize;
+         }
+      };
+   }//end JdbcBackend
+
+   public String getUserRole(String login) throws SQLException {
+      String query = String.format("SELECT role FROM Users WHERE login = %s", PizzaStore.quote(login));
+      return esql.executeQueryForObject(query, rs -> rs.getString(1).trim());
+   }//end getUserRole
+
+   public boolean createUser(String login, String password, String role, String phoneNum) throws SQLException {
+      return createUserWithHash(login, LoginService.hashPassword(password), role, phoneNum);
+   }//end createUser
+
+   /**
+    * createUser with the value for Users.passwordHash already computed, so
+    * every shard stores the same salt.
+    */
+   boolean createUserWithHash(String login, String passwordHash, String role, String phoneNum) throws SQLException {
+      String insert = String.format(
+         "INSERT INTO Users (login, passwordHash, role, phoneNum) SELECT %s, %s, %s, %s " +
+         "WHERE NOT EXISTS (SELECT 1 FROM Users WHERE login = %s)",
+         PizzaStore.quote(login), PizzaStore.quote(passwordHash), PizzaStore.quote(role),
+         PizzaStore.quote(phoneNum), PizzaStore.quote(login));
+      return esql.executeUpdateCount(insert) == 1;
+   }//end createUserWithHash
+
+   public MenuItem getItem(String itemName) throws SQLException {
+      return esql.executeQueryForObject(String.format(
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items WHERE itemName = %s AND NOT retired",
+         PizzaStore.quote(itemName)), MENU_ITEM);
+   }//end getItem
+
+   public List<MenuItem> listItems() throws SQLException {
+      return esql.executeQueryAndMap(
+         "SELECT itemName, ingredients, typeOfItem, price, description FROM Items WHERE NOT retired ORDER BY itemName",
+         MENU_ITEM);
+   }//end listItems
+
+   public StoreInfo getStore(int storeID) throws SQLException {
+      return esql.executeQueryForObject(String.format(
+         "SELECT storeID, address, city, state, isOpen, reviewScore, reviewCount FROM Store WHERE storeID = %d",
+         storeID), STORE);
+   }//end getStore
+
+   public List<StoreInfo> listStores() throws SQLException {
+      return esql.executeQueryAndMap(
+         "SELECT storeID, address, city, state, isOpen, reviewScore, reviewCount FROM Store ORDER BY storeID", STORE);
+   }//end listStores
+
+   /**
+    * An order with an idempotency key is written only once: the key is
+    * claimed in OrderIdempotency in the same transaction as the order, and
+    * a retry gets the orderID of the first submission, from recentKeys
+    * without a query if it is recent.
+    *
+    * @throws java.sql.SQLException when the key belongs to another user's order
+    */
+   public int placeOrder(final OrderRequest order) throws SQLException {
+      final String key = order.idempotencyKey;
+      if (key != null) {
+         Object[] known;
+         synchronized (recentKeys) {
+            known = recentKeys.get(key);
+         }
+         if (known != null) {
+            if (!order.login.equals(known[1])) {
+               throw new SQLException("Idempotency key " + key + " was used for another order");
+            }//end if
+            return (Integer) known[0];
+         }//end if
+      }//end if
+      int placed = esql.executeInTransaction(() -> {
+         if (key != null) {
+            // waits for a concurrent submission with the same key to commit
+            Integer claimed = esql.executeQueryForObject(String.format(
+               "INSERT INTO OrderIdempotency (idempotencyKey, login) VALUES (%s, %s) " +
+               "ON CONFLICT DO NOTHING RETURNING 1", PizzaStore.quote(key), PizzaStore.quote(order.login)),
+               rs -> rs.getInt(1));
+            if (claimed == null) return originalOrder(key, order.login);
+         }//end if
+         String timestamp = PizzaStore.quote(new Timestamp(order.timestampMillis).toString());
+         int orderID = esql.executeQueryForInt(String.format(
+            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+            "VALUES (%s, %s, %d, %s, %s, 'pending') RETURNING orderID",
+            PizzaStore.NEXT_ORDER_ID_SQL, PizzaStore.quote(order.login), order.storeID,
+            PizzaStore.formatCents(order.totalCents), timestamp), -1);
+
+         StringBuilder items = new StringBuilder(
+            "INSERT INTO ItemsInOrder (orderID, orderTimestamp, itemName, quantity) VALUES ");
+         for (int i = 0; i < order.itemCount(); i++) {
+            if (i > 0) items.append(", ");
+            items.append(String.format("(%d, %s, %s, %d)", orderID, timestamp,
+                                       PizzaStore.quote(order.itemNames[i]), order.quantities[i]));
+         }//end for
+         esql.executeUpdate(items.toString());
+         if (key != null) {
+            esql.executeUpdate(String.format("UPDATE OrderIdempotency SET orderID = %d WHERE idempotencyKey = %s",
+                                             orderID, PizzaStore.quote(key)));
+         }//end if
+         return orderID;
+      });
+      if (key != null) {
+         synchronized (recentKeys) {
+            recentKeys.put(key, new Object[] { placed, order.login });
+         }
+      }//end if
+      return placed;
+   }//end placeOrder
+
+   /* the order already placed under the key */
+   private int originalOrder(String key, String login) throws SQLException {
+      Object[] original = esql.executeQueryForObject(String.format(
+         "SELECT orderID, login FROM OrderIdempotency WHERE idempotencyKey = %s", PizzaStore.quote(key)),
+         rs -> new Object[] { rs.getInt(1), rs.getString(2) });
+      if (original == null || !login.equals(original[1])) {
+         throw new SQLException("Idempotency key " + key + " was used for another order");
+      }//end if
+      return (Integer) original[0];
+   }//end originalOrder
+
+   public OrderInfo getOrder(int orderID) throws SQLException {
+      final List<Object[]> lines = esql.executeQueryAndMap(String.format(
+         "SELECT itemName, quantity FROM AllItemsInOrder WHERE orderID = %d ORDER BY itemName", orderID),
+         rs -> new Object[] { rs.getString(1), rs.getInt(2) });
+      final String[] itemNames = new String[lines.size()];
+      final int[] quantities = new int[lines.size()];
+      for (int i = 0; i < lines.size(); i++) {
+         itemNames[i] = (String) lines.get(i)[0];
+         quantities[i] = (Integer) lines.get(i)[1];
+      }//end for
+      return esql.executeQueryForObject(String.format(
+         "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus, version FROM AllFoodOrders " +
+         "WHERE orderID = %d", orderID), rs -> new OrderInfo(rs.getInt(1), rs.getString(2), rs.getInt(3),
+            PizzaStore.toCents(rs.getBigDecimal(4)), rs.getTimestamp(5).getTime(),
+            rs.getString(6) == null ? null : rs.getString(6).trim(), itemNames, quantities, rs.getInt(7)));
+   }//end getOrder
+
+   public int[] orderIDsForLogin(String login, int limit) throws SQLException {
+      return esql.executeQueryForIntColumn(String.format(
+         "SELECT orderID FROM AllFoodOrders WHERE login = %s ORDER BY orderTimestamp DESC%s",
+         PizzaStore.quote(login), limit > 0 ? " LIMIT " + limit : ""));
+   }//end orderIDsForLogin
+
+   public int[] orderIDsForStore(int storeID) throws SQLException {
+      return esql.executeQueryForIntColumn(String.format(
+         "SELECT orderID FROM AllFoodOrders WHERE storeID = %d ORDER BY orderTimestamp DESC", storeID));
+   }//end orderIDsForStore
+
+   public boolean updateOrderStatus(int orderID, String orderStatus) throws SQLException {
+      String versionQuery = String.format("SELECT version FROM FoodOrder WHERE orderID = %d", orderID);
+      for (int attempt = 0; attempt < casRetries; attempt++) {
+         int version = esql.executeQueryForInt(versionQuery, -1);
+         if (version < 0) return false;
+         int[] updated = updateOrderStatuses(new int[] { orderID }, new int[] { version }, new String[] { orderStatus });
+         if (updated[0] >= 0) return true;
+         try {
+            Thread.sleep(1L << attempt);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }//end for
+      throw new SQLException("Order " + orderID + " kept changing; status not updated.");
+   }//end updateOrderStatus
+
+   public int[] updateOrderStatuses(int[] orderIDs, int[] expectedVersions, String[] orderStatuses)
+         throws SQLException {
+      final int[] versions = new int[orderIDs.length];
+      Arrays.fill(versions, -1);
+      if (orderIDs.length == 0) return versions;
+      StringBuilder values = new StringBuilder();
+      for (int i = 0; i < orderIDs.length; i++) {
+         if (i > 0) values.append(", ");
+         values.append(String.format("(%d, %d, %s)", orderIDs[i], expectedVersions[i],
+                                     PizzaStore.quote(orderStatuses[i])));
+      }//end for
+      // rows whose version moved on are left alone instead of overwritten;
+      // a concurrent writer holds the row lock only for its own statement
+      final String update =
+         "UPDATE FoodOrder f SET orderStatus = v.orderStatus, version = f.version + 1, updatedAt = CURRENT_TIMESTAMP " +
+         "FROM (VALUES " + values + ") AS v(orderID, version, orderStatus) " +
+         "WHERE f.orderID = v.orderID AND f.version = v.version RETURNING f.orderID, f.version";
+      List<int[]> applied = esql.executeInTransaction(() ->
+         esql.executeQueryAndMap(update, rs -> new int[] { rs.getInt(1), rs.getInt(2) }));
+      for (int[] row : applied) {
+         for (int i = 0; i < orderIDs.length; i++) {
+            if (orderIDs[i] == row[0]) versions[i] = row[1];
+         }//end for
+      }//end for
+      return versions;
+   }//end updateOrderStatuses
+
+   public int reviewStore(String login, int orderID, int rating, String comment) throws SQLException {
+      // one statement, so the review and the store's running totals are
+      // saved together and concurrent reviews of a store queue on its row
+      final String review = String.format(
+         "WITH review AS (" +
+         "INSERT INTO StoreReview (orderID, storeID, login, rating, comment, reviewedAt) " +
+         "SELECT orderID, storeID, login, %d, %s, CURRENT_TIMESTAMP FROM AllFoodOrders " +
+         "WHERE orderID = %d AND login = %s AND orderStatus = 'complete' " +
+         "ON CONFLICT (orderID) DO NOTHING RETURNING storeID, rating) " +
+         "UPDATE Store s SET reviewSum = s.reviewSum + review.rating, reviewCount = s.reviewCount + 1, " +
+         "reviewScore = (s.reviewSum + review.rating) / (s.reviewCount + 1) " +
+         "FROM review WHERE s.storeID = review.storeID RETURNING s.storeID",
+         rating, PizzaStore.quote(comment), orderID, PizzaStore.quote(login));
+      return esql.executeInTransaction(() -> esql.executeQueryForInt(review, -1));
+   }//end reviewStore
+
+}//end JdbcBackend
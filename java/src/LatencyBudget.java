@@ -0,0 +1,220 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency budgets of menu operations, so that one slow query cannot hold
+ * the interactive connection for minutes.
+ *
+ * start() opens the budget of an operation on the current thread, and
+ * every statement PizzaStore runs for it draws on the budget.  Only time
+ * spent in statements counts, not time spent waiting for the user.  A
+ * statement is bounded twice: statement_timeout on the connection is set to
+ * the whole budget, and a watchdog cancels the statement with
+ * pg_cancel_backend() once the rest of the budget is used up.  The
+ * bundled driver ignores Statement.setQueryTimeout() and does not
+ * implement Statement.cancel(), so the cancel is sent from a pooled
+ * connection.  A statement stopped either way fails with SQLState 57014;
+ * callers test for it with isExceeded() and may then run a cheaper query
+ * under fallback().
+ *
+ * Threads without a budget (background services) are not limited.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.budget.{operation}Millis  budget of one operation, e.g. pizzastore.budget.viewOrderInfoMillis
+ *   pizzastore.budget.defaultMillis      budget of other operations (default 2000, 0 for none)
+ *   pizzastore.budget.reportMillis       budget of reports and exports (default 60000)
+ *   pizzastore.budget.fallbackMillis     time added for the fallback of an exceeded operation (default 1000)
+ *   pizzastore.budget.pageSize           rows shown by a fallback (default 50)
+ */
+public class LatencyBudget {
+
+   /** SQLState of a statement stopped by its budget (query_canceled). */
+   public static final String EXCEEDED = "57014";
+
+   /** The budget of one operation; close() ends it. */
+   public static final class Budget implements AutoCloseable {
+      private final String operation;
+      private final long limitMillis;
+      private final AtomicLong spentNanos = new AtomicLong();
+      private final AtomicLong allowedNanos;
+
+      private Budget(String operation, long limitMillis) {
+         this.operation = operation;
+         this.limitMillis = limitMillis;
+         this.allowedNanos = new AtomicLong(TimeUnit.MILLISECONDS.toNanos(limitMillis));
+      }
+
+      /** @return the whole budget in milliseconds, 0 if unlimited */
+      public long limitMillis() {
+         return limitMillis;
+      }
+
+      long remainingNanos() {
+         return allowedNanos.get() - spentNanos.get();
+      }
+
+      @Override
+      public void close() {
+         if (CURRENT.get() == this) CURRENT.remove();
+      }
+   }//end Budget
+
+   /** One statement running under a budget; close() when it returns. */
+   public static final class Guard implements AutoCloseable {
+      private final Budget budget;
+      private final long startNanos = System.nanoTime();
+      private ScheduledFuture<?> watchdog = null;
+      private boolean done = false;
+      private boolean fired = false;
+
+      private Guard(Budget budget) {
+         this.budget = budget;
+      }
+
+      /* called by the watchdog when the budget runs out */
+      private synchronized void expire(Runnable cancel) {
+         if (done) return;
+         fired = true;
+         cancel.run();
+      }
+
+      /**
+       * @return e, or an exception with SQLState EXCEEDED if the statement
+       *         was stopped by its budget
+       */
+      public SQLException translate(SQLException e) {
+         boolean stopped;
+         synchronized (this) {
+            stopped = fired;
+         }
+         String message = e.getMessage();
+         if (budget == null || (!stopped && !EXCEEDED.equals(e.getSQLState())
+                                && (message == null || !message.contains("statement timeout")))) {
+            return e;
+         }//end if
+         return exceeded(budget, e);
+      }
+
+      @Override
+      public void close() {
+         synchronized (this) {
+            if (done) return;
+            done = true;
+         }
+         if (watchdog != null) watchdog.cancel(false);
+         if (budget != null) budget.spentNanos.addAndGet(System.nanoTime() - startNanos);
+      }
+   }//end Guard
+
+   private static final Set<String> REPORTS = new HashSet<String>(
+      Arrays.asList("deliveryTimeReport", "storeSalesReport", "exportOrders"));
+   private static final Guard UNLIMITED = new Guard(null);
+   private static final ThreadLocal<Budget> CURRENT = new ThreadLocal<Budget>();
+   private static ScheduledExecutorService watchdogs = null;
+
+   private LatencyBudget() {
+   }//end LatencyBudget
+
+   /**
+    * Opens the budget of an operation on this thread, replacing any open
+    * one.
+    */
+   public static Budget start(String operation) {
+      long fallback = REPORTS.contains(operation) ? Long.getLong("pizzastore.budget.reportMillis", 60000L)
+                                                  : Long.getLong("pizzastore.budget.defaultMillis", 2000L);
+      Budget budget = new Budget(operation, Long.getLong("pizzastore.budget." + operation + "Millis", fallback));
+      CURRENT.set(budget);
+      return budget;
+   }//end start
+
+   /**
+    * @return the budget open on this thread, or null
+    */
+   public static Budget current() {
+      return CURRENT.get();
+   }//end current
+
+   /**
+    * Runs work on this thread under a budget opened on another, for
+    * statements run in parallel on behalf of one operation.
+    */
+   public static <T> T callWith(Budget budget, Callable<T> work) throws Exception {
+      Budget previous = CURRENT.get();
+      if (budget == null) CURRENT.remove();
+      else CURRENT.set(budget);
+      try {
+         return work.call();
+      } finally {
+         if (previous == null) CURRENT.remove();
+         else CURRENT.set(previous);
+      }
+   }//end callWith
+
+   /**
+    * Starts watching a statement about to run under this thread's budget.
+    * If the budget runs out first, cancel is run to stop the statement.
+    *
+    * @throws java.sql.SQLException with SQLState EXCEEDED when nothing is left of the budget
+    */
+   public static Guard watch(Runnable cancel) throws SQLException {
+      Budget budget = CURRENT.get();
+      if (budget == null || budget.limitMillis <= 0) return UNLIMITED;
+      long remaining = budget.remainingNanos();
+      if (remaining <= 0) throw exceeded(budget, null);
+      final Guard guard = new Guard(budget);
+      guard.watchdog = watchdogs().schedule(() -> guard.expire(cancel), remaining, TimeUnit.NANOSECONDS);
+      return guard;
+   }//end watch
+
+   /**
+    * @return whether the statement was stopped by its latency budget
+    */
+   public static boolean isExceeded(SQLException e) {
+      return EXCEEDED.equals(e.getSQLState());
+   }//end isExceeded
+
+   /**
+    * Gives the exceeded operation on this thread fallbackMillis more, for
+    * a cheaper answer.
+    */
+   public static void fallback() {
+      Budget budget = CURRENT.get();
+      if (budget == null) return;
+      long extra = TimeUnit.MILLISECONDS.toNanos(Long.getLong("pizzastore.budget.fallbackMillis", 1000L));
+      budget.allowedNanos.set(budget.spentNanos.get() + extra);
+   }//end fallback
+
+   /**
+    * @return the rows a fallback shows
+    */
+   public static int pageSize() {
+      return Integer.getInteger("pizzastore.budget.pageSize", 50);
+   }//end pageSize
+
+   private static SQLException exceeded(Budget budget, SQLException cause) {
+      SQLException e = new SQLException(budget.operation + " took longer than its budget of "
+                                        + budget.limitMillis + " ms", EXCEEDED);
+      if (cause != null) e.initCause(cause);
+      return e;
+   }//end exceeded
+
+   private static synchronized ScheduledExecutorService watchdogs() {
+      if (watchdogs == null) {
+         watchdogs = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "latency-budget");
+            t.setDaemon(true);
+            return t;
+         });
+      }//end if
+      return watchdogs;
+   }//end watchdogs
+
+}//end LatencyBudget
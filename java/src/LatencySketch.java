@@ -0,0 +1,88 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Mergeable histogram of durations in milliseconds with logarithmic
+ * buckets: every bucket spans a factor of GAMMA, so any quantile is within
+ * 1% of the true value however the durations are spread.  Two sketches
+ * merge by adding their bucket counts, e.g. stores into a city.
+ */
+public class LatencySketch {
+
+   private static final double ACCURACY = 0.01;
+   private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+   private static final double LOG_GAMMA = Math.log(GAMMA);
+   // GAMMA^1300 ms is about 70 years; longer durations share the last bucket
+   private static final int BUCKETS = 1300;
+
+   private final long[] counts = new long[BUCKETS];
+   private long belowOneMilli = 0;
+   private long count = 0;
+
+   public synchronized void add(long millis) {
+      if (millis < 1) {
+         belowOneMilli++;
+      } else {
+         counts[Math.min(BUCKETS - 1, (int) Math.ceil(Math.log(millis) / LOG_GAMMA))]++;
+      }//end if
+      count++;
+   }//end add
+
+   public synchronized void merge(LatencySketch other) {
+      synchronized (other) {
+         for (int i = 0; i < BUCKETS; i++) counts[i] += other.counts[i];
+         belowOneMilli += other.belowOneMilli;
+         count += other.count;
+      }
+   }//end merge
+
+   public synchronized long count() {
+      return count;
+   }//end count
+
+   /**
+    * @param q the quantile, e.g. 0.95
+    * @return the estimated duration in milliseconds, or 0 if empty
+    */
+   public synchronized long quantile(double q) {
+      if (count == 0) return 0;
+      long rank = (long) Math.floor(q * (count - 1));
+      if (rank < belowOneMilli) return 0;
+      long seen = belowOneMilli;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += counts[i];
+         if (seen > rank) return Math.round(2 * Math.pow(GAMMA, i) / (GAMMA + 1));
+      }//end for
+      return Math.round(Math.pow(GAMMA, BUCKETS - 1));
+   }//end quantile
+
+   /** Writes the non-empty buckets. */
+   public synchronized void writeTo(DataOutput out) throws IOException {
+      int used = 0;
+      for (long c : counts) if (c != 0) used++;
+      out.writeLong(belowOneMilli);
+      out.writeInt(used);
+      for (int i = 0; i < BUCKETS; i++) {
+         if (counts[i] != 0) {
+            out.writeShort(i);
+            out.writeLong(counts[i]);
+         }
+      }//end for
+   }//end writeTo
+
+   public static LatencySketch readFrom(DataInput in) throws IOException {
+      LatencySketch sketch = new LatencySketch();
+      sketch.belowOneMilli = in.readLong();
+      sketch.count = sketch.belowOneMilli;
+      int used = in.readInt();
+      for (int i = 0; i < used; i++) {
+         int bucket = in.readShort();
+         long c = in.readLong();
+         sketch.counts[bucket] = c;
+         sketch.count += c;
+      }//end for
+      return sketch;
+   }//end readFrom
+
+}//end LatencySketch
@@ -0,0 +1,337 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Checks logins against salted PBKDF2 hashes in Users.passwordHash.
+ *
+ * A login is rejected without touching the database when
+ *   - it failed maxFailures times in the last windowSeconds; it is then
+ *     locked for lockSeconds, doubling with every further failure,
+ *   - it is not in the bloom filter of all logins, which is rebuilt every
+ *     bloomRefreshSeconds and takes logins created here at once, or
+ *   - the database said within negativeTtlSeconds that it does not exist.
+ * Any other login costs one primary key lookup, made on a pooled connection
+ * (see ConnectionPool) by one of a bounded pool of workers that also checks
+ * the hash; when the pool and its queue are full, logins
+ * are turned away as busy instead of piling up.
+ *
+ * Users loaded with a plaintext password are moved to a hash at their
+ * first successful login, which is the only login that writes.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.login.iterations           PBKDF2 iterations for new hashes (default 100000)
+ *   pizzastore.login.workers              hashing threads (default: processors)
+ *   pizzastore.login.queueSize            logins waiting for a worker (default 64)
+ *   pizzastore.login.maxFailures          failures before a lock (default 5)
+ *   pizzastore.login.windowSeconds        window counting failures (default 300)
+ *   pizzastore.login.lockSeconds          first lock (default 30)
+ *   pizzastore.login.bloomRefreshSeconds  bloom filter rebuild interval (default 60)
+ *   pizzastore.login.negativeTtlSeconds   unknown login cache time (default 60)
+ *   pizzastore.login.negativeCacheSize    unknown logins cached (default 10000)
+ */
+public class LoginService {
+
+   public enum Result { OK, INVALID, THROTTLED, BUSY }
+
+   private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+   private static final String PREFIX = "pbkdf2-sha256";
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /* bits set by BLOOM_HASHES double hashes of each login */
+   private static final int BLOOM_HASHES = 7;
+   private static final class Bloom {
+      final AtomicLongArray bits;
+      final long size;
+
+      Bloom(int logins) {
+         // about 10 bits per login: under 1% false positives
+         size = (Math.max(1024L, logins * 10L) + 63) & ~63L;
+         bits = new AtomicLongArray((int) (size >>> 6));
+      }
+
+      void add(String login) {
+         long h = hash(login);
+         for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod((int) h + i * (int) (h >>> 32), (int) size);
+            long word;
+            do {
+               word = bits.get((int) (bit >>> 6));
+            } while ((word & 1L << bit) == 0 && !bits.compareAndSet((int) (bit >>> 6), word, word | 1L << bit));
+         }
+      }
+
+      boolean mightContain(String login) {
+         long h = hash(login);
+         for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod((int) h + i * (int) (h >>> 32), (int) size);
+            if ((bits.get((int) (bit >>> 6)) & 1L << bit) == 0) return false;
+         }
+         return true;
+      }
+
+      static long hash(String login) {
+         long h = 0xCBF29CE484222325L;
+         for (int i = 0; i < login.length(); i++) {
+            h = (h ^ login.charAt(i)) * 0x100000001B3L;
+         }
+         h ^= h >>> 33;
+         h *= 0xFF51AFD7ED558CCDL;
+         return h ^ h >>> 33;
+      }
+   }//end Bloom
+
+   private static final class Attempts {
+      int failures = 0;
+      long firstFailureAt = 0;
+      long lockedUntil = 0;
+   }//end Attempts
+
+   private final PizzaStore esql;
+   private final ThreadPoolExecutor workers;
+   private final int maxFailures;
+   private final long windowMillis;
+   private final long lockMillis;
+   private final long bloomRefreshMillis;
+   private final long negativeTtlMillis;
+   private final ConcurrentHashMap<String, Attempts> attempts = new ConcurrentHashMap<String, Attempts>();
+   private final Map<String, Long> unknown;
+   private final Set<String> createdSinceRefresh = ConcurrentHashMap.newKeySet();
+   private volatile Bloom bloom = null;
+   private volatile long bloomBuiltAt = 0;
+   private volatile boolean refreshing = false;
+
+   public LoginService(PizzaStore esql) {
+      this.esql = esql;
+      int threads = Integer.getInteger("pizzastore.login.workers", Runtime.getRuntime().availableProcessors());
+      this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(Integer.getInteger("pizzastore.login.queueSize", 64)), r -> {
+            Thread t = new Thread(r, "login-worker");
+            t.setDaemon(true);
+            return t;
+         });
+      this.maxFailures = Integer.getInteger("pizzastore.login.maxFailures", 5);
+      this.windowMillis = Long.getLong("pizzastore.login.windowSeconds", 300L) * 1000;
+      this.lockMillis = Long.getLong("pizzastore.login.lockSeconds", 30L) * 1000;
+      this.bloomRefreshMillis = Long.getLong("pizzastore.login.bloomRefreshSeconds", 60L) * 1000;
+      this.negativeTtlMillis = Long.getLong("pizzastore.login.negativeTtlSeconds", 60L) * 1000;
+      final int negativeCacheSize = Integer.getInteger("pizzastore.login.negativeCacheSize", 10000);
+      this.unknown = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > negativeCacheSize;
+         }
+      };
+   }//end LoginService
+
+   /**
+    * Checks a login and password.
+    *
+    * @throws java.sql.SQLException when the user cannot be read
+    */
+   public Result authenticate(final String login, final String password) throws SQLException {
+      if (isLocked(login)) return Result.THROTTLED;
+      if (!mightExist(login)) return fail(login);
+
+      Future<Result> check;
+      try {
+         check = workers.submit(() -> check(login, password));
+      } catch (RejectedExecutionException e) {
+         return Result.BUSY;
+      }//end try
+      Result result;
+      try {
+         result = check.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while checking login");
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw new SQLException("Login check failed: " + e.getCause());
+      }//end try
+      if (result != Result.OK) return fail(login);
+      attempts.remove(login);
+      return Result.OK;
+   }//end authenticate
+
+   /**
+    * Builds the bloom filter now rather than at the first login.
+    *
+    * @throws java.sql.SQLException when the logins cannot be read
+    */
+   public void preload() throws SQLException {
+      refreshBloom();
+   }//end preload
+
+   /** Lets a login created or renamed by this client in at once. */
+   public void noteLogin(String login) {
+      createdSinceRefresh.add(login);
+      Bloom current = bloom;
+      if (current != null) current.add(login);
+      synchronized (unknown) {
+         unknown.remove(login);
+      }
+   }//end noteLogin
+
+   public void close() {
+      workers.shutdownNow();
+   }//end close
+
+   /**
+    * @return the value stored in Users.passwordHash for a new password
+    */
+   public static String hashPassword(String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes(salt);
+      int iterations = Integer.getInteger("pizzastore.login.iterations", 100000);
+      return PREFIX + "$" + iterations + "$" + Base64.getEncoder().encodeToString(salt) + "$" +
+             Base64.getEncoder().encodeToString(pbkdf2(password, salt, iterations));
+   }//end hashPassword
+
+   /**
+    * @return whether the password matches a value made by hashPassword
+    */
+   public static boolean verifyPassword(String password, String stored) {
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4 || !parts[0].equals(PREFIX)) return false;
+      byte[] salt = Base64.getDecoder().decode(parts[2]);
+      byte[] expected = Base64.getDecoder().decode(parts[3]);
+      return MessageDigest.isEqual(expected, pbkdf2(password, salt, Integer.parseInt(parts[1])));
+   }//end verifyPassword
+
+   private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+      try {
+         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+         return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException(ALGORITHM + " unavailable", e);
+      }//end try
+   }//end pbkdf2
+
+   /* runs on a worker: the one lookup, then the hash check */
+   private Result check(String login, String password) throws SQLException {
+      List<String[]> rows = esql.getConnectionPool().query(String.format(
+         "SELECT password, passwordHash FROM Users WHERE login = %s", PizzaStore.quote(login)),
+         rs -> new String[] { rs.getString(1), rs.getString(2) });
+      if (rows.isEmpty()) {
+         synchronized (unknown) {
+            unknown.put(login, System.currentTimeMillis());
+         }
+         return Result.INVALID;
+      }//end if
+      String plain = rows.get(0)[0];
+      String hash = rows.get(0)[1];
+      if (hash != null) {
+         return verifyPassword(password, hash) ? Result.OK : Result.INVALID;
+      }//end if
+      if (plain == null || !MessageDigest.isEqual(plain.getBytes(StandardCharsets.UTF_8),
+                                                  password.getBytes(StandardCharsets.UTF_8))) {
+         return Result.INVALID;
+      }//end if
+      // first login since the plaintext load; a concurrent migration wins.
+      // Sent through esql so it reaches every shard; the caller is waiting.
+      esql.executeReferenceUpdate(String.format(
+         "UPDATE Users SET passwordHash = %s, password = NULL WHERE login = %s AND passwordHash IS NULL",
+         PizzaStore.quote(hashPassword(password)), PizzaStore.quote(login)));
+      return Result.OK;
+   }//end check
+
+   private boolean mightExist(String login) throws SQLException {
+      refreshBloom();
+      if (!bloom.mightContain(login)) return false;
+      synchronized (unknown) {
+         Long seenAt = unknown.get(login);
+         if (seenAt == null) return true;
+         if (System.currentTimeMillis() - seenAt < negativeTtlMillis) return false;
+         unknown.remove(login);
+         return true;
+      }
+   }//end mightExist
+
+   /*
+    * One scan of the logins at most every bloomRefreshMillis.  Only the
+    * first build is waited for; later ones are made by one caller while the
+    * others keep using the old filter.
+    */
+   private void refreshBloom() throws SQLException {
+      synchronized (this) {
+         if (bloom == null) {
+            buildBloom();
+            return;
+         }//end if
+         if (refreshing || System.currentTimeMillis() - bloomBuiltAt < bloomRefreshMillis) return;
+         refreshing = true;
+      }
+      try {
+         buildBloom();
+      } finally {
+         refreshing = false;
+      }
+   }//end refreshBloom
+
+   private void buildBloom() throws SQLException {
+      long startedAt = System.currentTimeMillis();
+      Set<String> noted = ConcurrentHashMap.newKeySet();
+      noted.addAll(createdSinceRefresh);
+      List<String> logins = esql.getConnectionPool().query("SELECT login FROM Users", rs -> rs.getString(1));
+      Bloom fresh = new Bloom(logins.size() + noted.size());
+      for (String login : logins) fresh.add(login);
+      for (String login : createdSinceRefresh) fresh.add(login);
+      createdSinceRefresh.removeAll(noted);
+      bloom = fresh;
+      bloomBuiltAt = startedAt;
+   }//end buildBloom
+
+   private boolean isLocked(String login) {
+      Attempts a = attempts.get(login);
+      if (a == null) return false;
+      synchronized (a) {
+         return System.currentTimeMillis() < a.lockedUntil;
+      }
+   }//end isLocked
+
+   private Result fail(String login) {
+      if (attempts.size() > 10000) {
+         long now = System.currentTimeMillis();
+         attempts.values().removeIf(old -> {
+            synchronized (old) {
+               return now >= old.lockedUntil && now - old.firstFailureAt > windowMillis;
+            }
+         });
+      }//end if
+      Attempts a = attempts.computeIfAbsent(login, k -> new Attempts());
+      synchronized (a) {
+         long now = System.currentTimeMillis();
+         if (now - a.firstFailureAt > windowMillis) {
+            a.failures = 0;
+            a.firstFailureAt = now;
+         }//end if
+         a.failures++;
+         if (a.failures >= maxFailures) {
+            int doublings = Math.min(a.failures - maxFailures, 10);
+            a.lockedUntil = now + (lockMillis << doublings);
+         }//end if
+      }
+      return Result.INVALID;
+   }//end fail
+
+}//end LoginService
@@ -0,0 +1,24 @@
+/**
+ * A row of Items with the price held in cents.
+ */
+public final class MenuItem {
+
+   public final String itemName;
+   public final String ingredients;
+   public final String typeOfItem;
+   public final long priceCents;
+   public final String description;
+
+   public MenuItem(String itemName, String ingredients, String typeOfItem, long priceCents, String description) {
+      this.itemName = itemName;
+      this.ingredients = ingredients;
+      this.typeOfItem = typeOfItem;
+      this.priceCents = priceCents;
+      this.description = description;
+   }//end MenuItem
+
+   public String toString() {
+      return itemName + "\t" + typeOfItem + "\t" + PizzaStore.formatCents(priceCents) + "\t" + description;
+   }//end toString
+
+}//end MenuItem
@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads a columnar order export written by OrderExporter.  Each block is
+ * mapped on its own, so files larger than 2 GB are fine, and its columns
+ * are decoded into arrays before the rows are handed out.  Columns a scan
+ * does not ask for are skipped without being decoded.
+ *
+ * Run on its own to summarize an export:
+ *   java OrderExportReader orders.pzx
+ */
+public class OrderExportReader {
+
+   /** One order line. */
+   public static final class Row {
+      public int orderID;
+      public String login;
+      public int storeID;
+      public long timestampMillis;
+      public String orderStatus;
+      public long totalCents;
+      public String itemName;
+      public int quantity;
+   }//end Row
+
+   public interface RowVisitor {
+      void row(Row row);
+   }
+
+   private final File file;
+
+   public OrderExportReader(File file) {
+      this.file = file;
+   }//end OrderExportReader
+
+   /**
+    * Hands every row of the file to the visitor, in file order.  The Row
+    * object is reused between calls.
+    *
+    * @return the number of rows read
+    * @throws java.io.IOException when the file cannot be read or is not an export
+    */
+   public long scan(RowVisitor visitor) throws IOException {
+      List<String> logins = new ArrayList<String>();
+      List<String> statuses = new ArrayList<String>();
+      List<String> itemNames = new ArrayList<String>();
+      Row row = new Row();
+      long rows = 0;
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, 4);
+         if (head.getInt() != OrderExporter.MAGIC) throw new IOException(file + " is not an order export");
+         long position = 4;
+         while (true) {
+            ByteBuffer sizes = channel.map(FileChannel.MapMode.READ_ONLY, position, 8);
+            int blockBytes = sizes.getInt();
+            int rowCount = sizes.getInt();
+            if (rowCount == 0) break;
+            MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position + 8, blockBytes - 8);
+            position += blockBytes;
+
+            readDictionary(block, logins);
+            readDictionary(block, statuses);
+            readDictionary(block, itemNames);
+            long[][] columns = new long[OrderExporter.COLUMNS][];
+            for (int c = 0; c < OrderExporter.COLUMNS; c++) {
+               int columnBytes = block.getInt();
+               int end = block.position() + columnBytes;
+               long[] values = new long[rowCount];
+               for (int r = 0; r < rowCount; r++) values[r] = getVarLong(block);
+               if (block.position() != end) throw new IOException("Corrupt column " + c + " in " + file);
+               columns[c] = values;
+            }//end for
+            // columns 0, 2, 3 and 5 are zigzag deltas
+            long orderID = 0, storeID = 0, millis = 0, cents = 0;
+            for (int r = 0; r < rowCount; r++) {
+               orderID += unZigZag(columns[0][r]);
+               storeID += unZigZag(columns[2][r]);
+               millis += unZigZag(columns[3][r]);
+               cents += unZigZag(columns[5][r]);
+               row.orderID = (int) orderID;
+               row.login = logins.get((int) columns[1][r]);
+               row.storeID = (int) storeID;
+               row.timestampMillis = millis;
+               row.orderStatus = statuses.get((int) columns[4][r]);
+               row.totalCents = cents;
+               row.itemName = itemNames.get((int) columns[6][r]);
+               row.quantity = (int) columns[7][r];
+               visitor.row(row);
+            }//end for
+            rows += rowCount;
+         }//end while
+      }
+      return rows;
+   }//end scan
+
+   private static void readDictionary(ByteBuffer buf, List<String> dictionary) {
+      long added = getVarLong(buf);
+      for (long i = 0; i < added; i++) {
+         byte[] utf8 = new byte[(int) getVarLong(buf)];
+         buf.get(utf8);
+         dictionary.add(new String(utf8, StandardCharsets.UTF_8));
+      }//end for
+   }//end readDictionary
+
+   private static long getVarLong(ByteBuffer buf) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = buf.get();
+         value |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+   }//end getVarLong
+
+   private static long unZigZag(long v) {
+      return (v >>> 1) ^ -(v & 1);
+   }//end unZigZag
+
+   public static void main(String[] args) throws IOException {
+      if (args.length != 1) {
+         System.err.println("Usage: java OrderExportReader <export file>");
+         System.exit(1);
+      }//end if
+      final Map<String, long[]> items = new TreeMap<String, long[]>();
+      final long[] range = { Long.MAX_VALUE, Long.MIN_VALUE };
+      long rows = new OrderExportReader(new File(args[0])).scan(row -> {
+         items.computeIfAbsent(row.itemName, k -> new long[1])[0] += row.quantity;
+         range[0] = Math.min(range[0], row.timestampMillis);
+         range[1] = Math.max(range[1], row.timestampMillis);
+      });
+      System.out.println(rows + " order line(s)");
+      if (rows == 0) return;
+      System.out.println("from " + new java.sql.Timestamp(range[0]) + " to " + new java.sql.Timestamp(range[1]));
+      System.out.printf("%-30s %10s\n", "itemName", "quantity");
+      for (Map.Entry<String, long[]> e : items.entrySet()) {
+         System.out.printf("%-30s %10d\n", e.getKey(), e.getValue()[0]);
+      }//end for
+   }//end main
+
+}//end OrderExportReader
@@ -0,0 +1,262 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports order lines (FoodOrder joined with ItemsInOrder) for a date range
+ * to CSV or to a columnar file read by OrderExportReader.
+ *
+ * Rows are streamed from a server-side cursor, fetchSize at a time, one
+ * month (one partition) and shard at a time, so memory stays constant
+ * however many rows there are.  The bundled driver has no COPY support,
+ * so DECLARE/FETCH is used instead of COPY TO STDOUT.
+ *
+ * The columnar format is a header followed by blocks of up to blockRows
+ * rows.  Every block is
+ *   int blockBytes, int rowCount,
+ *   new dictionary entries for login, orderStatus and itemName,
+ *   then per column: int columnBytes, values.
+ * Values are unsigned LEB128 varints: orderID, storeID, totalCents and
+ * the timestamp as zigzag deltas from the previous row, strings as ids in
+ * their column dictionary.  A final block with rowCount 0 ends the file.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.export.fetchSize  rows per FETCH (default 10000)
+ *   pizzastore.export.blockRows  rows per columnar block (default 65536)
+ */
+public class OrderExporter {
+
+   public enum Format { CSV, COLUMNAR }
+
+   static final int MAGIC = 0x505A5831;   // "PZX1"
+   static final int COLUMNS = 8;
+
+   /* a growable byte array of varints */
+   private static final class Column {
+      byte[] bytes = new byte[1 << 12];
+      int length = 0;
+
+      void put(int b) {
+         if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+         bytes[length++] = (byte) b;
+      }
+
+      void putVarLong(long v) {
+         while ((v & ~0x7FL) != 0) {
+            put((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+         }
+         put((int) v);
+      }
+
+      void putZigZag(long v) {
+         putVarLong((v << 1) ^ (v >> 63));
+      }
+
+      void putString(String s) {
+         byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+         putVarLong(utf8.length);
+         for (byte b : utf8) put(b);
+      }
+   }//end Column
+
+   /* string column dictionary; entries added since the last block are written with it */
+   private static final class Dictionary {
+      final Map<String, Integer> ids = new HashMap<String, Integer>();
+      final List<String> added = new ArrayList<String>();
+
+      int id(String value) {
+         Integer id = ids.get(value);
+         if (id == null) {
+            id = ids.size();
+            ids.put(value, id);
+            added.add(value);
+         }
+         return id;
+      }
+   }//end Dictionary
+
+   private final List<PizzaStore> shards;
+   private final int fetchSize;
+   private final int blockRows;
+
+   public OrderExporter(List<PizzaStore> shards) {
+      this.shards = shards;
+      this.fetchSize = Integer.getInteger("pizzastore.export.fetchSize", 10000);
+      this.blockRows = Integer.getInteger("pizzastore.export.blockRows", 65536);
+   }//end OrderExporter
+
+   /* receives every exported row */
+   private interface RowSink {
+      void row(int orderID, String login, int storeID, long timestampMillis, String orderStatus,
+               long totalCents, String itemName, int quantity) throws IOException;
+   }
+
+   /**
+    * Writes the order lines with orderTimestamp in [from, to) to the file.
+    *
+    * @return the number of rows written
+    * @throws java.sql.SQLException when a query fails
+    * @throws java.io.IOException when the file cannot be written
+    */
+   public long export(LocalDate from, LocalDate to, Format format, File file) throws SQLException, IOException {
+      return format == Format.CSV ? exportCsv(from, to, file) : exportColumnar(from, to, file);
+   }//end export
+
+   private long exportCsv(LocalDate from, LocalDate to, File file) throws SQLException, IOException {
+      try (BufferedWriter out = new BufferedWriter(
+               new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 20)) {
+         out.write("orderID,login,storeID,orderTimestamp,orderStatus,totalPrice,itemName,quantity\n");
+         return stream(from, to, (orderID, login, storeID, millis, status, cents, itemName, quantity) -> {
+            out.write(Integer.toString(orderID));
+            out.write(',');
+            out.write(csv(login));
+            out.write(',');
+            out.write(Integer.toString(storeID));
+            out.write(',');
+            out.write(new java.sql.Timestamp(millis).toString());
+            out.write(',');
+            out.write(csv(status));
+            out.write(',');
+            out.write(PizzaStore.formatCents(cents));
+            out.write(',');
+            out.write(csv(itemName));
+            out.write(',');
+            out.write(Integer.toString(quantity));
+            out.write('\n');
+         });
+      }
+   }//end exportCsv
+
+   private long exportColumnar(LocalDate from, LocalDate to, File file) throws SQLException, IOException {
+      final Column[] columns = new Column[COLUMNS];
+      for (int i = 0; i < COLUMNS; i++) columns[i] = new Column();
+      final Dictionary logins = new Dictionary();
+      final Dictionary statuses = new Dictionary();
+      final Dictionary itemNames = new Dictionary();
+      // previous values for the delta columns, and rows in the open block
+      final long[] previous = new long[4];
+      final int[] rows = new int[1];
+      try (final DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+         out.writeInt(MAGIC);
+         long total = stream(from, to, (orderID, login, storeID, millis, status, cents, itemName, quantity) -> {
+            columns[0].putZigZag(orderID - previous[0]);
+            columns[1].putVarLong(logins.id(login));
+            columns[2].putZigZag(storeID - previous[1]);
+            columns[3].putZigZag(millis - previous[2]);
+            columns[4].putVarLong(statuses.id(status));
+            columns[5].putZigZag(cents - previous[3]);
+            columns[6].putVarLong(itemNames.id(itemName));
+            columns[7].putVarLong(quantity);
+            previous[0] = orderID;
+            previous[1] = storeID;
+            previous[2] = millis;
+            previous[3] = cents;
+            if (++rows[0] == blockRows) {
+               writeBlock(out, rows[0], columns, logins, statuses, itemNames);
+               rows[0] = 0;
+               Arrays.fill(previous, 0);
+            }
+         });
+         if (rows[0] > 0) writeBlock(out, rows[0], columns, logins, statuses, itemNames);
+         out.writeInt(8);
+         out.writeInt(0);
+         return total;
+      }
+   }//end exportColumnar
+
+   /* deltas restart at 0 in every block, so blocks can be read on their own */
+   private static void writeBlock(DataOutputStream out, int rowCount, Column[] columns,
+                                  Dictionary... dictionaries) throws IOException {
+      Column header = new Column();
+      for (Dictionary dictionary : dictionaries) {
+         header.putVarLong(dictionary.added.size());
+         for (String value : dictionary.added) header.putString(value);
+         dictionary.added.clear();
+      }//end for
+      int bytes = 8 + header.length;
+      for (Column column : columns) bytes += 4 + column.length;
+      out.writeInt(bytes);
+      out.writeInt(rowCount);
+      out.write(header.bytes, 0, header.length);
+      for (Column column : columns) {
+         out.writeInt(column.length);
+         out.write(column.bytes, 0, column.length);
+         column.length = 0;
+      }//end for
+   }//end writeBlock
+
+   /* one cursor per month and shard, read fetchSize rows at a time */
+   private long stream(LocalDate from, LocalDate to, RowSink sink) throws SQLException, IOException {
+      long rows = 0;
+      for (PizzaStore shard : shards) {
+         ConnectionPool pool = shard.getConnectionPool();
+         Connection connection = pool.borrow();
+         try {
+            connection.setAutoCommit(false);
+            Statement stmt = connection.createStatement();
+            try {
+               LocalDate lo = from;
+               while (lo.isBefore(to)) {
+                  LocalDate hi = lo.withDayOfMonth(1).plusMonths(1);
+                  if (hi.isAfter(to)) hi = to;
+                  String start = PizzaStore.quote(lo.toString());
+                  String end = PizzaStore.quote(hi.toString());
+                  stmt.executeUpdate(String.format(
+                     "DECLARE export_orders NO SCROLL CURSOR FOR " +
+                     "SELECT f.orderID, f.login, f.storeID, f.orderTimestamp, f.orderStatus, f.totalPrice, " +
+                     "i.itemName, i.quantity FROM AllFoodOrders f JOIN AllItemsInOrder i " +
+                     "ON i.orderID = f.orderID AND i.orderTimestamp = f.orderTimestamp " +
+                     "WHERE f.orderTimestamp >= %s AND f.orderTimestamp < %s " +
+                     "AND i.orderTimestamp >= %s AND i.orderTimestamp < %s ORDER BY f.orderTimestamp, f.orderID",
+                     start, end, start, end));
+                  int fetched;
+                  do {
+                     fetched = 0;
+                     ResultSet rs = stmt.executeQuery("FETCH FORWARD " + fetchSize + " FROM export_orders");
+                     while (rs.next()) {
+                        String status = rs.getString(5);
+                        sink.row(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getTimestamp(4).getTime(),
+                                 status == null ? "" : status.trim(), PizzaStore.toCents(rs.getBigDecimal(6)),
+                                 rs.getString(7).trim(), rs.getInt(8));
+                        fetched++;
+                     }//end while
+                     rs.close();
+                     rows += fetched;
+                  } while (fetched == fetchSize);
+                  stmt.executeUpdate("CLOSE export_orders");
+                  lo = hi;
+               }//end while
+               connection.commit();
+            } finally {
+               stmt.close();
+            }
+         } finally {
+            pool.release(connection);
+         }
+      }//end for
+      return rows;
+   }//end stream
+
+   private static String csv(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+      return '"' + value.replace("\"", "\"\"") + '"';
+   }//end csv
+
+}//end OrderExporter
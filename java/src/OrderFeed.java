@@ -0,0 +1,298 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Live per-store queues of pending orders, kept current by LISTEN
+ * order_events instead of re-querying FoodOrder.
+ *
+ * On start the feed loads the pending orders once.  Afterwards every NOTIFY
+ * from the publish_order_event trigger makes it read only the new OrderEvent
+ * rows, update the queues and call the registered listeners.
+ *
+ * Drivers that support it (pgjdbc 42.2+) block in getNotifications(timeout),
+ * so an idle feed sends nothing to the server.  The bundled 7.3 driver only
+ * delivers notifications while reading a query result, so with it the feed
+ * issues an empty query every pizzastore.feed.pollMillis (default 1000).
+ * That is one round trip per poll for each database with a feed, idle or
+ * not, and changes reach the queues up to pollMillis late; a lower value
+ * gives fresher queues for more load on the server.
+ *
+ * eventIDs are taken at INSERT but become visible at commit, so a lower id
+ * can appear after a higher one was read.  Ids skipped over are remembered
+ * and read again, together with the new rows, for
+ * pizzastore.feed.gapGraceMillis (default 10000); ids of rolled back
+ * transactions never appear and are forgotten after that.
+ */
+public class OrderFeed {
+
+   /** A FoodOrder insert or orderStatus change. */
+   public static final class Event {
+      public final long eventID;
+      public final int orderID;
+      public final int storeID;
+      public final String orderStatus;
+      public final long timestampMillis;
+
+      Event(long eventID, int orderID, int storeID, String orderStatus, long timestampMillis) {
+         this.eventID = eventID;
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.orderStatus = orderStatus;
+         this.timestampMillis = timestampMillis;
+      }
+
+      public String toString() {
+         return "order " + orderID + " at store " + storeID + " is now " + orderStatus;
+      }
+   }//end Event
+
+   /** Called on the feed thread for every event, after the queues are updated. */
+   public interface Listener {
+      void orderChanged(Event event);
+   }//end Listener
+
+   private static final int MAX_GAPS = 1000;
+
+   private final PizzaStore esql;
+   private final long pollMillis;
+   private final long gapGraceMillis;
+   private final ConcurrentHashMap<Integer, ConcurrentSkipListSet<PendingOrder>> pendingByStore =
+      new ConcurrentHashMap<Integer, ConcurrentSkipListSet<PendingOrder>>();
+   private final ConcurrentHashMap<Integer, PendingOrder> pendingByID =
+      new ConcurrentHashMap<Integer, PendingOrder>();
+   private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+   private Connection connection = null;
+   private Method blockingGetNotifications = null;
+   private long lastEventID = 0;
+   // unseen eventIDs below lastEventID and when they were first missed;
+   // used by the feed thread only
+   private final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>();
+   private volatile boolean running = false;
+   private Thread thread = null;
+
+   public OrderFeed(PizzaStore esql) {
+      this.esql = esql;
+      this.pollMillis = Long.getLong("pizzastore.feed.pollMillis", 1000L);
+      this.gapGraceMillis = Long.getLong("pizzastore.feed.gapGraceMillis", 10000L);
+   }//end OrderFeed
+
+   /**
+    * Subscribes to order_events, loads the current pending orders and starts
+    * the feed thread.
+    *
+    * @throws java.sql.SQLException when the feed connection cannot be set up
+    */
+   public synchronized void start() throws SQLException {
+      if (running) return;
+      connect();
+      running = true;
+      thread = new Thread(this::listenLoop, "order-feed");
+      thread.setDaemon(true);
+      thread.start();
+   }//end start
+
+   public synchronized void stop() {
+      running = false;
+      if (thread != null) {
+         thread.interrupt();
+         try {
+            thread.join(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+         thread = null;
+      }//end if
+      closeConnection();
+   }//end stop
+
+   public void addListener(Listener listener) {
+      listeners.add(listener);
+   }//end addListener
+
+   public void removeListener(Listener listener) {
+      listeners.remove(listener);
+   }//end removeListener
+
+   /**
+    * @return the store's pending orders, oldest first
+    */
+   public List<PendingOrder> pendingOrders(int storeID) {
+      ConcurrentSkipListSet<PendingOrder> queue = pendingByStore.get(storeID);
+      return queue == null ? new ArrayList<PendingOrder>() : new ArrayList<PendingOrder>(queue);
+   }//end pendingOrders
+
+   /**
+    * @return the pending orders of every store
+    */
+   public List<PendingOrder> allPending() {
+      return new ArrayList<PendingOrder>(pendingByID.values());
+   }//end allPending
+
+   /**
+    * @return the oldest pending order of the store, or null if there is none
+    */
+   public PendingOrder oldestPending(int storeID) {
+      ConcurrentSkipListSet<PendingOrder> queue = pendingByStore.get(storeID);
+      return queue == null || queue.isEmpty() ? null : queue.first();
+   }//end oldestPending
+
+   /* opens the feed connection, LISTENs and (re)loads the pending queues */
+   private void connect() throws SQLException {
+      connection = esql.openConnection();
+      blockingGetNotifications = findBlockingGetNotifications(connection);
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeUpdate("LISTEN order_events");
+         // events after this id are replayed on top of the snapshot below
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(eventID), 0) FROM OrderEvent");
+         rs.next();
+         lastEventID = rs.getLong(1);
+         // transactions still open may hold ids below it
+         gaps.clear();
+         rs = stmt.executeQuery(String.format(
+            "SELECT s FROM generate_series(%d, %d) s WHERE NOT EXISTS " +
+            "(SELECT 1 FROM OrderEvent WHERE eventID = s) ORDER BY s",
+            Math.max(1, lastEventID - MAX_GAPS + 1), lastEventID));
+         long now = System.currentTimeMillis();
+         while (rs.next()) gaps.put(rs.getLong(1), now);
+         pendingByStore.clear();
+         pendingByID.clear();
+         rs = stmt.executeQuery(
+            "SELECT orderID, storeID, orderTimestamp FROM FoodOrder WHERE orderStatus = 'pending'");
+         while (rs.next()) {
+            addPending(new PendingOrder(rs.getInt(1), rs.getInt(2), rs.getTimestamp(3).getTime()));
+         }//end while
+      } finally {
+         stmt.close();
+      }
+   }//end connect
+
+   private void listenLoop() {
+      while (running) {
+         try {
+            if (connection == null) connect();
+            if (awaitNotification()) readEvents();
+         } catch (SQLException e) {
+            System.err.println("Order feed: " + e.getMessage() + ", reconnecting");
+            closeConnection();
+            try {
+               Thread.sleep(1000);
+            } catch (InterruptedException ie) {
+               return;
+            }//end try
+         } catch (InterruptedException e) {
+            return;
+         }//end try
+      }//end while
+   }//end listenLoop
+
+   /* waits for a NOTIFY on order_events; returns true if one arrived */
+   private boolean awaitNotification() throws SQLException, InterruptedException {
+      Object[] notifications;
+      if (blockingGetNotifications != null) {
+         try {
+            notifications = (Object[]) blockingGetNotifications.invoke(connection, (int) Math.max(pollMillis, 500));
+         } catch (ReflectiveOperationException e) {
+            throw new SQLException("getNotifications failed: " + e.getMessage());
+         }//end try
+      } else {
+         Thread.sleep(pollMillis);
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeQuery("SELECT 1").close();
+         } finally {
+            stmt.close();
+         }
+         notifications = ((org.postgresql.PGConnection) connection).getNotifications();
+      }//end if
+      return notifications != null && notifications.length > 0;
+   }//end awaitNotification
+
+   private void readEvents() throws SQLException {
+      long now = System.currentTimeMillis();
+      gaps.values().removeIf(missedAt -> now - missedAt > gapGraceMillis);
+      StringBuilder late = new StringBuilder();
+      for (Long eventID : gaps.keySet()) {
+         late.append(late.length() == 0 ? " OR eventID IN (" : ", ").append(eventID);
+      }//end for
+      if (late.length() > 0) late.append(')');
+      List<Event> events = new ArrayList<Event>();
+      Statement stmt = connection.createStatement();
+      try {
+         ResultSet rs = stmt.executeQuery(String.format(
+            "SELECT eventID, orderID, storeID, orderStatus, orderTimestamp FROM OrderEvent " +
+            "WHERE eventID > %d%s ORDER BY eventID", lastEventID, late));
+         while (rs.next()) {
+            events.add(new Event(rs.getLong(1), rs.getInt(2), rs.getInt(3), rs.getString(4),
+                                 rs.getTimestamp(5).getTime()));
+         }//end while
+      } finally {
+         stmt.close();
+      }
+      for (Event event : events) {
+         if (event.eventID > lastEventID) {
+            for (long missed = lastEventID + 1; missed < event.eventID && gaps.size() < MAX_GAPS; missed++) {
+               gaps.put(missed, now);
+            }//end for
+            lastEventID = event.eventID;
+         } else if (gaps.remove(event.eventID) == null) {
+            continue;
+         }//end if
+         if ("pending".equalsIgnoreCase(event.orderStatus)) {
+            addPending(new PendingOrder(event.orderID, event.storeID, event.timestampMillis));
+         } else {
+            removePending(event.orderID);
+         }//end if
+         for (Listener listener : listeners) {
+            listener.orderChanged(event);
+         }//end for
+      }//end for
+   }//end readEvents
+
+   private void addPending(PendingOrder order) {
+      removePending(order.orderID);
+      pendingByID.put(order.orderID, order);
+      pendingByStore.computeIfAbsent(order.storeID,
+         k -> new ConcurrentSkipListSet<PendingOrder>(PendingOrder.ORDER_AGE)).add(order);
+   }//end addPending
+
+   private void removePending(int orderID) {
+      PendingOrder old = pendingByID.remove(orderID);
+      if (old != null) {
+         ConcurrentSkipListSet<PendingOrder> queue = pendingByStore.get(old.storeID);
+         if (queue != null) queue.remove(old);
+      }//end if
+   }//end removePending
+
+   private static Method findBlockingGetNotifications(Connection connection) {
+      try {
+         Class<?> pg = Class.forName("org.postgresql.PGConnection");
+         if (!pg.isInstance(connection)) return null;
+         return pg.getMethod("getNotifications", int.class);
+      } catch (ReflectiveOperationException e) {
+         return null;
+      }//end try
+   }//end findBlockingGetNotifications
+
+   private void closeConnection() {
+      if (connection != null) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }//end try
+         connection = null;
+      }//end if
+   }//end closeConnection
+
+}//end OrderFeed
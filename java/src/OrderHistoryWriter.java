@@ -0,0 +1,183 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends order status transitions to OrderStatusHistory in batches on a
+ * background thread, so placeOrder and updateOrderStatus only queue them.
+ *
+ * Each batch is one multi-row INSERT per order shard, on connections of the
+ * writer's own.  A failed batch is kept and retried with exponential
+ * backoff; when the queue is full, record() waits for the writer.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.history.batchSize    rows per INSERT (default 256)
+ *   pizzastore.history.flushMillis  longest wait before a partial batch (default 200)
+ *   pizzastore.history.queueSize    transitions buffered (default 10000)
+ */
+public class OrderHistoryWriter {
+
+   private static final long MIN_BACKOFF_MILLIS = 100;
+   private static final long MAX_BACKOFF_MILLIS = 5000;
+
+   private static final class Transition {
+      final int orderID;
+      final int storeID;
+      final String orderStatus;
+      final long orderTimestampMillis;
+      final long changedAtMillis;
+      final String changedBy;
+
+      Transition(int orderID, int storeID, String orderStatus, long orderTimestampMillis,
+                 long changedAtMillis, String changedBy) {
+         this.orderID = orderID;
+         this.storeID = storeID;
+         this.orderStatus = orderStatus;
+         this.orderTimestampMillis = orderTimestampMillis;
+         this.changedAtMillis = changedAtMillis;
+         this.changedBy = changedBy;
+      }
+   }//end Transition
+
+   private final PizzaStore esql;
+   private final int batchSize;
+   private final long flushMillis;
+   private final LinkedBlockingQueue<Transition> queue;
+   private final Map<PizzaStore, Connection> connections = new HashMap<PizzaStore, Connection>();
+   private volatile boolean running = false;
+   private Thread thread = null;
+
+   public OrderHistoryWriter(PizzaStore esql) {
+      this.esql = esql;
+      this.batchSize = Integer.getInteger("pizzastore.history.batchSize", 256);
+      this.flushMillis = Long.getLong("pizzastore.history.flushMillis", 200L);
+      this.queue = new LinkedBlockingQueue<Transition>(Integer.getInteger("pizzastore.history.queueSize", 10000));
+   }//end OrderHistoryWriter
+
+   public synchronized void start() {
+      if (running) return;
+      running = true;
+      thread = new Thread(this::writeLoop, "order-history-writer");
+      thread.setDaemon(true);
+      thread.start();
+   }//end start
+
+   /**
+    * Queues a transition of an order to a new status.
+    *
+    * @param orderTimestampMillis when the order was placed
+    * @param changedBy the login making the change
+    */
+   public void record(int orderID, int storeID, String orderStatus, long orderTimestampMillis, String changedBy) {
+      try {
+         queue.put(new Transition(orderID, storeID, orderStatus, orderTimestampMillis,
+                                  System.currentTimeMillis(), changedBy));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end record
+
+   /**
+    * Stops the writer, giving it up to waitMillis to write what is queued.
+    */
+   public void stop(long waitMillis) {
+      long deadline = System.currentTimeMillis() + waitMillis;
+      while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+         try {
+            Thread.sleep(20);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }//end try
+      }//end while
+      running = false;
+      if (thread != null) {
+         thread.interrupt();
+         try {
+            thread.join(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end if
+      closeConnections();
+      if (!queue.isEmpty()) {
+         System.err.println("Order history: " + queue.size() + " transition(s) not written.");
+      }//end if
+   }//end stop
+
+   private void writeLoop() {
+      long backoff = MIN_BACKOFF_MILLIS;
+      List<Transition> batch = new ArrayList<Transition>();
+      while (running) {
+         try {
+            if (batch.isEmpty()) {
+               Transition first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+               if (first == null) continue;
+               batch.add(first);
+               queue.drainTo(batch, batchSize - 1);
+            }//end if
+            write(batch);
+            batch.clear();
+            backoff = MIN_BACKOFF_MILLIS;
+         } catch (SQLException e) {
+            System.err.println("Order history: writing failed, retrying: " + e.getMessage());
+            closeConnections();
+            try {
+               Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+               break;
+            }//end try
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         } catch (InterruptedException e) {
+            break;
+         }//end try
+      }//end while
+   }//end writeLoop
+
+   /* one INSERT per shard that has rows in the batch */
+   private void write(List<Transition> batch) throws SQLException {
+      Map<PizzaStore, StringBuilder> inserts = new LinkedHashMap<PizzaStore, StringBuilder>();
+      for (Transition t : batch) {
+         StringBuilder values = inserts.computeIfAbsent(esql.shardForOrder(t.orderID), k -> new StringBuilder());
+         if (values.length() > 0) values.append(", ");
+         values.append(String.format("(%d, %d, %s, %s, %s, %s)", t.orderID, t.storeID,
+            PizzaStore.quote(t.orderStatus), PizzaStore.quote(new Timestamp(t.orderTimestampMillis).toString()),
+            PizzaStore.quote(new Timestamp(t.changedAtMillis).toString()), PizzaStore.quote(t.changedBy)));
+      }//end for
+      for (Map.Entry<PizzaStore, StringBuilder> insert : inserts.entrySet()) {
+         Connection connection = connections.get(insert.getKey());
+         if (connection == null) {
+            connection = insert.getKey().openConnection();
+            connections.put(insert.getKey(), connection);
+         }//end if
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeUpdate(
+               "INSERT INTO OrderStatusHistory (orderID, storeID, orderStatus, orderTimestamp, changedAt, changedBy) " +
+               "VALUES " + insert.getValue());
+         } finally {
+            stmt.close();
+         }
+      }//end for
+   }//end write
+
+   private void closeConnections() {
+      for (Connection connection : connections.values()) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end for
+      connections.clear();
+   }//end closeConnections
+
+}//end OrderHistoryWriter
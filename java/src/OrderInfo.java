@@ -0,0 +1,48 @@
+/**
+ * A saved order: a FoodOrder row together with its ItemsInOrder rows.
+ */
+public final class OrderInfo {
+
+   public final int orderID;
+   public final String login;
+   public final int storeID;
+   public final long totalCents;
+   public final long timestampMillis;
+   public final String orderStatus;
+   public final String[] itemNames;
+   public final int[] quantities;
+   // FoodOrder.version, increased by every update of the order
+   public final int version;
+
+   public OrderInfo(int orderID, String login, int storeID, long totalCents, long timestampMillis,
+                    String orderStatus, String[] itemNames, int[] quantities) {
+      this(orderID, login, storeID, totalCents, timestampMillis, orderStatus, itemNames, quantities, 0);
+   }//end OrderInfo
+
+   public OrderInfo(int orderID, String login, int storeID, long totalCents, long timestampMillis,
+                    String orderStatus, String[] itemNames, int[] quantities, int version) {
+      this.orderID = orderID;
+      this.login = login;
+      this.storeID = storeID;
+      this.totalCents = totalCents;
+      this.timestampMillis = timestampMillis;
+      this.orderStatus = orderStatus;
+      this.itemNames = itemNames;
+      this.quantities = quantities;
+      this.version = version;
+   }//end OrderInfo
+
+   public static OrderInfo of(int orderID, OrderRequest request, String orderStatus) {
+      return new OrderInfo(orderID, request.login, request.storeID, request.totalCents, request.timestampMillis,
+                           orderStatus, request.itemNames, request.quantities);
+   }//end of
+
+   /**
+    * @return this order with the new status and the next version
+    */
+   public OrderInfo withStatus(String status) {
+      return new OrderInfo(orderID, login, storeID, totalCents, timestampMillis, status, itemNames, quantities,
+                           version + 1);
+   }//end withStatus
+
+}//end OrderInfo
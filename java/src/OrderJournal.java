@@ -0,0 +1,333 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only journal of accepted orders, kept in a memory-mapped file.
+ *
+ * append() copies the order into the mapped file and blocks until a flusher
+ * thread has forced it to disk.  The flusher forces everything written since
+ * its previous pass in one call, so concurrent appends share a single fsync
+ * (group commit).  OrderJournalDrainer later copies durable records into
+ * FoodOrder/ItemsInOrder.
+ *
+ * File layout: a 64 byte header (magic, version, journal id, seq of the first
+ * record) followed by records of
+ *    [int payloadLength][int crc32][long seq][payload]
+ * Sequence numbers are consecutive, so recovery stops at the first record
+ * that is torn, fails its checksum or does not continue the sequence.  When
+ * the file is full and every record has been drained, it is reused from the
+ * start and the header's first seq moves forward.
+ */
+public class OrderJournal implements Closeable {
+
+   private static final int MAGIC = 0x504A524E; // "PJRN"
+   private static final int VERSION = 1;
+   private static final int HEADER_SIZE = 64;
+   private static final int RECORD_HEADER_SIZE = 16;
+
+   /** A durable journal record. */
+   public static final class Entry {
+      public final long seq;
+      public final OrderRequest order;
+
+      Entry(long seq, OrderRequest order) {
+         this.seq = seq;
+         this.order = order;
+      }
+   }//end Entry
+
+   /** Read position of a consumer; seq is the last record consumed. */
+   public static final class Cursor {
+      final int generation;
+      final int position;
+      public final long seq;
+
+      Cursor(int generation, int position, long seq) {
+         this.generation = generation;
+         this.position = position;
+         this.seq = seq;
+      }
+   }//end Cursor
+
+   /** Records returned by read() and the cursor positioned after them. */
+   public static final class Batch {
+      public final List<Entry> entries;
+      public final Cursor next;
+
+      Batch(List<Entry> entries, Cursor next) {
+         this.entries = entries;
+         this.next = next;
+      }
+   }//end Batch
+
+   private final FileChannel channel;
+   private final MappedByteBuffer buffer;
+   private final String journalID;
+   private final Thread flusher;
+
+   // all guarded by this
+   private long firstSeq;
+   private int generation = 0;
+   private int writePos;
+   private long nextSeq;
+   private int durablePos;
+   private long durableSeq;
+   private long drainedSeq;
+   private boolean closed = false;
+
+   private OrderJournal(FileChannel channel, MappedByteBuffer buffer) {
+      this.channel = channel;
+      this.buffer = buffer;
+      if (buffer.getInt(0) != MAGIC) {
+         UUID id = UUID.randomUUID();
+         buffer.putLong(8, id.getMostSignificantBits());
+         buffer.putLong(16, id.getLeastSignificantBits());
+         buffer.putInt(HEADER_SIZE, 0);
+         setFirstSeq(1L);
+         buffer.putInt(4, VERSION);
+         buffer.putInt(0, MAGIC);
+         buffer.force();
+      }//end if
+      this.journalID = new UUID(buffer.getLong(8), buffer.getLong(16)).toString();
+      this.firstSeq = buffer.getLong(24);
+      recover();
+      this.flusher = new Thread(this::flushLoop, "order-journal-flusher");
+      this.flusher.setDaemon(true);
+      this.flusher.start();
+   }//end OrderJournal
+
+   /**
+    * Opens the journal in the given directory, creating it if needed.
+    *
+    * @param dir directory holding orders.journal
+    * @param capacityBytes size of the mapped file for a new journal
+    * @throws java.io.IOException when the file cannot be opened or mapped
+    */
+   public static OrderJournal open(File dir, int capacityBytes) throws IOException {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create journal directory " + dir);
+      }//end if
+      File file = new File(dir, "orders.journal");
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                             StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long size = Math.max(channel.size(), capacityBytes);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      return new OrderJournal(channel, buffer);
+   }//end open
+
+   /** Identifies this journal file in OrderJournalApplied. */
+   public String getJournalID() {
+      return journalID;
+   }//end getJournalID
+
+   /**
+    * Appends an order and waits until it is on disk.
+    *
+    * @return the sequence number of the order, usable as a reference
+    * @throws java.io.IOException when the journal is full or closed
+    */
+   public long append(OrderRequest order) throws IOException, InterruptedException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      order.writeTo(new DataOutputStream(bytes));
+      byte[] payload = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+
+      long seq;
+      synchronized (this) {
+         if (closed) throw new IOException("Order journal is closed");
+         int needed = RECORD_HEADER_SIZE + payload.length;
+         if (writePos + needed + 4 > buffer.capacity()) {
+            if (drainedSeq != nextSeq - 1) {
+               throw new IOException("Order journal is full; orders are waiting to be saved");
+            }//end if
+            rewind();
+         }//end if
+         seq = nextSeq++;
+         int pos = writePos;
+         // the end marker after the record is written first and the length
+         // last, so a torn write is never mistaken for a complete record
+         buffer.putInt(pos + needed, 0);
+         buffer.put(pos + RECORD_HEADER_SIZE, payload);
+         buffer.putLong(pos + 8, seq);
+         buffer.putInt(pos + 4, (int) crc.getValue());
+         buffer.putInt(pos, payload.length);
+         writePos = pos + needed;
+         notifyAll();
+         while (durableSeq < seq) {
+            if (closed) throw new IOException("Order journal closed before the order was saved");
+            wait();
+         }//end while
+      }
+      return seq;
+   }//end append
+
+   /**
+    * Reads up to max durable records after the cursor, waiting up to
+    * timeoutMillis for one to appear.
+    */
+   public Batch read(Cursor cursor, int max, long timeoutMillis) throws InterruptedException {
+      int gen;
+      int pos;
+      long seq;
+      int end;
+      synchronized (this) {
+         long deadline = System.currentTimeMillis() + timeoutMillis;
+         while (!closed && durableSeq <= cursor.seq) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) break;
+            wait(left);
+         }//end while
+         if (cursor.generation != generation) {
+            // the file was reused; everything before it had been drained
+            pos = HEADER_SIZE;
+            seq = firstSeq - 1;
+         } else {
+            pos = cursor.position;
+            seq = cursor.seq;
+         }//end if
+         gen = generation;
+         end = durablePos;
+      }
+      List<Entry> entries = new ArrayList<Entry>();
+      while (pos < end && entries.size() < max) {
+         int length = buffer.getInt(pos);
+         long recordSeq = buffer.getLong(pos + 8);
+         byte[] payload = new byte[length];
+         buffer.get(pos + RECORD_HEADER_SIZE, payload);
+         try {
+            entries.add(new Entry(recordSeq,
+               OrderRequest.readFrom(new DataInputStream(new ByteArrayInputStream(payload)))));
+         } catch (IOException e) {
+            throw new IllegalStateException("Corrupt journal record " + recordSeq, e);
+         }//end try
+         pos += RECORD_HEADER_SIZE + length;
+         seq = recordSeq;
+      }//end while
+      return new Batch(entries, new Cursor(gen, pos, seq));
+   }//end read
+
+   /**
+    * Positions a cursor after the last record already applied to the
+    * database, as recorded in OrderJournalApplied.
+    */
+   public synchronized Cursor cursorAfter(long appliedSeq) {
+      int pos = HEADER_SIZE;
+      long seq = firstSeq - 1;
+      while (pos < durablePos && seq < appliedSeq) {
+         seq = buffer.getLong(pos + 8);
+         pos += RECORD_HEADER_SIZE + buffer.getInt(pos);
+      }//end while
+      return new Cursor(generation, pos, Math.max(seq, appliedSeq));
+   }//end cursorAfter
+
+   /** Called once records up to seq are committed to the database. */
+   public synchronized void markDrained(long seq) {
+      if (seq > drainedSeq) drainedSeq = seq;
+   }//end markDrained
+
+   /** Number of accepted orders not yet saved to the database. */
+   public synchronized long pendingCount() {
+      return (nextSeq - 1) - drainedSeq;
+   }//end pendingCount
+
+   public void close() throws IOException {
+      synchronized (this) {
+         if (closed) return;
+         closed = true;
+         notifyAll();
+      }
+      try {
+         flusher.join(1000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+      buffer.force();
+      channel.close();
+   }//end close
+
+   /*
+    * Forces newly written records to disk and wakes the appenders waiting on
+    * them.  Appends that arrive while a force is running are picked up by the
+    * next pass.
+    */
+   private void flushLoop() {
+      while (true) {
+         int from;
+         int to;
+         long seq;
+         synchronized (this) {
+            while (!closed && writePos == durablePos) {
+               try {
+                  wait();
+               } catch (InterruptedException e) {
+                  return;
+               }//end try
+            }//end while
+            if (closed && writePos == durablePos) return;
+            from = durablePos;
+            to = writePos;
+            seq = nextSeq - 1;
+         }
+         buffer.force(from, to - from + 4);
+         synchronized (this) {
+            durablePos = to;
+            durableSeq = seq;
+            notifyAll();
+         }
+      }//end while
+   }//end flushLoop
+
+   /* scans the records written before the last shutdown or crash */
+   private void recover() {
+      int pos = HEADER_SIZE;
+      long expected = firstSeq;
+      CRC32 crc = new CRC32();
+      while (pos + RECORD_HEADER_SIZE <= buffer.capacity()) {
+         int length = buffer.getInt(pos);
+         if (length <= 0 || pos + RECORD_HEADER_SIZE + length > buffer.capacity()) break;
+         if (buffer.getLong(pos + 8) != expected) break;
+         byte[] payload = new byte[length];
+         buffer.get(pos + RECORD_HEADER_SIZE, payload);
+         crc.reset();
+         crc.update(payload);
+         if ((int) crc.getValue() != buffer.getInt(pos + 4)) break;
+         pos += RECORD_HEADER_SIZE + length;
+         expected++;
+      }//end while
+      writePos = pos;
+      durablePos = pos;
+      nextSeq = expected;
+      durableSeq = expected - 1;
+      drainedSeq = firstSeq - 1;
+   }//end recover
+
+   /* reuses the file from the start; caller holds the lock and has checked
+      that every record has been drained */
+   private void rewind() {
+      buffer.putInt(HEADER_SIZE, 0);
+      setFirstSeq(nextSeq);
+      buffer.force(0, HEADER_SIZE + 4);
+      firstSeq = nextSeq;
+      writePos = HEADER_SIZE;
+      durablePos = HEADER_SIZE;
+      generation++;
+   }//end rewind
+
+   private void setFirstSeq(long seq) {
+      buffer.putLong(24, seq);
+   }//end setFirstSeq
+
+}//end OrderJournal
@@ -0,0 +1,310 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Copies orders from the OrderJournal into FoodOrder/ItemsInOrder in batches
+ * on a background thread with its own database connection.
+ *
+ * Every batch is written in one transaction together with the journal's row
+ * in OrderJournalApplied, which records the last applied sequence number.
+ * After a crash or a database error the drainer restarts from that row, so
+ * each journal record is inserted exactly once.  While the database is down
+ * the drainer retries with exponential backoff and orders keep accumulating
+ * in the journal.
+ *
+ * A batch that fails with a data or constraint error (SQLState class 22 or
+ * 23, other than a unique violation) would fail the same way forever, so it
+ * is applied again one record at a time, and each record that still fails
+ * is moved to OrderJournalRejected and reported instead of blocking the
+ * records after it.
+ */
+public class OrderJournalDrainer {
+
+   private static final long MIN_BACKOFF_MILLIS = 100;
+   private static final long MAX_BACKOFF_MILLIS = 5000;
+
+   private final PizzaStore esql;
+   private final OrderJournal journal;
+   private final int batchSize;
+   private volatile boolean running = false;
+   private volatile int rejected = 0;
+   private Thread thread = null;
+   private Connection connection = null;
+
+   public OrderJournalDrainer(PizzaStore esql, OrderJournal journal) {
+      this.esql = esql;
+      this.journal = journal;
+      this.batchSize = Integer.getInteger("pizzastore.journal.batchSize", 256);
+   }//end OrderJournalDrainer
+
+   public synchronized void start() {
+      if (running) return;
+      running = true;
+      thread = new Thread(this::drainLoop, "order-journal-drainer");
+      thread.setDaemon(true);
+      thread.start();
+   }//end start
+
+   /**
+    * Stops the drainer, giving it up to waitMillis to finish saving the
+    * orders already in the journal.
+    */
+   public void stop(long waitMillis) {
+      long deadline = System.currentTimeMillis() + waitMillis;
+      while (journal.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+         try {
+            Thread.sleep(20);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }//end try
+      }//end while
+      running = false;
+      if (thread != null) {
+         thread.interrupt();
+         try {
+            thread.join(1000);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end if
+      closeConnection();
+   }//end stop
+
+   private void drainLoop() {
+      long backoff = MIN_BACKOFF_MILLIS;
+      OrderJournal.Cursor cursor = null;
+      while (running) {
+         try {
+            if (connection == null) {
+               connection = esql.openConnection();
+               cursor = journal.cursorAfter(loadAppliedSeq());
+               journal.markDrained(cursor.seq);
+            }//end if
+            OrderJournal.Batch batch = journal.read(cursor, batchSize, 500);
+            if (batch.entries.isEmpty()) continue;
+            try {
+               apply(cursor.seq, batch.entries);
+            } catch (SQLException e) {
+               if (!isPermanentFailure(e)) throw e;
+               applyEach(cursor.seq, batch.entries);
+            }//end try
+            cursor = batch.next;
+            journal.markDrained(cursor.seq);
+            backoff = MIN_BACKOFF_MILLIS;
+         } catch (SQLException e) {
+            System.err.println("Order journal: saving orders failed, retrying: " + e.getMessage());
+            closeConnection();
+            try {
+               Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+               break;
+            }//end try
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+         } catch (InterruptedException e) {
+            break;
+         }//end try
+      }//end while
+   }//end drainLoop
+
+   /**
+    * @return the journal records moved to OrderJournalRejected so far
+    */
+   public int rejectedCount() {
+      return rejected;
+   }//end rejectedCount
+
+   /**
+    * Tells an error that retrying cannot fix (bad data, a missing user,
+    * store or item) from an outage.  Drivers that report no SQLState are
+    * judged by the server's message.
+    */
+   public static boolean isPermanentFailure(SQLException e) {
+      if (ConnectionMonitor.isConnectionFailure(e)) return false;
+      String state = e.getSQLState();
+      if (state != null) {
+         return (state.startsWith("22") || state.startsWith("23")) && !state.equals("23505");
+      }//end if
+      String message = e.getMessage();
+      return message != null && (message.contains("foreign key constraint") || message.contains("check constraint")
+                                 || message.contains("not-null constraint") || message.contains("invalid input")
+                                 || message.contains("value too long") || message.contains("out of range"));
+   }//end isPermanentFailure
+
+   /*
+    * Applies a batch that failed for good one record at a time, so that
+    * only the records that cannot be saved are rejected.  Any other error
+    * is thrown; the drainer then resumes from OrderJournalApplied.
+    */
+   private void applyEach(long previousSeq, List<OrderJournal.Entry> entries) throws SQLException {
+      long seq = previousSeq;
+      for (OrderJournal.Entry entry : entries) {
+         try {
+            apply(seq, Collections.singletonList(entry));
+         } catch (SQLException e) {
+            if (!isPermanentFailure(e)) throw e;
+            reject(seq, entry, e);
+         }//end try
+         seq = entry.seq;
+         journal.markDrained(seq);
+      }//end for
+   }//end applyEach
+
+   /* moves one record to OrderJournalRejected and past it in OrderJournalApplied */
+   private void reject(long previousSeq, OrderJournal.Entry entry, SQLException cause) throws SQLException {
+      OrderRequest order = entry.order;
+      StringBuilder items = new StringBuilder();
+      for (int i = 0; i < order.itemCount(); i++) {
+         if (i > 0) items.append(", ");
+         items.append(order.itemNames[i]).append(" x ").append(order.quantities[i]);
+      }//end for
+      connection.setAutoCommit(false);
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeUpdate(String.format(
+            "INSERT INTO OrderJournalRejected (journalID, seq, login, storeID, totalPrice, orderTimestamp, " +
+            "items, idempotencyKey, error) VALUES (%s, %d, %s, %d, %s, %s, %s, %s, %s)",
+            PizzaStore.quote(journal.getJournalID()), entry.seq, PizzaStore.quote(order.login), order.storeID,
+            PizzaStore.formatCents(order.totalCents),
+            PizzaStore.quote(new Timestamp(order.timestampMillis).toString()), PizzaStore.quote(items.toString()),
+            PizzaStore.quote(order.idempotencyKey), PizzaStore.quote(cause.getMessage())));
+         int moved = stmt.executeUpdate(String.format(
+            "UPDATE OrderJournalApplied SET lastSeq = %d WHERE journalID = %s AND lastSeq = %d",
+            entry.seq, PizzaStore.quote(journal.getJournalID()), previousSeq));
+         if (moved != 1) {
+            throw new SQLException("OrderJournalApplied moved past seq " + previousSeq);
+         }//end if
+         connection.commit();
+      } catch (SQLException e) {
+         try {
+            connection.rollback();
+         } catch (SQLException ignored) {
+            // the connection is discarded by the caller anyway
+         }//end try
+         throw e;
+      } finally {
+         stmt.close();
+      }
+      connection.setAutoCommit(true);
+      rejected++;
+      System.err.println("Order journal: order J" + entry.seq + " of " + order.login + " at store " + order.storeID
+                         + " cannot be saved and was moved to OrderJournalRejected: " + cause.getMessage());
+   }//end reject
+
+   /* reads (creating if needed) this journal's applied sequence number */
+   private long loadAppliedSeq() throws SQLException {
+      String id = PizzaStore.quote(journal.getJournalID());
+      Statement stmt = connection.createStatement();
+      try {
+         stmt.executeUpdate(String.format(
+            "INSERT INTO OrderJournalApplied (journalID, lastSeq) SELECT %s, 0 " +
+            "WHERE NOT EXISTS (SELECT 1 FROM OrderJournalApplied WHERE journalID = %s)", id, id));
+         ResultSet rs = stmt.executeQuery(String.format(
+            "SELECT lastSeq FROM OrderJournalApplied WHERE journalID = %s", id));
+         return rs.next() ? rs.getLong(1) : 0L;
+      } finally {
+         stmt.close();
+      }
+   }//end loadAppliedSeq
+
+   /*
+    * Inserts one batch and advances the applied sequence number in a single
+    * transaction.  Every record gets an orderID from the sequence, whether
+    * it is inserted or not.
+    * An order whose idempotency key is already in OrderIdempotency, or
+    * earlier in the batch, is a retried submission and is skipped.
+    */
+   private void apply(long previousSeq, List<OrderJournal.Entry> entries) throws SQLException {
+      long lastSeq = entries.get(entries.size() - 1).seq;
+      connection.setAutoCommit(false);
+      Statement stmt = connection.createStatement();
+      try {
+         int[] orderIDs = new int[entries.size()];
+         ResultSet rs = stmt.executeQuery(String.format(
+            "SELECT %s FROM generate_series(1, %d)", PizzaStore.NEXT_ORDER_ID_SQL, orderIDs.length));
+         for (int i = 0; rs.next(); i++) orderIDs[i] = rs.getInt(1);
+         int next = 0;
+         Set<String> usedKeys = usedKeys(stmt, entries);
+
+         for (OrderJournal.Entry entry : entries) {
+            OrderRequest order = entry.order;
+            int orderID = orderIDs[next++];
+            if (order.idempotencyKey != null && !usedKeys.add(order.idempotencyKey)) continue;
+            String timestamp = PizzaStore.quote(new Timestamp(order.timestampMillis).toString());
+            stmt.addBatch(String.format(
+               "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
+               "VALUES (%d, %s, %d, %s, %s, 'pending')",
+               orderID, PizzaStore.quote(order.login), order.storeID,
+               PizzaStore.formatCents(order.totalCents), timestamp));
+            for (int i = 0; i < order.itemCount(); i++) {
+               stmt.addBatch(String.format(
+                  "INSERT INTO ItemsInOrder (orderID, orderTimestamp, itemName, quantity) VALUES (%d, %s, %s, %d)",
+                  orderID, timestamp, PizzaStore.quote(order.itemNames[i]), order.quantities[i]));
+            }//end for
+            stmt.addBatch(String.format(
+               "INSERT INTO OrderStatusHistory (orderID, storeID, orderStatus, orderTimestamp, changedAt, changedBy) " +
+               "VALUES (%d, %d, 'pending', %s, %s, %s)",
+               orderID, order.storeID, timestamp, timestamp, PizzaStore.quote(order.login)));
+            if (order.idempotencyKey != null) {
+               stmt.addBatch(String.format(
+                  "INSERT INTO OrderIdempotency (idempotencyKey, login, orderID) VALUES (%s, %s, %d)",
+                  PizzaStore.quote(order.idempotencyKey), PizzaStore.quote(order.login), orderID));
+            }//end if
+         }//end for
+         stmt.addBatch(String.format(
+            "UPDATE OrderJournalApplied SET lastSeq = %d WHERE journalID = %s AND lastSeq = %d",
+            lastSeq, PizzaStore.quote(journal.getJournalID()), previousSeq));
+
+         int[] counts = stmt.executeBatch();
+         if (counts[counts.length - 1] != 1) {
+            throw new SQLException("OrderJournalApplied moved past seq " + previousSeq);
+         }//end if
+         connection.commit();
+      } catch (SQLException e) {
+         try {
+            connection.rollback();
+         } catch (SQLException ignored) {
+            // the connection is discarded by the caller anyway
+         }//end try
+         throw e;
+      } finally {
+         stmt.close();
+      }
+      connection.setAutoCommit(true);
+   }//end apply
+
+   /* the idempotency keys of the batch that already have an order */
+   private static Set<String> usedKeys(Statement stmt, List<OrderJournal.Entry> entries) throws SQLException {
+      Set<String> used = new HashSet<String>();
+      StringBuilder keys = new StringBuilder();
+      for (OrderJournal.Entry entry : entries) {
+         if (entry.order.idempotencyKey == null) continue;
+         if (keys.length() > 0) keys.append(", ");
+         keys.append(PizzaStore.quote(entry.order.idempotencyKey));
+      }//end for
+      if (keys.length() == 0) return used;
+      ResultSet rs = stmt.executeQuery("SELECT idempotencyKey FROM OrderIdempotency WHERE idempotencyKey IN (" + keys + ")");
+      while (rs.next()) used.add(rs.getString(1));
+      rs.close();
+      return used;
+   }//end usedKeys
+
+   private void closeConnection() {
+      if (connection != null) {
+         try {
+            connection.close();
+         } catch (SQLException e) {
+            // ignored.
+         }//end try
+         connection = null;
+      }//end if
+   }//end closeConnection
+
+}//end OrderJournalDrainer
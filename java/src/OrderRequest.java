@@ -0,0 +1,93 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An order as submitted by a customer, before it has an orderID: who placed
+ * it, where, when, the line items and the total in cents.  An optional
+ * idempotency key chosen by the client identifies retries of the same
+ * submission (see OrderIdempotency).
+ */
+public final class OrderRequest {
+
+   public final String login;
+   public final int storeID;
+   public final long totalCents;
+   public final long timestampMillis;
+   public final String[] itemNames;
+   public final int[] quantities;
+   public final String idempotencyKey;
+
+   public OrderRequest(String login, int storeID, long totalCents, long timestampMillis,
+                       String[] itemNames, int[] quantities) {
+      this(login, storeID, totalCents, timestampMillis, itemNames, quantities, null);
+   }//end OrderRequest
+
+   /**
+    * @param idempotencyKey at most 64 characters naming this submission, or null
+    */
+   public OrderRequest(String login, int storeID, long totalCents, long timestampMillis,
+                       String[] itemNames, int[] quantities, String idempotencyKey) {
+      if (itemNames.length != quantities.length) {
+         throw new IllegalArgumentException("itemNames and quantities differ in length");
+      }//end if
+      if (idempotencyKey != null && (idempotencyKey.isEmpty() || idempotencyKey.length() > 64)) {
+         throw new IllegalArgumentException("idempotencyKey must be 1 to 64 characters");
+      }//end if
+      this.login = login;
+      this.storeID = storeID;
+      this.totalCents = totalCents;
+      this.timestampMillis = timestampMillis;
+      this.itemNames = itemNames;
+      this.quantities = quantities;
+      this.idempotencyKey = idempotencyKey;
+   }//end OrderRequest
+
+   public OrderRequest(String login, int storeID, long totalCents, long timestampMillis,
+                       List<String> itemNames, List<Integer> quantities) {
+      this(login, storeID, totalCents, timestampMillis,
+           itemNames.toArray(new String[0]), quantities.stream().mapToInt(Integer::intValue).toArray());
+   }//end OrderRequest
+
+   public int itemCount() {
+      return itemNames.length;
+   }//end itemCount
+
+   public void writeTo(DataOutput out) throws IOException {
+      out.writeUTF(login);
+      out.writeInt(storeID);
+      out.writeLong(totalCents);
+      out.writeLong(timestampMillis);
+      out.writeInt(itemNames.length);
+      for (int i = 0; i < itemNames.length; i++) {
+         out.writeUTF(itemNames[i]);
+         out.writeInt(quantities[i]);
+      }//end for
+      out.writeUTF(idempotencyKey == null ? "" : idempotencyKey);
+   }//end writeTo
+
+   public static OrderRequest readFrom(DataInput in) throws IOException {
+      String login = in.readUTF();
+      int storeID = in.readInt();
+      long totalCents = in.readLong();
+      long timestampMillis = in.readLong();
+      int n = in.readInt();
+      String[] itemNames = new String[n];
+      int[] quantities = new int[n];
+      for (int i = 0; i < n; i++) {
+         itemNames[i] = in.readUTF();
+         quantities[i] = in.readInt();
+      }//end for
+      String idempotencyKey = null;
+      try {
+         idempotencyKey = in.readUTF();
+      } catch (EOFException e) {
+         // written before orders had keys
+      }//end try
+      return new OrderRequest(login, storeID, totalCents, timestampMillis, itemNames, quantities,
+                              idempotencyKey == null || idempotencyKey.isEmpty() ? null : idempotencyKey);
+   }//end readFrom
+
+}//end OrderRequest
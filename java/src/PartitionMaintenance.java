@@ -0,0 +1,98 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the FoodOrder/ItemsInOrder partition maintenance functions from
+ * sql/src/create_partitions.sql on a schedule: monthly partitions are created
+ * ahead of time and completed months older than the archive horizon are moved
+ * to the archive tables.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.partitions.monthsAhead    months created in advance (default 3)
+ *   pizzastore.partitions.archiveAfter   archive horizon (default "12 months")
+ *   pizzastore.partitions.intervalHours  time between runs (default 24)
+ *   pizzastore.feed.eventRetention       OrderEvent rows kept (default "1 day")
+ *   pizzastore.idempotency.retention    OrderIdempotency keys kept (default "7 days")
+ */
+public class PartitionMaintenance {
+
+   private final PizzaStore esql;
+   private final int monthsAhead;
+   private final String archiveAfter;
+   private final long intervalHours;
+   private final String eventRetention;
+   private final String keyRetention;
+   private ScheduledExecutorService scheduler = null;
+
+   public PartitionMaintenance(PizzaStore esql) {
+      this.esql = esql;
+      this.monthsAhead = Integer.getInteger("pizzastore.partitions.monthsAhead", 3);
+      this.archiveAfter = System.getProperty("pizzastore.partitions.archiveAfter", "12 months");
+      this.intervalHours = Long.getLong("pizzastore.partitions.intervalHours", 24L);
+      this.eventRetention = System.getProperty("pizzastore.feed.eventRetention", "1 day");
+      this.keyRetention = System.getProperty("pizzastore.idempotency.retention", "7 days");
+   }//end PartitionMaintenance
+
+   /**
+    * Runs maintenance once right away and then every intervalHours on a
+    * daemon thread.
+    */
+   public synchronized void start() {
+      if (scheduler != null) return;
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "partition-maintenance");
+         t.setDaemon(true);
+         return t;
+      });
+      scheduler.scheduleWithFixedDelay(this::runOnce, 0, intervalHours, TimeUnit.HOURS);
+   }//end start
+
+   public synchronized void stop() {
+      if (scheduler != null) {
+         scheduler.shutdownNow();
+         scheduler = null;
+      }//end if
+   }//end stop
+
+   /**
+    * Creates upcoming partitions and archives old ones.  The statements
+    * run on a pooled connection in autocommit mode, never on the
+    * interactive one, so they are neither part of a user's transaction nor
+    * bound by an operation's latency budget.
+    *
+    * @return the number of months archived, or -1 if maintenance failed
+    */
+   public int runOnce() {
+      ConnectionPool pool = esql.getConnectionPool();
+      try {
+         int created = count(pool, String.format(
+            "SELECT ensure_order_partitions(current_date, %d)", monthsAhead));
+         int archived = count(pool, String.format(
+            "SELECT archive_order_partitions(interval '%s')", archiveAfter.replace("'", "''")));
+         // the order feed only needs recent OrderEvent rows
+         count(pool, String.format(
+            "SELECT prune_order_events(interval '%s')", eventRetention.replace("'", "''")));
+         // retries come within minutes; old keys only take space
+         pool.update(String.format(
+            "DELETE FROM OrderIdempotency WHERE createdAt < CURRENT_TIMESTAMP - interval '%s'",
+            keyRetention.replace("'", "''")));
+         if (created > 0 || archived > 0) {
+            System.out.printf("Partition maintenance: %d month(s) created, %d month(s) archived%n", created, archived);
+         }//end if
+         return archived;
+      } catch (SQLException e) {
+         System.err.println("Partition maintenance failed: " + e.getMessage());
+         return -1;
+      }//end try
+   }//end runOnce
+
+   /* the integer a maintenance function returns, 0 if NULL */
+   private static int count(ConnectionPool pool, String query) throws SQLException {
+      List<Integer> rows = pool.query(query, rs -> rs.getInt(1));
+      return rows.isEmpty() ? 0 : rows.get(0);
+   }//end count
+
+}//end PartitionMaintenance
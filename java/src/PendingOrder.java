@@ -0,0 +1,27 @@
+import java.util.Comparator;
+
+/**
+ * An order waiting to be prepared or delivered, as tracked by OrderFeed.
+ * Pending orders are served oldest first; ORDER_AGE breaks timestamp ties
+ * by orderID.
+ */
+public final class PendingOrder {
+
+   public static final Comparator<PendingOrder> ORDER_AGE =
+      Comparator.comparingLong((PendingOrder o) -> o.timestampMillis).thenComparingInt(o -> o.orderID);
+
+   public final int orderID;
+   public final int storeID;
+   public final long timestampMillis;
+
+   public PendingOrder(int orderID, int storeID, long timestampMillis) {
+      this.orderID = orderID;
+      this.storeID = storeID;
+      this.timestampMillis = timestampMillis;
+   }//end PendingOrder
+
+   public String toString() {
+      return "order " + orderID + " (store " + storeID + ", placed " + new java.sql.Timestamp(timestampMillis) + ")";
+   }//end toString
+
+}//end PendingOrder
@@ -17,12 +17,31 @@ import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.function.Predicate;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.lang.Math;
 
 /**
@@ -35,6 +54,90 @@ public class PizzaStore {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // set when the connection is known to be broken; the next use reopens it
+   private volatile boolean _stale = false;
+   private final Object _reconnectLock = new Object();
+
+   // session settings applied to the connection again after a reconnect
+   private final List<String> _sessionSettings = new ArrayList<String>();
+
+   // statement_timeout last set on the connection (-1 unknown) and its
+   // backend pid for pg_cancel_backend (0 unknown); see watchStatement
+   private long _statementTimeout = -1;
+   private volatile int _backendPid = 0;
+
+   // health checks and outage counts; null until startServices
+   private ConnectionMonitor _monitor = null;
+
+   // connection being made in the background (fast start), else null
+   private FutureTask<Connection> _connecting = null;
+
+   // with fast start: released once the services are started, and the
+   // error that stopped them if any; null otherwise
+   private CountDownLatch _ready = null;
+   private volatile Exception _startupError = null;
+   // the thread running the fast start, which must not wait for itself
+   private volatile Thread _starter = null;
+
+   // menu and stores served from memory in fast-start mode; null otherwise
+   private HotDataCache _hotData = null;
+
+   // connection settings, kept so background workers can open their own
+   private String _url = null;
+   private String _user = null;
+   private String _passwd = null;
+   private String _port = null;
+
+   // local order journal; when set, placeOrder accepts orders through it
+   private OrderJournal _orderJournal = null;
+
+   // data access used by the menu operations
+   private PizzaStoreBackend _backend = new JdbcBackend(this);
+
+   // live pending order queues, started on first use
+   private OrderFeed _orderFeed = null;
+
+   // driver dispatch, fed by the order feed; created on first use
+   private DispatchEngine _dispatchEngine = null;
+
+   // order shards when orders are spread over several databases, else null
+   private ShardRouter _shards = null;
+
+   // read replicas of this database, used by executeRead; null if none
+   private ReplicaSet _replicas = null;
+
+   // item popularity for suggestions in placeOrder; null if not loaded
+   private Recommender _recommender = null;
+
+   // queues order status changes for OrderStatusHistory; null if not started
+   private OrderHistoryWriter _historyWriter = null;
+
+   // extra connections for parallel reports; opened on first use
+   private ConnectionPool _connectionPool = null;
+
+   // checks logins against hashed passwords; created on first use
+   private LoginService _loginService = null;
+
+   // limits order writes per store and overall
+   private final AdmissionController _admission = new AdmissionController();
+
+   // carts being built, by session; created on first use
+   private CartStore _carts = null;
+
+   // ingredient stock per store, taken at checkout; null if not started
+   private StoreInventory _inventory = null;
+
+   // background services started by startServices
+   private final List<PartitionMaintenance> _maintenance = new ArrayList<PartitionMaintenance>();
+   private DeliveryAnalytics _analytics = null;
+   private OrderJournalDrainer _drainer = null;
+
+   // next orderID for an INSERT into FoodOrder, on any shard; see
+   // ShardRouter.seedOrderIds.  The FoodOrder primary key includes
+   // orderTimestamp and cannot catch a duplicate; FoodOrder_unique_id
+   // rejects one instead.
+   static final String NEXT_ORDER_ID_SQL = "nextval('FoodOrder_orderID_seq')";
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -58,6 +161,10 @@ public class PizzaStore {
          System.out.println ("Connection URL: " + url + "\n");
 
          // obtain a physical connection
+         this._url = url;
+         this._user = user;
+         this._passwd = passwd;
+         this._port = dbport;
          this._connection = DriverManager.getConnection(url, user, passwd);
          System.out.println("Done");
       }catch (Exception e){
@@ -67,6 +174,440 @@ public class PizzaStore {
       }//end catch
    }//end PizzaStore
 
+   /* keeps the settings only; see connectInBackground */
+   private PizzaStore(String dbname, String dbport, String user, String passwd, boolean unused) {
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._user = user;
+      this._passwd = passwd;
+      this._port = dbport;
+   }//end PizzaStore
+
+   /**
+    * Creates a PizzaStore whose driver is loaded and connection made on a
+    * background thread.  The first statement waits for the connection.
+    */
+   public static PizzaStore connectInBackground(String dbname, String dbport, String user, String passwd) {
+      final PizzaStore esql = new PizzaStore(dbname, dbport, user, passwd, false);
+      esql._connecting = new FutureTask<Connection>(() -> {
+         Class.forName ("org.postgresql.Driver");
+         return DriverManager.getConnection(esql._url, esql._user, esql._passwd);
+      });
+      Thread connector = new Thread(esql._connecting, "connect");
+      connector.setDaemon(true);
+      connector.start();
+      return esql;
+   }//end connectInBackground
+
+   /*
+    * The interactive connection, waiting for it if it is still being made
+    * and reopening it if it broke.
+    **/
+   private Connection connection() throws SQLException {
+      awaitStarted();
+      if (this._stale) reconnect();
+      if (this._connection == null && this._connecting != null) {
+         try {
+            this._connection = this._connecting.get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while connecting to database");
+         } catch (ExecutionException e) {
+            throw new SQLException("Unable to connect to database: " + e.getCause().getMessage());
+         }//end try
+      }//end if
+      return this._connection;
+   }//end connection
+
+   /*
+    * Replaces the broken interactive connection, trying
+    * pizzastore.health.reconnectAttempts times with doubling delays from
+    * 100 ms, and applies the session settings to the new connection.
+    **/
+   private void reconnect() throws SQLException {
+      synchronized (this._reconnectLock) {
+         if (!this._stale) return;
+         if (this._connection != null) {
+            try {
+               this._connection.close();
+            } catch (SQLException e) {
+               System.err.println("Closing the broken connection: " + e.getMessage());
+            }//end try
+            this._connection = null;
+         }//end if
+         int attempts = Integer.getInteger("pizzastore.health.reconnectAttempts", 7);
+         long backoff = 100;
+         SQLException last = null;
+         for (int attempt = 0; attempt < attempts; attempt++) {
+            try {
+               Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+               Statement stmt = connection.createStatement();
+               try {
+                  for (String setting : this._sessionSettings) stmt.executeUpdate(setting);
+               } finally {
+                  stmt.close();
+               }
+               this._connection = connection;
+               this._statementTimeout = -1;
+               this._backendPid = 0;
+               this._stale = false;
+               if (this._monitor != null) this._monitor.noteReconnect(true);
+               return;
+            } catch (SQLException e) {
+               last = e;
+            }//end try
+            try {
+               Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               break;
+            }//end try
+            backoff = Math.min(backoff * 2, 5000);
+         }//end for
+         if (this._monitor != null) this._monitor.noteReconnect(false);
+         throw new SQLException("Database unavailable: " + (last == null ? "interrupted" : last.getMessage()));
+      }
+   }//end reconnect
+
+   /**
+    * Marks the interactive connection stale after the database was lost,
+    * so its next use reconnects, and drops idle pooled connections.
+    */
+   void connectionsLost() {
+      this._stale = true;
+      if (this._connectionPool != null) this._connectionPool.evictIdle();
+   }//end connectionsLost
+
+   /*
+    * Checks a failed statement for a broken connection and, if so, makes
+    * the connection stale.
+    *
+    * @return whether the connection broke
+    **/
+   private boolean connectionFailed(SQLException e) {
+      if (!ConnectionMonitor.isConnectionFailure(e)) return false;
+      if (this._monitor != null) this._monitor.connectionFailed(e);
+      connectionsLost();
+      return true;
+   }//end connectionFailed
+
+   /**
+    * Runs a SET statement on the interactive connection now and again on
+    * every connection that replaces it.
+    *
+    * @throws java.sql.SQLException when the setting is refused
+    */
+   public void addSessionSetting(String sql) throws SQLException {
+      executeUpdate(sql);
+      synchronized (this) {
+         this._sessionSettings.add(sql);
+      }
+   }//end addSessionSetting
+
+   public ConnectionMonitor getConnectionMonitor() {
+      return this._monitor;
+   }//end getConnectionMonitor
+
+   /**
+    * Fast start: serves the menu and stores from the snapshot while the
+    * connection is made and startServices runs on a background thread.
+    * awaitReady() waits for both; the first statement waits by itself.
+    *
+    * @param snapshot the hot data saved by the previous run, or null
+    */
+   public void startInBackground(HotDataSnapshot snapshot) {
+      this._hotData = new HotDataCache(this, snapshot);
+      this._ready = new CountDownLatch(1);
+      Thread starter = new Thread(() -> {
+         try {
+            connection();
+            startServices(this, true);
+            this._hotData.start();
+         } catch (Exception e) {
+            this._startupError = e;
+         } finally {
+            this._ready.countDown();
+         }
+      }, "fast-start");
+      starter.setDaemon(true);
+      this._starter = starter;
+      starter.start();
+   }//end startInBackground
+
+   /**
+    * Waits until a fast start has connected and started the services.
+    *
+    * @throws java.sql.SQLException when the start failed
+    */
+   public void awaitReady() throws SQLException {
+      if (this._ready == null) return;
+      try {
+         this._ready.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while starting");
+      }//end try
+      if (this._startupError != null) {
+         throw new SQLException("Unable to start: " + this._startupError.getMessage());
+      }//end if
+   }//end awaitReady
+
+   /*
+    * Waits for a fast start to finish before the database is first used,
+    * unless called from the start itself.
+    **/
+   private void awaitStarted() throws SQLException {
+      if (this._ready != null && Thread.currentThread() != this._starter) awaitReady();
+   }//end awaitStarted
+
+   /**
+    * @return the cached menu and stores in fast-start mode, or null when
+    *         they are to be read from the database
+    */
+   public HotDataSnapshot getHotData() {
+      return this._hotData == null ? null : this._hotData.current();
+   }//end getHotData
+
+   public DeliveryAnalytics getAnalytics() {
+      return this._analytics;
+   }//end getAnalytics
+
+   /**
+    * Opens an additional physical connection to the same database, for
+    * background workers that must not share the interactive connection.
+    *
+    * @return a new connection in autocommit mode
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Connection openConnection() throws SQLException {
+      awaitStarted();
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openConnection
+
+   /**
+    * Returns the pool of extra connections to this database, creating it on
+    * first use.
+    */
+   public synchronized ConnectionPool getConnectionPool() {
+      if (this._connectionPool == null) {
+         this._connectionPool = new ConnectionPool(this);
+      }//end if
+      return this._connectionPool;
+   }//end getConnectionPool
+
+   /**
+    * Returns the login service, creating it on first use.
+    */
+   public synchronized LoginService getLoginService() {
+      if (this._loginService == null) {
+         this._loginService = new LoginService(this);
+      }//end if
+      return this._loginService;
+   }//end getLoginService
+
+   /**
+    * @return the ingredient stock checked at checkout, or null when
+    *         inventory tracking is off
+    */
+   public StoreInventory getInventory() {
+      return this._inventory;
+   }//end getInventory
+
+   public synchronized CartStore getCarts() {
+      if (this._carts == null) {
+         this._carts = new CartStore(this);
+      }//end if
+      return this._carts;
+   }//end getCarts
+
+   public AdmissionController getAdmission() {
+      return this._admission;
+   }//end getAdmission
+
+   /**
+    * @return the data access of the menu operations, once a fast start
+    *         has chosen it
+    * @throws java.sql.SQLException when the fast start failed
+    */
+   public PizzaStoreBackend getBackend() throws SQLException {
+      awaitStarted();
+      return this._backend;
+   }//end getBackend
+
+   public void setBackend(PizzaStoreBackend backend) {
+      this._backend = backend;
+   }//end setBackend
+
+   public String getPort() {
+      return this._port;
+   }//end getPort
+
+   public ReplicaSet getReplicas() {
+      return this._replicas;
+   }//end getReplicas
+
+   public void setReplicas(ReplicaSet replicas) {
+      this._replicas = replicas;
+   }//end setReplicas
+
+   /**
+    * Read-only work run by executeRead against a replica or this database.
+    */
+   public interface ReadWork<T> {
+      T run(PizzaStore db) throws SQLException;
+   }
+
+   /**
+    * Runs read-only work on a replica of this database when one is usable
+    * (see ReplicaSet), otherwise on this database.  If the replica fails,
+    * the work is run again here.
+    *
+    * @param work the queries to run, issued through the given PizzaStore
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the query failed on this database
+    */
+   public <T> T executeRead (ReadWork<T> work) throws SQLException {
+      PizzaStore replica = this._replicas == null ? null : this._replicas.choose();
+      if (replica != null) {
+         try {
+            return work.run(replica);
+         } catch (SQLException e) {
+            // a slow read would be as slow here
+            if (LatencyBudget.isExceeded(e)) throw e;
+            this._replicas.markFailed(replica);
+         }//end try
+      }//end if
+      return work.run(this);
+   }//end executeRead
+
+   /*
+    * Records a write so that executeRead keeps reading from this database
+    * until the replicas have caught up.
+    **/
+   private void noteWrite() {
+      if (this._replicas != null) this._replicas.noteWrite();
+   }//end noteWrite
+
+   public Recommender getRecommender() {
+      return this._recommender;
+   }//end getRecommender
+
+   public void setRecommender(Recommender recommender) {
+      this._recommender = recommender;
+   }//end setRecommender
+
+   public OrderHistoryWriter getHistoryWriter() {
+      return this._historyWriter;
+   }//end getHistoryWriter
+
+   public void setHistoryWriter(OrderHistoryWriter historyWriter) {
+      this._historyWriter = historyWriter;
+   }//end setHistoryWriter
+
+   public ShardRouter getShards() {
+      return this._shards;
+   }//end getShards
+
+   /**
+    * Spreads orders over the router's shards, this database being shard 0.
+    */
+   public void setShards(ShardRouter shards) {
+      this._shards = shards;
+      this._backend = new ShardedBackend(shards);
+   }//end setShards
+
+   /**
+    * @return the database holding the store's orders
+    */
+   public PizzaStore shardForStore(int storeID) {
+      return this._shards == null ? this : this._shards.forStore(storeID);
+   }//end shardForStore
+
+   /**
+    * @return the database holding the order
+    */
+   public PizzaStore shardForOrder(int orderID) {
+      return this._shards == null ? this : this._shards.forOrder(orderID);
+   }//end shardForOrder
+
+   /**
+    * @return every database holding orders, this one first
+    */
+   public List<PizzaStore> allShards() {
+      return this._shards == null ? Collections.singletonList(this) : this._shards.all();
+   }//end allShards
+
+   /**
+    * Method to execute an update on a reference table (Users, Items, Store),
+    * which is copied to every order shard.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows changed
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeReferenceUpdate (String sql) throws SQLException {
+      if (this._hotData != null) this._hotData.refreshSoon();
+      return this._shards == null ? executeUpdateCount(sql) : this._shards.broadcastUpdate(sql);
+   }//end executeReferenceUpdate
+
+   /**
+    * Method to list orderIDs, most recent first, from all order shards.
+    *
+    * @param condition an SQL condition on AllFoodOrders, or null for all orders
+    * @param limit the maximum number of ids, or 0 for no limit
+    * @return the matching orderIDs
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int[] newestOrderIDs (String condition, int limit) throws SQLException {
+      if (this._shards != null) return this._shards.newestOrderIDs(condition, limit);
+      final String query = "SELECT orderID FROM AllFoodOrders" +
+         (condition == null ? "" : " WHERE " + condition) +
+         " ORDER BY orderTimestamp DESC" + (limit > 0 ? " LIMIT " + limit : "");
+      return executeRead(db -> db.executeQueryForIntColumn(query));
+   }//end newestOrderIDs
+
+   public OrderJournal getOrderJournal() {
+      return this._orderJournal;
+   }//end getOrderJournal
+
+   public void setOrderJournal(OrderJournal journal) {
+      this._orderJournal = journal;
+   }//end setOrderJournal
+
+   /**
+    * Returns the order feed, subscribing to order_events on first use.
+    *
+    * @throws java.sql.SQLException when the feed cannot be started
+    */
+   public synchronized OrderFeed getOrderFeed() throws SQLException {
+      if (this._orderFeed == null) {
+         OrderFeed feed = new OrderFeed(this);
+         feed.start();
+         this._orderFeed = feed;
+      }//end if
+      return this._orderFeed;
+   }//end getOrderFeed
+
+   /**
+    * Returns the dispatch engine, creating it on first use from the order
+    * feed's pending orders minus those that already have a driver.
+    *
+    * @throws java.sql.SQLException when the feed cannot be started
+    */
+   public synchronized DispatchEngine getDispatchEngine() throws SQLException {
+      if (this._dispatchEngine == null) {
+         DispatchEngine engine = new DispatchEngine();
+         engine.attach(getOrderFeed());
+         String assignedQuery =
+            "SELECT da.orderID, da.storeID FROM DriverAssignment da JOIN FoodOrder f ON f.orderID = da.orderID " +
+            "WHERE f.orderStatus = 'pending'";
+         for (int[] row : executeQueryAndMap(assignedQuery, rs -> new int[] { rs.getInt(1), rs.getInt(2) })) {
+            engine.complete(row[0], row[1]);
+         }
+         this._dispatchEngine = engine;
+      }//end if
+      return this._dispatchEngine;
+   }//end getDispatchEngine
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -75,15 +616,176 @@ public class PizzaStore {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      executeUpdateCount (sql);
+   }//end executeUpdate
+
+   /**
+    * Method to execute an update SQL statement and report how many rows it
+    * changed.
+    *
+    * @param sql the input SQL string
+    * @return the number of rows inserted, updated or deleted
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdateCount (String sql) throws SQLException {
+      noteWrite();
+      Tracer.Span span = Tracer.startStatement(sql);
+      LatencyBudget.Guard guard = null;
+      try {
+         Statement stmt = connection().createStatement ();
+         try {
+            guard = watchStatement(stmt);
+            int count = stmt.executeUpdate (sql);
+            span.rows(count);
+            return count;
+         } finally {
+            closeStatement(stmt);
+         }
+      } catch (SQLException e) {
+         SQLException reported = guard == null ? e : guard.translate(e);
+         span.error(reported);
+         // a write is not retried: it may have been applied
+         connectionFailed(reported);
+         throw reported;
+      } finally {
+         if (guard != null) guard.close();
+         span.close();
+      }
+   }//end executeUpdateCount
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Work run by executeInTransaction.
+    */
+   public interface TransactionWork<T> {
+      T run() throws SQLException;
+   }
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   /**
+    * Runs the given statements as one transaction on this connection: all of
+    * them are committed, or on any error all are rolled back.
+    *
+    * @param work the statements to run, issued through this PizzaStore
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when a statement or the commit failed
+    */
+   public <T> T executeInTransaction (TransactionWork<T> work) throws SQLException {
+      noteWrite();
+      Tracer.Span span = Tracer.startSpan("transaction");
+      try {
+         connection().setAutoCommit(false);
+         try {
+            T result = work.run();
+            connection().commit();
+            return result;
+         } catch (SQLException e) {
+            span.error(e);
+            // a lost connection has rolled the transaction back already
+            if (!connectionFailed(e)) this._connection.rollback();
+            throw e;
+         } catch (RuntimeException e) {
+            span.error(e);
+            this._connection.rollback();
+            throw e;
+         } finally {
+            if (!this._stale) this._connection.setAutoCommit(true);
+         }
+      } finally {
+         span.close();
+      }
+   }//end executeInTransaction
+
+   /*
+    * Reads a result set; see runQuery.
+    **/
+   private interface ResultSetReader<T> {
+      T read(ResultSet rs) throws SQLException;
+   }
+
+   /*
+    * Runs a query and reads its result.  If the connection broke, a SELECT
+    * outside a transaction is idempotent, so it is run once more on a new
+    * connection; anything else fails as before.
+    **/
+   private <T> T runQuery (String query, ResultSetReader<T> reader) throws SQLException {
+      try {
+         return runQueryOnce(query, reader);
+      } catch (SQLException e) {
+         boolean inTransaction = this._connection != null && !this._connection.getAutoCommit();
+         if (!connectionFailed(e) || inTransaction || !query.trim().regionMatches(true, 0, "SELECT", 0, 6)) {
+            throw e;
+         }//end if
+         return runQueryOnce(query, reader);
+      }//end try
+   }//end runQuery
+
+   private <T> T runQueryOnce (String query, ResultSetReader<T> reader) throws SQLException {
+      Tracer.Span span = Tracer.startStatement(query);
+      LatencyBudget.Guard guard = null;
+      try {
+         Statement stmt = connection().createStatement ();
+         try {
+            guard = watchStatement(stmt);
+            return reader.read(Tracer.countRows(stmt.executeQuery (query), span));
+         } finally {
+            closeStatement(stmt);
+         }
+      } catch (SQLException e) {
+         SQLException reported = guard == null ? e : guard.translate(e);
+         span.error(reported);
+         throw reported;
+      } finally {
+         if (guard != null) guard.close();
+         span.close();
+      }
+   }//end runQueryOnce
+
+   /*
+    * Puts the next statement on the interactive connection under the
+    * latency budget of the current operation (see LatencyBudget).
+    * statement_timeout follows the budget; it is only changed outside a
+    * transaction, where a rollback cannot undo it.  The backend pid is
+    * read once per connection for cancelStatement.
+    **/
+   private LatencyBudget.Guard watchStatement (Statement stmt) throws SQLException {
+      LatencyBudget.Budget budget = LatencyBudget.current();
+      long timeout = budget == null ? 0 : budget.limitMillis();
+      if (timeout != this._statementTimeout && this._connection.getAutoCommit()) {
+         stmt.executeUpdate("SET statement_timeout = " + timeout);
+         this._statementTimeout = timeout;
+      }//end if
+      if (timeout > 0 && this._backendPid == 0) {
+         ResultSet rs = stmt.executeQuery("SELECT pg_backend_pid()");
+         if (rs.next()) this._backendPid = rs.getInt(1);
+         rs.close();
+      }//end if
+      return LatencyBudget.watch(this::cancelStatement);
+   }//end watchStatement
+
+   /*
+    * Cancels the statement running on the interactive connection.  Called
+    * by the LatencyBudget watchdog; the cancel goes over a pooled
+    * connection since the driver has no Statement.cancel().
+    **/
+   private void cancelStatement () {
+      int pid = this._backendPid;
+      if (pid == 0) return;
+      try {
+         getConnectionPool().query("SELECT pg_cancel_backend(" + pid + ")", rs -> rs.getBoolean(1));
+      } catch (SQLException e) {
+         System.err.println("Cancelling a statement over its budget: " + e.getMessage());
+      }//end try
+   }//end cancelStatement
+
+   /*
+    * Closes a statement whose connection may be broken.
+    **/
+   private static void closeStatement (Statement stmt) {
+      try {
+         stmt.close ();
+      } catch (SQLException e) {
+         // the connection is gone, and the statement with it
+      }//end try
+   }//end closeStatement
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -95,23 +797,18 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
+      return runQuery(query, rs -> {
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
 		 if(outputHeader){
 			for(int i = 1; i <= numCol; i++){
 			System.out.print(rsmd.getColumnName(i) + "\t");
@@ -119,13 +816,13 @@ public class PizzaStore {
 			System.out.println();
 			outputHeader = false;
 		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         return rowCount;
+      });
    }//end executeQuery
 
    /**
@@ -138,115 +835,264 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
+      return runQuery(query, rs -> {
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and saves the data returned by the query.
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+           List<String> record = new ArrayList<String>();
 		for (int i=1; i<=numCol; ++i)
 			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+           result.add(record);
+         }//end while
+         return result;
+      });
    }//end executeQueryAndReturnResult
 
+   /**
+    * Maps the current row of a result set to a typed value.  Implementations
+    * should read columns with the typed getters (getInt, getLong,
+    * getBigDecimal, ...) so that no intermediate strings are created.
+    */
+   public interface RowMapper<T> {
+      T mapRow(ResultSet rs) throws SQLException;
+   }
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * method issues the query to the DBMS and maps every returned row with
+    * the given mapper.
     *
     * @param query the input query string
-    * @return the number of rows returned
+    * @param mapper converts one row into a typed value
+    * @return the mapped rows in result set order
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
+   public <T> List<T> executeQueryAndMap (String query, RowMapper<T> mapper) throws SQLException {
+      return runQuery(query, rs -> {
+         List<T> result = new ArrayList<T>();
+         while (rs.next()){
+            result.add(mapper.mapRow(rs));
+         }//end while
+         return result;
+      });
+   }//end executeQueryAndMap
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to execute a query and map only its first row.
+    *
+    * @param query the input query string
+    * @param mapper converts one row into a typed value
+    * @return the mapped first row, or null if the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T executeQueryForObject (String query, RowMapper<T> mapper) throws SQLException {
+      return runQuery(query, rs -> rs.next() ? mapper.mapRow(rs) : null);
+   }//end executeQueryForObject
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to execute a query returning a single integer value, such as a
+    * COUNT(*) or MAX(orderID).
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @param query the input query string
+    * @param defaultValue returned when there is no row or the value is NULL
+    * @return the first column of the first row
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public int executeQueryForInt (String query, int defaultValue) throws SQLException {
+      return runQuery(query, rs -> {
+         if (!rs.next()) return defaultValue;
+         int value = rs.getInt(1);
+         return rs.wasNull() ? defaultValue : value;
+      });
+   }//end executeQueryForInt
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   /**
+    * Method to execute a query and collect its first column into a primitive
+    * int array, e.g. a list of orderIDs.
+    *
+    * @param query the input query string
+    * @return the first column of every row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int[] executeQueryForIntColumn (String query) throws SQLException {
+      return runQuery(query, rs -> {
+         int[] column = new int[16];
+         int size = 0;
+         while (rs.next()){
+            if (size == column.length) column = Arrays.copyOf(column, size * 2);
+            column[size++] = rs.getInt(1);
+         }//end while
+         return Arrays.copyOf(column, size);
+      });
+   }//end executeQueryForIntColumn
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to execute a query and collect its first column, a decimal(10,2)
+    * money value, into a primitive array of cents.
+    *
+    * @param query the input query string
+    * @return the first column of every row in cents
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
-   }//end cleanup
+   public long[] executeQueryForCentsColumn (String query) throws SQLException {
+      return runQuery(query, rs -> {
+         long[] column = new long[16];
+         int size = 0;
+         while (rs.next()){
+            if (size == column.length) column = Arrays.copyOf(column, size * 2);
+            column[size++] = toCents(rs.getBigDecimal(1));
+         }//end while
+         return Arrays.copyOf(column, size);
+      });
+   }//end executeQueryForCentsColumn
 
    /**
-    * The main execution method
+    * Looks up the role of a user through the backend.  Users.role is
+    * char(20), so the value is trimmed once instead of at every call site.
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    * @param login the user login
+    * @return the trimmed role, or null if the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public static void main (String[] args) {
-      if (args.length != 3) {
-         System.err.println (
-            "Usage: " +
-            "java [-classpath <classpath>] " +
-            PizzaStore.class.getName () +
-            " <dbname> <port> <user>");
-         return;
+   public String getUserRole (String login) throws SQLException {
+      //until a fast start is done, known roles come from the snapshot
+      if (this._ready != null && this._ready.getCount() > 0) {
+         HotDataSnapshot hot = getHotData();
+         if (hot != null && hot.roles.containsKey(login)) return hot.roles.get(login);
+      }//end if
+      return getBackend().getUserRole(login);
+   }//end getUserRole
+
+   /**
+    * Converts a decimal(10,2) money value to cents.
+    */
+   public static long toCents(BigDecimal amount) {
+      return amount == null ? 0L : amount.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValue();
+   }//end toCents
+
+   /**
+    * Quotes a value as an SQL string literal, doubling embedded quotes
+    * (e.g. Meat Lover's Pizza).  null becomes NULL.
+    */
+   public static String quote(String value) {
+      if (value == null) return "NULL";
+      return "'" + value.replace("'", "''") + "'";
+   }//end quote
+
+   /**
+    * Formats cents as a decimal literal usable in SQL and in output, e.g. 1099 -> "10.99".
+    */
+   public static String formatCents(long cents) {
+      return BigDecimal.valueOf(cents, 2).toPlainString();
+   }//end formatCents
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query) throws SQLException {
+       return runQuery(query, rs -> {
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          return rowCount;
+       });
+   }
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(String sequence) throws SQLException {
+	return runQuery(String.format("Select currval('%s')", sequence),
+		rs -> rs.next() ? rs.getInt(1) : -1);
+   }
+
+   /**
+    * Method to close the physical connection if it is open.
+    */
+   public void cleanup(){
+      if (this._orderFeed != null){
+         this._orderFeed.stop();
+      }//end if
+      if (this._replicas != null){
+         this._replicas.close();
+      }//end if
+      if (this._loginService != null){
+         this._loginService.close();
+      }//end if
+      if (this._connectionPool != null){
+         this._connectionPool.close();
+      }//end if
+      try{
+         if (this._connection == null && this._connecting != null && this._connecting.isDone()){
+            connection();
+         }//end if
+         if (this._connection != null){
+            this._connection.close ();
+         }//end if
+      }catch (SQLException e){
+         System.err.println("Error closing the database connection: " + e.getMessage());
+      }//end try
+   }//end cleanup
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PizzaStore.class.getName () +
+            " <dbname> <port> <user>");
+         return;
       }//end if
 
       Greeting();
       PizzaStore esql = null;
+      File hotDataSnapshot = hotDataSnapshot();
       try{
-         // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the PizzaStore object and creates a physical
-         // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new PizzaStore (dbname, dbport, user, "");
+         if (Boolean.getBoolean("pizzastore.fastStart")) {
+            // the menus come up at once; the connection and services start
+            // in the background and the menu and stores are read from the
+            // snapshot of the last run
+            esql = PizzaStore.connectInBackground(dbname, dbport, user, "");
+            esql.startInBackground(HotDataSnapshot.load(hotDataSnapshot));
+         } else {
+            // use postgres JDBC driver.
+            Class.forName ("org.postgresql.Driver");
+            // instantiate the PizzaStore object and creates a physical
+            // connection.
+            esql = new PizzaStore (dbname, dbport, user, "");
+            startServices(esql, false);
+         }//end if
 
          boolean keepon = true;
          while(keepon) {
@@ -257,12 +1103,23 @@ public class PizzaStore {
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
+            int choice = readChoice();
+            //every operation is a trace, with a span per statement, and has
+            //a latency budget for its statements
+            String operationName = choice == 1 ? "CreateUser" : choice == 2 ? "LogIn" : "mainMenu";
+            Tracer.Span operation = Tracer.startTrace(operationName);
+            LatencyBudget.Budget budget = LatencyBudget.start(operationName);
+            try {
+               switch (choice){
+                  case 1: CreateUser(esql); break;
+                  case 2: authorisedUser = LogIn(esql); break;
+                  case 9: keepon = false; break;
+                  default : System.out.println("Unrecognized choice!"); break;
+               }//end switch
+            } finally {
+               budget.close();
+               operation.close();
+            }
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
@@ -276,33 +1133,53 @@ public class PizzaStore {
                 System.out.println("6. View Past 5 Order IDs");
                 System.out.println("7. View Order Information"); //user should specify orderID and then be able to see detailed information about the order
                 System.out.println("8. View Stores"); 
+                System.out.println("14. Review a Store");
 
                 //**the following functionalities should only be able to be used by drivers & managers**
                 System.out.println("9. Update Order Status");
+                System.out.println("12. Watch Store Orders");
+                System.out.println("13. Dispatch Orders");
 
                 //**the following functionalities should ony be able to be used by managers**
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
+                System.out.println("15. Delivery Time Report");
+                System.out.println("16. Store Sales Report");
+                System.out.println("17. Export Orders");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewProfile(esql); break;
-                   case 2: updateProfile(esql); break;
-                   case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql); break;
-                   case 5: viewAllOrders(esql); break;
-                   case 6: viewRecentOrders(esql); break;
-                   case 7: viewOrderInfo(esql); break;
-                   case 8: viewStores(esql); break;
-                   case 9: updateOrderStatus(esql); break;
-                   case 10: updateMenu(esql); break;
-                   case 11: updateUser(esql); break;
-
-
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                int userChoice = readChoice();
+                Tracer.Span userOperation = Tracer.startTrace(operationName(userChoice));
+                LatencyBudget.Budget userBudget = LatencyBudget.start(operationName(userChoice));
+                try {
+                   switch (userChoice){
+                      case 1: viewProfile(esql); break;
+                      case 2: updateProfile(esql); break;
+                      case 3: viewMenu(esql); break;
+                      case 4: placeOrder(esql); break;
+                      case 5: viewAllOrders(esql); break;
+                      case 6: viewRecentOrders(esql); break;
+                      case 7: viewOrderInfo(esql); break;
+                      case 8: viewStores(esql); break;
+                      case 9: updateOrderStatus(esql); break;
+                      case 10: updateMenu(esql); break;
+                      case 11: updateUser(esql); break;
+                      case 12: watchStoreOrders(esql); break;
+                      case 13: dispatchOrders(esql); break;
+                      case 14: reviewStore(esql); break;
+                      case 15: deliveryTimeReport(esql, esql.getAnalytics()); break;
+                      case 16: storeSalesReport(esql); break;
+                      case 17: exportOrders(esql); break;
+
+
+
+                      case 20: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                } finally {
+                   userBudget.close();
+                   userOperation.close();
                 }
               }
             }
@@ -313,16 +1190,178 @@ public class PizzaStore {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               stopServices(esql);
+               if(esql._hotData != null) {
+                  esql._hotData.stop();
+                  esql._hotData.save(hotDataSnapshot);
+               }//end if
                System.out.print("Disconnecting from database...");
+               if(esql.getShards() != null) {
+                  esql.getShards().close();
+               }//end if
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
-            // ignored.
+            System.err.println("Error during shutdown: " + e.getMessage());
          }//end try
       }//end try
    }//end main
 
+   /*
+    * Names the trace and latency budget of a user menu choice after the
+    * method it runs.
+    **/
+   private static String operationName(int choice) {
+      switch (choice) {
+         case 1: return "viewProfile";
+         case 2: return "updateProfile";
+         case 3: return "viewMenu";
+         case 4: return "placeOrder";
+         case 5: return "viewAllOrders";
+         case 6: return "viewRecentOrders";
+         case 7: return "viewOrderInfo";
+         case 8: return "viewStores";
+         case 9: return "updateOrderStatus";
+         case 10: return "updateMenu";
+         case 11: return "updateUser";
+         case 12: return "watchStoreOrders";
+         case 13: return "dispatchOrders";
+         case 14: return "reviewStore";
+         case 15: return "deliveryTimeReport";
+         case 16: return "storeSalesReport";
+         case 17: return "exportOrders";
+         default: return "userMenu";
+      }//end switch
+   }//end operationName
+
+   /*
+    * Connects the shards and replicas and starts the background services.
+    * quiet leaves out progress messages, for a start in the background.
+    **/
+   private static void startServices(PizzaStore esql, boolean quiet) throws Exception {
+      // with -Dpizzastore.extraShards orders are spread over several databases
+      ShardRouter shards = ShardRouter.fromProperties(esql, esql._user, esql._passwd);
+      if (shards != null) {
+         esql.setShards(shards);
+      }//end if
+      // new orderIDs come from a sequence per database, above every id used
+      ShardRouter.seedOrderIds(esql.allShards());
+
+      // read-only menu operations use -Dpizzastore.replicas.<port> when set
+      for (PizzaStore shard : esql.allShards()) {
+         shard.setReplicas(ReplicaSet.fromProperties(shard.getPort(), esql._user, esql._passwd));
+      }//end for
+
+      // every database is checked in the background; a lost connection
+      // is reopened on its next use
+      for (PizzaStore shard : esql.allShards()) {
+         shard._monitor = new ConnectionMonitor(shard);
+         shard._monitor.start();
+      }//end for
+
+      // suggestions in placeOrder come from a model kept in memory and
+      // saved to -Dpizzastore.recommender.snapshot at exit
+      if (!quiet) System.out.print("Loading recommendations...");
+      Recommender recommender = Recommender.load(recommenderSnapshot(), esql.allShards().size());
+      int newOrders = recommender.catchUp(esql.allShards());
+      esql.setRecommender(recommender);
+      if (!quiet) System.out.println("Done (" + newOrders + " new orders)");
+
+      // logins that do not exist are turned away by a filter loaded here
+      esql.getLoginService().preload();
+
+      // keeps order partitions created ahead and archives old months
+      for (PizzaStore shard : esql.allShards()) {
+         PartitionMaintenance shardMaintenance = new PartitionMaintenance(shard);
+         shardMaintenance.start();
+         esql._maintenance.add(shardMaintenance);
+      }//end for
+
+      // status changes are logged to OrderStatusHistory in the background
+      // and folded into delivery time percentiles periodically
+      OrderHistoryWriter historyWriter = new OrderHistoryWriter(esql);
+      historyWriter.start();
+      esql.setHistoryWriter(historyWriter);
+      esql._analytics = new DeliveryAnalytics(esql.allShards());
+      esql._analytics.start();
+
+      // checkout takes ingredients from counters in memory; what was
+      // taken is written back in batches
+      StoreInventory inventory = new StoreInventory(esql);
+      inventory.start();
+      esql._inventory = inventory;
+
+      // with -Dpizzastore.journal.dir orders are journaled locally first
+      // and saved to the database in the background.  The drainer writes
+      // to a single database, so the journal is not used with shards.
+      String journalDir = System.getProperty("pizzastore.journal.dir");
+      if (journalDir != null && shards != null) {
+         System.out.println("Order journal disabled: not supported with extra shards.");
+      } else if (journalDir != null) {
+         int journalBytes = Integer.getInteger("pizzastore.journal.sizeMB", 64) << 20;
+         esql.setOrderJournal(OrderJournal.open(new File(journalDir), journalBytes));
+         esql._drainer = new OrderJournalDrainer(esql, esql.getOrderJournal());
+         esql._drainer.start();
+         // orders are taken while the database is away, so placeOrder
+         // checks stores, users and items against the hot data
+         if (esql._hotData == null) {
+            esql._hotData = new HotDataCache(esql, HotDataSnapshot.load(hotDataSnapshot()));
+            esql._hotData.start();
+         }//end if
+      }//end if
+   }//end startServices
+
+   /*
+    * Stops the background services, saving what they hold in memory.  A
+    * fast start still under way is given a few seconds to finish first.
+    **/
+   private static void stopServices(PizzaStore esql) throws IOException, InterruptedException {
+      if (esql._ready != null) {
+         esql._ready.await(5, TimeUnit.SECONDS);
+      }//end if
+      for (PartitionMaintenance shardMaintenance : esql._maintenance) {
+         shardMaintenance.stop();
+      }//end for
+      if(esql._analytics != null) {
+         esql._analytics.stop();
+      }//end if
+      if(esql.getHistoryWriter() != null) {
+         esql.getHistoryWriter().stop(5000);
+      }//end if
+      if(esql._inventory != null) {
+         esql._inventory.stop();
+      }//end if
+      if(esql._drainer != null) {
+         System.out.print("Saving journaled orders...");
+         esql._drainer.stop(5000);
+         esql.getOrderJournal().close();
+         System.out.println("Done");
+         if (esql._drainer.rejectedCount() > 0) {
+            System.out.println(esql._drainer.rejectedCount() + " journaled order(s) could not be saved; see OrderJournalRejected.");
+         }//end if
+      }//end if
+      if(esql.getRecommender() != null) {
+         esql.getRecommender().save(recommenderSnapshot());
+      }//end if
+      Tracer.flush(2000);
+      for (PizzaStore shard : esql.allShards()) {
+         if (shard._monitor == null) continue;
+         shard._monitor.stop();
+         if (shard._monitor.hadOutages()) {
+            System.out.println("Database on port " + shard.getPort() + ": " + shard._monitor.status());
+         }//end if
+      }//end for
+   }//end stopServices
+
+   private static File hotDataSnapshot() {
+      return new File(System.getProperty("pizzastore.hotdata.snapshot", "hotdata.snapshot"));
+   }//end hotDataSnapshot
+
+   private static File recommenderSnapshot() {
+      return new File(System.getProperty("pizzastore.recommender.snapshot", "recommendations.snapshot"));
+   }//end recommenderSnapshot
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -359,8 +1398,7 @@ public static void CreateUser(PizzaStore esql){
          String login = in.readLine();
          
          //check if user already exists
-         String checkQuery = String.format("SELECT * FROM Users WHERE login = '%s'", login);
-         if(esql.executeQuery(checkQuery) > 0) {
+         if(esql.getUserRole(login) != null) {
             System.out.println("User already exists!");
             return;
          }
@@ -381,9 +1419,11 @@ public static void CreateUser(PizzaStore esql){
          }
          
          //insert new user
-         String query = String.format("INSERT INTO Users (login, password, role, phoneNum) VALUES ('%s', '%s', '%s', '%s')",
-                                    login, password, role, phoneNum);
-         esql.executeUpdate(query);
+         if(!esql.getBackend().createUser(login, password, role, phoneNum)) {
+            System.out.println("User already exists!");
+            return;
+         }
+         esql.getLoginService().noteLogin(login);
          System.out.println("User successfully created!");
          
       } catch(Exception e) {
@@ -405,14 +1445,20 @@ public static String LogIn(PizzaStore esql){
          System.out.print("\tEnter password: ");
          String password = in.readLine();
          
-         //check credentials
-         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
-         if(esql.executeQuery(query) > 0) {
-            System.out.println("Login successful!");
-            return login;
-         } else {
-            System.out.println("Invalid login or password!");
-            return null;
+         //check credentials against the salted hash, throttled per login
+         switch(esql.getLoginService().authenticate(login, password)) {
+            case OK:
+               System.out.println("Login successful!");
+               return login;
+            case THROTTLED:
+               System.out.println("Too many failed attempts! Please try again later.");
+               return null;
+            case BUSY:
+               System.out.println("Login service is busy! Please try again.");
+               return null;
+            default:
+               System.out.println("Invalid login or password!");
+               return null;
          }
          
       } catch(Exception e) {
@@ -491,9 +1537,13 @@ public static void updateProfile(PizzaStore esql){
                return;
          }
          
-         String query = String.format("UPDATE Users SET %s = '%s' WHERE login = '%s'", 
-                                    updateField, newValue, login);
-         esql.executeUpdate(query);
+         //passwords are only stored hashed
+         String query = updateField.equals("password")
+            ? String.format("UPDATE Users SET passwordHash = %s, password = NULL WHERE login = %s",
+                            quote(LoginService.hashPassword(newValue)), quote(login))
+            : String.format("UPDATE Users SET %s = '%s' WHERE login = '%s'", 
+                            updateField, newValue, login);
+         esql.executeReferenceUpdate(query);
          System.out.println("Profile updated successfully!");
          
       } catch(Exception e) {
@@ -515,6 +1565,11 @@ public static void updateProfile(PizzaStore esql){
             
             int choice = Integer.parseInt(in.readLine());
             String query = "";
+            //in fast-start mode the same view is served from memory
+            HotDataSnapshot hot = esql.getHotData();
+            Predicate<MenuItem> filter = item -> true;
+            Comparator<MenuItem> order = Comparator.comparing((MenuItem item) -> item.typeOfItem)
+                                                   .thenComparing(item -> item.itemName);
             
             if(choice == 6) {
                return;
@@ -522,33 +1577,46 @@ public static void updateProfile(PizzaStore esql){
             
             switch(choice) {
                case 1:
-                  query = "SELECT itemName, typeOfItem, price, description FROM Items ORDER BY typeOfItem, itemName";
+                  query = "SELECT itemName, typeOfItem, price, description FROM Items WHERE NOT retired ORDER BY typeOfItem, itemName";
                   break;
                   
                case 2: //small bug where you it is displaying "typeofItem" and you have to hit space before entering the type in order to get the list
                   System.out.println("\nAvailable types:");
-                  String typeQuery = "SELECT DISTINCT typeOfItem FROM Items ORDER BY typeOfItem";
-                  esql.executeQueryAndPrintResult(typeQuery);
+                  if(hot != null) {
+                     Set<String> types = new TreeSet<>();
+                     for (MenuItem item : hot.items) types.add(item.typeOfItem);
+                     System.out.println("typeofitem");
+                     for (String t : types) System.out.println(t);
+                  } else {
+                     String typeQuery = "SELECT DISTINCT typeOfItem FROM Items WHERE NOT retired ORDER BY typeOfItem";
+                     esql.executeRead(db -> db.executeQueryAndPrintResult(typeQuery));
+                  }
                   
                   System.out.print("\nEnter type to filter by: ");
                   String type = in.readLine();
                   
-                  query = String.format("SELECT itemName, typeOfItem, price, description FROM Items WHERE typeOfItem = '%s' ORDER BY itemName", type);
+                  query = String.format("SELECT itemName, typeOfItem, price, description FROM Items WHERE typeOfItem = '%s' AND NOT retired ORDER BY itemName", type);
+                  filter = item -> item.typeOfItem.equals(type.trim());
+                  order = Comparator.comparing(item -> item.itemName);
                   break;
                   
                case 3:
                   System.out.print("\nEnter maximum price: $");
                   double maxPrice = Double.parseDouble(in.readLine());
                   
-                  query = String.format("SELECT itemName, typeOfItem, price, description FROM Items WHERE price <= %.2f ORDER BY typeOfItem, itemName", maxPrice);
+                  query = String.format("SELECT itemName, typeOfItem, price, description FROM Items WHERE price <= %.2f AND NOT retired ORDER BY typeOfItem, itemName", maxPrice);
+                  long maxCents = Math.round(maxPrice * 100);
+                  filter = item -> item.priceCents <= maxCents;
                   break;
                   
                case 4:
-                  query = "SELECT itemName, typeOfItem, price, description FROM Items ORDER BY price ASC";
+                  query = "SELECT itemName, typeOfItem, price, description FROM Items WHERE NOT retired ORDER BY price ASC";
+                  order = Comparator.comparingLong(item -> item.priceCents);
                   break;
                   
                case 5:
-                  query = "SELECT itemName, typeOfItem, price, description FROM Items ORDER BY price DESC";
+                  query = "SELECT itemName, typeOfItem, price, description FROM Items WHERE NOT retired ORDER BY price DESC";
+                  order = Comparator.comparingLong((MenuItem item) -> item.priceCents).reversed();
                   break;
                   
                default:
@@ -558,7 +1626,18 @@ public static void updateProfile(PizzaStore esql){
             
             System.out.println("\nMenu Items:");
             System.out.println("----------------------------------------");
-            esql.executeQueryAndPrintResult(query);
+            if(hot != null) {
+               List<MenuItem> items = new ArrayList<>();
+               for (MenuItem item : hot.items) {
+                  if(filter.test(item)) items.add(item);
+               }
+               items.sort(order);
+               System.out.println("itemname\ttypeofitem\tprice\tdescription");
+               for (MenuItem item : items) System.out.println(item);
+            } else {
+               final String menuQuery = query;
+               esql.executeRead(db -> db.executeQueryAndPrintResult(menuQuery));
+            }
             System.out.println("\nPress Enter to continue...");
             in.readLine();
          }
@@ -594,12 +1673,23 @@ public static void updateProfile(PizzaStore esql){
          System.out.print("\nEnter store ID: ");
          int storeID = Integer.parseInt(in.readLine());
 
-         String isOpen = String.format("SELECT isOpen FROM Store WHERE storeID = %o", storeID);
-         List<List<String>> isOpenResult = esql.executeQueryAndReturnResult(isOpen); // store result in nested list and grab the first element of the first list
-         String checkIsOpen = isOpenResult.get(0).get(0).trim();
-         System.out.println(checkIsOpen);
-         
-         if (checkIsOpen.equals("no")) {
+         //with the order journal an order is taken while the database is
+         //away, so the store, user and menu come from the hot data
+         HotDataSnapshot hot = esql.getOrderJournal() != null ? esql.getHotData() : null;
+         StoreInfo store = null;
+         if(hot != null) {
+            for (StoreInfo known : hot.stores) {
+               if(known.storeID == storeID) store = known;
+            }
+         } else {
+            store = esql.getBackend().getStore(storeID);
+         }
+
+         if (store == null) {
+            System.out.println("Store ID not found!");
+            return;
+         }
+         if (!store.isOpen) {
             System.out.println("Sorry. The store you have entered is not open.");
             return;
          }
@@ -632,325 +1722,919 @@ public static void updateProfile(PizzaStore esql){
          System.out.print("\tEnter Login Name: ");
          String current_user = in.readLine();
 
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", current_user);
-         //List<List<String>> current_user = esql.executeQueryAndReturnResult(roleCheckQuery);
+         boolean knownUser = hot != null && hot.roles.containsKey(current_user);
+         if (!knownUser && esql.getUserRole(current_user) == null) {
+            System.out.println("User does not exsist.");
+            return;
+         }
+
+         System.out.println("\nMenu Items:");
+         int menuCount;
+         if(hot != null) {
+            List<MenuItem> items = new ArrayList<>(hot.items);
+            items.sort(Comparator.comparing(item -> item.itemName));
+            if(!items.isEmpty()) System.out.println("itemname\tprice\t");
+            for (MenuItem item : items) System.out.println(item.itemName + "\t" + formatCents(item.priceCents) + "\t");
+            menuCount = items.size();
+         } else {
+            String menuQuery = "SELECT itemName, price FROM Items WHERE NOT retired ORDER BY itemName";
+            menuCount = esql.executeQueryAndPrintResult(menuQuery);
+         }
+         
+         if(menuCount == 0) {
+            System.out.println("No menu items available!");
+            return;
+         }
+
+         //suggestions are served from memory by the recommender
+         Recommender recommender = esql.getRecommender();
+         if(recommender != null) {
+            printSuggestions("Popular at this store", recommender.topItems(storeID));
+            String favorites = null;
+            try {
+               favorites = esql.executeQueryForObject(String.format(
+                  "SELECT favoriteItems FROM Users WHERE login = %s", quote(current_user)), rs -> rs.getString(1));
+            } catch(SQLException e) {
+               //suggestions are not worth turning the order away for
+               if(hot == null) throw e;
+            }
+            if(favorites != null && !favorites.trim().isEmpty()) {
+               List<String> favoriteItems = new ArrayList<>();
+               for (String favorite : favorites.split(",")) {
+                  favoriteItems.add(favorite.trim());
+               }
+               printSuggestions("Based on your favorites", recommender.forFavorites(favoriteItems));
+            }
+         }
+         
+         //the cart lives in the cart store under the user's session, so
+         //a failed checkout can be picked up again; only checkout writes
+         CartStore carts = esql.getCarts();
+         String session = current_user;
+         CartStore.View previous = carts.get(session);
+         if(previous != null && previous.storeID == storeID && !previous.lines.isEmpty()) {
+            printCart(previous);
+            System.out.print("Continue with this cart? (y/n): ");
+            if(!in.readLine().trim().equalsIgnoreCase("y")) {
+               carts.open(session, current_user, storeID);
+            }
+         } else {
+            carts.open(session, current_user, storeID);
+         }
+
+         while(true) {
+            System.out.print("\nEnter item name ('done' to check out, 'cart' to review, 'remove' to take an item out, 'cancel' to drop the cart): ");
+            String itemName = in.readLine().trim();
+
+            if(itemName.equalsIgnoreCase("done")) {
+               break;
+            }
+            if(itemName.equalsIgnoreCase("cancel")) {
+               carts.discard(session);
+               System.out.println("Cart dropped.");
+               return;
+            }
+            if(itemName.equalsIgnoreCase("cart")) {
+               printCart(carts.get(session));
+               continue;
+            }
+            if(itemName.equalsIgnoreCase("remove")) {
+               System.out.print("Item to remove: ");
+               if(!carts.remove(session, in.readLine().trim())) {
+                  System.out.println("That item is not in the cart.");
+               }
+               continue;
+            }
+
+            System.out.print("Enter quantity: ");
+            int quantity = Integer.parseInt(in.readLine());
+            int inCart;
+            try {
+               inCart = carts.add(session, itemName, quantity);
+            } catch(IllegalArgumentException e) {
+               System.out.println(e.getMessage());
+               continue;
+            }
+
+            //the item stays in the cart, but checkout will refuse it
+            //unless the store is restocked first
+            StoreInventory inventory = esql.getInventory();
+            if(inventory != null) {
+               List<String> missing = inventory.shortages(storeID, itemName, inCart);
+               if(!missing.isEmpty()) {
+                  System.out.println("Store " + storeID + " is short of " + String.join(", ", missing) + " for this item.");
+               }
+            }
+
+            if(recommender != null) {
+               List<String> with = recommender.orderedWith(itemName);
+               with.removeAll(carts.get(session).lines.keySet());
+               printSuggestions("Often ordered with " + itemName, with);
+            }
+         }
+
+         carts.checkout(session, order -> submitOrder(esql, order));
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }//end placeOrder
+
+   /*
+    * Writes a checked-out cart as an order: into the journal if there is
+    * one, else through admission control to the backend.
+    *
+    * @return the orderID, or -1 if the order was journaled
+    * @throws java.lang.IllegalStateException when the store is out of an
+    *         ingredient or the user gave up on a busy store
+    **/
+   private static int submitOrder(PizzaStore esql, OrderRequest order) throws Exception {
+      //the ingredients are taken first and given back if the order is
+      //not written
+      StoreInventory inventory = esql.getInventory();
+      if(inventory != null) {
+         List<String> missing = inventory.reserve(order);
+         if(!missing.isEmpty()) {
+            throw new IllegalStateException("Store " + order.storeID + " is out of " + String.join(", ", missing)
+                                            + ". Remove the items that need it; the cart is kept.");
+         }
+      }
+      boolean placed = false;
+      try {
+         int orderID = writeOrder(esql, order);
+         placed = true;
+         return orderID;
+      } finally {
+         if(inventory != null && !placed) inventory.release(order);
+      }
+   }//end submitOrder
+
+   /*
+    * Writes an order whose ingredients are already taken.
+    **/
+   private static int writeOrder(PizzaStore esql, OrderRequest order) throws Exception {
+      //accept the order into the local journal; it is saved to the
+      //database in the background
+      if(esql.getOrderJournal() != null) {
+         long reference = esql.getOrderJournal().append(order);
+         System.out.printf("Order accepted! Reference: J%d, Total Price: $%s\n", reference, formatCents(order.totalCents));
+         return -1;
+      }
+
+      //admission control keeps one busy store from taking every
+      //connection; a rejected order can be retried after the hint
+      AdmissionController.Ticket ticket = esql.getAdmission().admit(order.storeID);
+      while(!ticket.admitted()) {
+         System.out.printf("Store %d is busy right now. Retry in %.1f seconds? (y/n): ",
+                           order.storeID, ticket.retryAfterMillis() / 1000.0);
+         if(!in.readLine().trim().equalsIgnoreCase("y")) {
+            throw new IllegalStateException("Order not placed. The cart is kept for the next try.");
+         }
+         Thread.sleep(ticket.retryAfterMillis());
+         ticket = esql.getAdmission().admit(order.storeID);
+      }
+
+      //create order and its line items in one transaction
+      int orderID;
+      boolean written = false;
+      try {
+         orderID = esql.getBackend().placeOrder(order);
+         written = true;
+      } finally {
+         ticket.done(written);
+      }
+      Recommender recommender = esql.getRecommender();
+      if(recommender != null) {
+         int shard = esql.getShards() == null ? 0 : esql.getShards().shardIndexForOrder(orderID);
+         recommender.recordOrder(shard, orderID, order.storeID, order.itemNames, order.quantities);
+      }
+      recordStatusChange(esql, orderID, order.storeID, "pending", order.timestampMillis, order.login);
+
+      System.out.printf("Order placed successfully! Order ID: %d, Total Price: $%s\n", orderID, formatCents(order.totalCents));
+      return orderID;
+   }//end writeOrder
+
+   /*
+    * Prints the items, quantities and total of a cart.
+    **/
+   private static void printCart(CartStore.View cart) {
+      if(cart == null || cart.lines.isEmpty()) {
+         System.out.println("The cart is empty.");
+         return;
+      }
+      for(Map.Entry<String, Integer> line : cart.lines.entrySet()) {
+         System.out.printf("  %-30s x%d\n", line.getKey(), line.getValue());
+      }
+      System.out.printf("  Total: $%s\n", formatCents(cart.totalCents));
+   }//end printCart
+
+   /*
+    * Prints a line of item suggestions, if there are any.
+    **/
+   private static void printSuggestions(String heading, List<String> itemNames) {
+      if (!itemNames.isEmpty()) {
+         System.out.println(heading + ": " + String.join(", ", itemNames));
+      }
+   }//end printSuggestions
+
+   public static void viewAllOrders(PizzaStore esql) {
+      //print out the order history
+      try{
+         //check if user is a manager
+         System.out.print("\tEnter your login: ");
+         String login = in.readLine();
+         
+         String viewOrderRole = esql.getUserRole(login);
+
+         if(viewOrderRole == null || viewOrderRole.isEmpty()){
+            System.out.print("invaild role");
+            return;
+         }
+         else if(viewOrderRole.equals("customer")){
+         //full history includes archived months and every order shard;
+         //past the latency budget only the newest page is shown
+         int[] orderIDs;
+         try {
+            orderIDs = esql.getBackend().orderIDsForLogin(login, 0);
+         } catch(SQLException e) {
+            if(!LatencyBudget.isExceeded(e)) throw e;
+            LatencyBudget.fallback();
+            System.out.println("\nThe full history is taking too long; showing the newest " + LatencyBudget.pageSize() + " orders.");
+            orderIDs = esql.getBackend().orderIDsForLogin(login, LatencyBudget.pageSize());
+         }
+
+         if(orderIDs.length == 0){
+            System.out.println("\nNo Orders");
+            return;
+         }
+         
+            System.out.println("\nOrder Hisotry");
+            printOrderIDs("All_Orders", orderIDs);
+         }
+         else if(viewOrderRole.equals("manager") || viewOrderRole.equals("driver")){
+            int[] orderIDs;
+            try {
+               orderIDs = esql.newestOrderIDs(null, 0);
+            } catch(SQLException e) {
+               if(!LatencyBudget.isExceeded(e)) throw e;
+               LatencyBudget.fallback();
+               System.out.println("\nAll orders are taking too long; showing the newest " + LatencyBudget.pageSize() + ".");
+               orderIDs = esql.newestOrderIDs(null, LatencyBudget.pageSize());
+            }
+            System.out.println("\nAll Orders");
+            printOrderIDs("orderid", orderIDs);
+         } 
+
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void viewRecentOrders(PizzaStore esql) {
+      
+              try{
+         //check if user is a manager
+         System.out.print("\tEnter your login: ");
+         String login = in.readLine();
+         
+         String viewOrderRole = esql.getUserRole(login);
+
+         if(viewOrderRole == null || viewOrderRole.isEmpty()){
+            System.out.print("invaild role");
+            return;
+         }
+         else if(viewOrderRole.equals("customer")){
+         int[] orderIDs = esql.newestOrderIDs("login = " + quote(login), 5);
+
+         if(orderIDs.length == 0){
+            System.out.println("\nNo Orders");
+            return;
+         }
+         
+            System.out.println("\nOrder Hisotry");
+            printOrderIDs("orderid", orderIDs);
+         }
+         else if(viewOrderRole.equals("manager") || viewOrderRole.equals("driver")){
+            System.out.println("\nAll Orders");
+            printOrderIDs("orderid", esql.newestOrderIDs(null, 5));
+         } 
+
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Prints orderIDs in the layout of executeQueryAndPrintResult.
+    **/
+   private static void printOrderIDs(String column, int[] orderIDs) {
+      if (orderIDs.length == 0) return;
+      System.out.println(column + "\t");
+      for (int orderID : orderIDs) {
+         System.out.println(orderID + "\t");
+      }
+   }//end printOrderIDs
+
+   public static void viewOrderInfo(PizzaStore esql) {
+      try {
+         // String query;
+         // System.out.println("Enter the Order Number: ");
+         // int orderNum = Integer.parseInt(in.readLine());
+
+         System.out.print("\tEnter your login: ");
+         String login = in.readLine();
+         
+         String OrderRole = esql.getUserRole(login);
+         if(OrderRole == null){
+            System.out.println("User does not exsist.");
+            return;
+         }
+
+         if(OrderRole.equals("customer")){
+            String Custquery = String.format("Select fo.orderTimestamp, fo.totalPrice, fo.orderStatus, io.itemName, io.quantity, io.orderID FROM AllFoodOrders fo NATURAL JOIN AllItemsInOrder io WHERE fo.login = '%s'", login); //ordernum
+            printOrderLines(esql, Custquery);
+         }
+         else if( OrderRole.equals("manager") || OrderRole.equals("driver")){
+                        String Custquery = String.format("Select fo.orderTimestamp, fo.totalPrice, fo.orderStatus, io.itemName, io.quantity, io.orderID FROM FoodOrder fo NATURAL JOIN ItemsInOrder io"); //ordernum
+            printOrderLines(esql, Custquery);
+         }
+      
+
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   /*
+    * Prints the order lines of a query from every shard.  Past the latency
+    * budget of the operation only the newest page of each shard not yet
+    * printed is printed.
+    **/
+   private static void printOrderLines(PizzaStore esql, String query) throws SQLException {
+      List<PizzaStore> shards = esql.allShards();
+      int done = 0;
+      try {
+         for (; done < shards.size(); done++) {
+            shards.get(done).executeRead(db -> db.executeQueryAndPrintResult(query));
+         }
+      } catch(SQLException e) {
+         if(!LatencyBudget.isExceeded(e)) throw e;
+         LatencyBudget.fallback();
+         System.out.println("\nThe order lines are taking too long; showing the newest " + LatencyBudget.pageSize() + ".");
+         String page = query + " ORDER BY fo.orderTimestamp DESC, io.orderID DESC LIMIT " + LatencyBudget.pageSize();
+         for (; done < shards.size(); done++) {
+            shards.get(done).executeRead(db -> db.executeQueryAndPrintResult(page));
+         }
+      }
+   }//end printOrderLines
+   
+
+public static void viewStores(PizzaStore esql) {
+      try {
+         System.out.println("\nStore Options:");
+         System.out.println("1. View all stores");
+         System.out.println("2. Sort by rating (high to low)");
+         System.out.println("3. Filter by minimum rating");
+         System.out.print("Enter your choice: ");
+
+         //reviewScore is kept up to date on every review, so sorting and
+         //filtering by rating is a plain indexed read of Store
+         String columns = "SELECT storeID, address, city, state, isOpen, reviewScore, reviewCount FROM Store";
+         String query;
+         //in fast-start mode the same view is served from memory
+         Predicate<StoreInfo> filter = store -> true;
+         Comparator<StoreInfo> order = Comparator.comparingInt(store -> store.storeID);
+         Comparator<StoreInfo> byRating = Comparator.comparingDouble((StoreInfo store) -> store.reviewScore).reversed()
+                                                    .thenComparingInt(store -> store.storeID);
+         switch(Integer.parseInt(in.readLine())) {
+            case 2:
+               query = columns + " ORDER BY reviewScore DESC NULLS LAST, storeID";
+               order = byRating;
+               break;
+            case 3:
+               System.out.print("\nEnter minimum rating (1-5): ");
+               double minRating = Double.parseDouble(in.readLine());
+               query = String.format(columns + " WHERE reviewScore >= %.2f ORDER BY reviewScore DESC, storeID", minRating);
+               filter = store -> store.reviewCount > 0 && store.reviewScore >= minRating;
+               order = byRating;
+               break;
+            default:
+               query = columns + " ORDER BY storeID";
+               break;
+         }
+
+         System.out.println("\nAll Stores:");
+         System.out.println("----------------------------------------");
+         HotDataSnapshot hot = esql.getHotData();
+         int storeCount = 0;
+         if(hot != null) {
+            List<StoreInfo> stores = new ArrayList<>();
+            for (StoreInfo store : hot.stores) {
+               if(filter.test(store)) stores.add(store);
+            }
+            stores.sort(order);
+            if(!stores.isEmpty()) System.out.println("storeid\taddress\tcity\tstate\tisopen\treviewscore\treviewcount");
+            for (StoreInfo store : stores) System.out.println(store);
+            storeCount = stores.size();
+         } else {
+            storeCount = esql.executeRead(db -> db.executeQueryAndPrintResult(query));
+         }
+         
+         if(storeCount == 0) {
+            System.out.println("No stores found in the system!");
+         }
+         
+         System.out.println("\nPress Enter to continue...");
+         in.readLine();
+         
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }//end viewStores
+
+   /*
+    * Lets a customer rate the store of one of their completed orders.  Each
+    * order can be reviewed once.
+    **/
+   public static void reviewStore(PizzaStore esql) {
+      try {
+         System.out.print("\tEnter your login: ");
+         String login = in.readLine();
+
+         String role = esql.getUserRole(login);
+         if(role == null){
+            System.out.println("User does not exsist.");
+            return;
+         }
+
+         String reviewableQuery = String.format(
+            "SELECT f.orderID, f.storeID, f.orderTimestamp FROM AllFoodOrders f " +
+            "WHERE f.login = %s AND f.orderStatus = 'complete' " +
+            "AND NOT EXISTS (SELECT 1 FROM StoreReview r WHERE r.orderID = f.orderID) " +
+            "ORDER BY f.orderTimestamp DESC", quote(login));
+         int reviewable = 0;
+         System.out.println("\nCompleted orders without a review:");
+         for (PizzaStore shard : esql.allShards()) {
+            reviewable += shard.executeQueryAndPrintResult(reviewableQuery);
+         }
+         if(reviewable == 0) {
+            System.out.println("No completed orders to review.");
+            return;
+         }
+
+         System.out.print("\nEnter orderID to review: ");
+         int orderID = Integer.parseInt(in.readLine());
+         System.out.print("\tEnter rating (1-5): ");
+         int rating = Integer.parseInt(in.readLine());
+         if(rating < 1 || rating > 5) {
+            System.out.println("Rating must be between 1 and 5!");
+            return;
+         }
+         System.out.print("\tEnter comment (optional): ");
+         String comment = in.readLine().trim();
+
+         int storeID = esql.getBackend().reviewStore(login, orderID, rating, comment.isEmpty() ? null : comment);
+         if(storeID < 0) {
+            System.out.println("Order " + orderID + " is not one of your completed, unreviewed orders.");
+            return;
+         }
+         if(esql._hotData != null) esql._hotData.refreshSoon();
+         StoreInfo store = esql.getBackend().getStore(storeID);
+         System.out.printf("Thanks! Store %d is now rated %.2f from %d review(s).\n",
+                           storeID, store.reviewScore, store.reviewCount);
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }//end reviewStore
+
+   /*
+    * Lets drivers and managers change an order's time stamp or status, or
+    * the status of several orders at once.  Every change is a
+    * compare-and-set on FoodOrder.version, so an order changed by someone
+    * else in the meantime is reported instead of overwritten.
+    **/
+   public static void updateOrderStatus(PizzaStore esql) {
+      try {
+
+         System.out.print("\tEnter your login: ");
+         String login = in.readLine();
+         
+         String userRole = esql.getUserRole(login);
+
+
+          if(userRole == null){
+            System.out.println("User does not exsist.");
+            return;
+         }
+
+         if(!userRole.equals("manager") && !userRole.equals("driver")){
+            System.out.println("Access denied! Only drivers and managers can update orders.");
+            return;
+         }
+
+         while(true) {
+            System.out.println("1. Update Order Time Stamp");
+            System.out.println("2. Update Order Status");
+            System.out.println("3. Update Status of Several Orders");
+            System.out.println("4. Back to main menu");
+            System.out.print("Enter your choice: ");
+            
+            int choice = Integer.parseInt(in.readLine());
+
+            if(choice == 4){
+               return;
+            }
+            switch(choice){
+               case 1: {
+                  System.out.print("Enter OrderID: ");
+                  int oID = Integer.parseInt(in.readLine());
+
+                  OrderInfo order = esql.getBackend().getOrder(oID);
+                  if(order == null){
+                     System.out.println("Invaid OrderID.");
+                     break;
+                  }
+
+                  System.out.println("\n Enter the new Time Stamp (YYYY-MM-DD HH:MI:SS): ");
+                  Timestamp newTimeStamp = Timestamp.valueOf(in.readLine().trim());
+                  //line items follow through the ON UPDATE CASCADE key
+                  String updateTimeStamp = String.format(
+                     "UPDATE FoodOrder SET orderTimestamp = %s, version = version + 1, updatedAt = CURRENT_TIMESTAMP " +
+                     "WHERE orderID = %d AND version = %d",
+                     quote(newTimeStamp.toString()), oID, order.version);
+                  if(esql.shardForOrder(oID).executeUpdateCount(updateTimeStamp) == 0){
+                     System.out.println("Order " + oID + " was changed by someone else or is archived; nothing updated.");
+                  } else {
+                     System.out.println("Time stamp updated.");
+                  }
+                  break;
+               }
+
+               case 2: {
+                  System.out.print("Enter OrderID: ");
+                  int oIDs = Integer.parseInt(in.readLine());
+
+                  OrderInfo order = esql.getBackend().getOrder(oIDs);
+                  if(order == null){
+                     System.out.println("Invaid OrderID.");
+                     break;
+                  }
+
+                  System.out.println("Current status: " + order.orderStatus);
+                  System.out.println("\n Enter the new Order Status (Complete or Incomplete or Pending): ");
+                  String newOrderStatus = in.readLine().trim().toLowerCase();
+                  int[] updated = esql.getBackend().updateOrderStatuses(
+                     new int[] { oIDs }, new int[] { order.version }, new String[] { newOrderStatus });
+                  if(updated[0] < 0){
+                     OrderInfo current = esql.getBackend().getOrder(oIDs);
+                     System.out.println("Order " + oIDs + " was changed by someone else meanwhile; its status is now " +
+                                        (current == null ? "unknown" : current.orderStatus) + ". Nothing updated.");
+                  } else {
+                     recordStatusChange(esql, oIDs, order.storeID, newOrderStatus, order.timestampMillis, login);
+                     System.out.println("Order status updated.");
+                  }
+                  break;
+               }
+
+               case 3:
+                  updateSeveralOrderStatuses(esql, login);
+                  break;
+
+               default:
+                  System.out.println("Unrecognized choice!");
+                  break;
+            }
+         } 
+      } catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }//end updateOrderStatus
 
-         System.out.println("\nMenu Items:");
-         String menuQuery = "SELECT itemName, price FROM Items ORDER BY itemName";
-         int menuCount = esql.executeQueryAndPrintResult(menuQuery);
-         
-         if(menuCount == 0) {
-            System.out.println("No menu items available!");
-            return;
+   /*
+    * Sets one status on many orders in a single conflict-aware batch.
+    * Orders that changed between reading their versions and the batch are
+    * re-read and retried a bounded number of times.
+    **/
+   private static void updateSeveralOrderStatuses(PizzaStore esql, String login) throws IOException, SQLException {
+      System.out.print("Enter OrderIDs (comma-separated): ");
+      List<Integer> remaining = new ArrayList<>();
+      for (String id : in.readLine().split(",")) {
+         if(!id.trim().isEmpty()) remaining.add(Integer.parseInt(id.trim()));
+      }
+      System.out.println("\n Enter the new Order Status (Complete or Incomplete or Pending): ");
+      String newOrderStatus = in.readLine().trim().toLowerCase();
+
+      int retries = Integer.getInteger("pizzastore.orders.casRetries", 5);
+      int updatedCount = 0;
+      List<Integer> missing = new ArrayList<>();
+      for (int attempt = 0; attempt < retries && !remaining.isEmpty(); attempt++) {
+         //read the current versions, one query per shard
+         Map<Integer, Integer> versions = new HashMap<>();
+         Map<Integer, long[]> storeAndTime = new HashMap<>();
+         StringBuilder ids = new StringBuilder();
+         for (int id : remaining) {
+            if(ids.length() > 0) ids.append(", ");
+            ids.append(id);
          }
-         
-         //get order items
-         List<String> items = new ArrayList<>();
-         List<Integer> quantities = new ArrayList<>();
-         double totalPrice = 0.0;
-         
-         while(true) {
-            System.out.print("\nEnter item name (or 'done' to finish): ");
-            String itemName = in.readLine();
-            
-            if(itemName.equalsIgnoreCase("done")) {
-               break;
-            }
-            
-            //check if item exists
-            String checkItemQuery = String.format("SELECT price FROM Items WHERE itemName = '%s'", itemName);
-            List<List<String>> result = esql.executeQueryAndReturnResult(checkItemQuery);
-            if(result.isEmpty()) {
-               System.out.println("Invalid item name!");
-               continue;
+         String versionQuery = "SELECT orderID, version, storeID, orderTimestamp FROM FoodOrder WHERE orderID IN (" + ids + ")";
+         for (PizzaStore shard : esql.allShards()) {
+            for (long[] row : shard.executeQueryAndMap(versionQuery, rs -> new long[] {
+                     rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getTimestamp(4).getTime() })) {
+               versions.put((int) row[0], (int) row[1]);
+               storeAndTime.put((int) row[0], new long[] { row[2], row[3] });
             }
-            
-            System.out.print("Enter quantity: ");
-            int quantity = Integer.parseInt(in.readLine());
-            
-            if(quantity <= 0) {
-               System.out.println("Quantity must be positive!");
-               continue;
+         }
+
+         List<Integer> batch = new ArrayList<>();
+         for (int id : remaining) {
+            if(versions.containsKey(id)) batch.add(id); else missing.add(id);
+         }
+         int[] orderIDs = new int[batch.size()];
+         int[] expected = new int[batch.size()];
+         String[] statuses = new String[batch.size()];
+         for (int i = 0; i < orderIDs.length; i++) {
+            orderIDs[i] = batch.get(i);
+            expected[i] = versions.get(orderIDs[i]);
+            statuses[i] = newOrderStatus;
+         }
+
+         int[] updated = esql.getBackend().updateOrderStatuses(orderIDs, expected, statuses);
+         remaining = new ArrayList<>();
+         for (int i = 0; i < orderIDs.length; i++) {
+            if(updated[i] >= 0) {
+               updatedCount++;
+               long[] order = storeAndTime.get(orderIDs[i]);
+               recordStatusChange(esql, orderIDs[i], (int) order[0], newOrderStatus, order[1], login);
+            } else {
+               remaining.add(orderIDs[i]);
             }
-            
-            items.add(itemName);
-            quantities.add(quantity);
-            totalPrice += Double.parseDouble(result.get(0).get(0)) * quantity;
          }
-         
-         if(items.isEmpty()) {
-            System.out.println("No items in order!");
+      }
+
+      System.out.printf("%d order(s) updated.\n", updatedCount);
+      if(!missing.isEmpty()) {
+         System.out.println("Not found or archived: " + missing);
+      }
+      if(!remaining.isEmpty()) {
+         System.out.println("Still changing, not updated: " + remaining);
+      }
+   }//end updateSeveralOrderStatuses
+
+   /*
+    * Queues an order status change made by login for OrderStatusHistory.
+    **/
+   private static void recordStatusChange(PizzaStore esql, int orderID, int storeID, String orderStatus,
+                                          long orderTimestampMillis, String login) {
+      if(esql.getHistoryWriter() != null) {
+         esql.getHistoryWriter().record(orderID, storeID, orderStatus, orderTimestampMillis, login);
+      }
+   }//end recordStatusChange
+
+   /*
+    * Prints p50/p95/p99 time from placing an order to completing it, per
+    * store and overall, after reading the latest status history.
+    **/
+   public static void deliveryTimeReport(PizzaStore esql, DeliveryAnalytics analytics) {
+      try {
+         System.out.print("\tEnter your login: ");
+         String login = in.readLine();
+         String userRole = esql.getUserRole(login);
+         if(userRole == null || !userRole.equals("manager")) {
+            System.out.println("Access denied! Only managers can view the delivery time report.");
             return;
          }
-         
-         //create order
-         // String 
-         // String queryOrder = "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) VALUES (" + orderID + ", '" + userAccount + "', " + selectedStore + ", " + totalSum + ", '" + orderTimestamp + "', 'Ordered Placed');";
-         // esql.executeUpdate(queryOrder);
-
-         String orderQuery = String.format(
-            "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " +
-            "VALUES ((SELECT COALESCE(MAX(orderID), 0) + 1 FROM FoodOrder), '%s', %d, %.2f, CURRENT_TIMESTAMP, 'pending')",
-            current_user, storeID, totalPrice);
-         esql.executeUpdate(orderQuery);
-         
-         //get the order ID
-         String getOrderIDQuery = "SELECT MAX(orderID) FROM FoodOrder";
-         List<List<String>> orderIDResult = esql.executeQueryAndReturnResult(getOrderIDQuery);
-         int orderID = Integer.parseInt(orderIDResult.get(0).get(0));
-         
-         //add items to order
-         for(int i = 0; i < items.size(); i++) {
-            String itemQuery = String.format(
-               "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (%d, '%s', %d)",
-               orderID, items.get(i), quantities.get(i));
-            esql.executeUpdate(itemQuery);
+         if(analytics == null) {
+            System.out.println("Delivery analytics is not running.");
+            return;
          }
-         
-         System.out.printf("Order placed successfully! Order ID: %d, Total Price: $%.2f\n", orderID, totalPrice);
-         
+         int added = analytics.runOnce();
+         System.out.println(added + " new completion(s) read.");
+         analytics.printReport();
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
-   }//end placeOrder
+   }//end deliveryTimeReport
 
-   public static void viewAllOrders(PizzaStore esql) {
-      //print out the order history
-      try{
-         //check if user is a manager
+   /*
+    * Prints orders, revenue, average basket size and status counts over a
+    * date range per store, city or state.  The per-month queries run in
+    * parallel on every shard (see StoreReport).
+    **/
+   public static void storeSalesReport(PizzaStore esql) {
+      try {
          System.out.print("\tEnter your login: ");
          String login = in.readLine();
-         
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleCheckQuery);
-
-         String viewOrderRole = roleResult.get(0).get(0).trim();
-
-         if(viewOrderRole.isEmpty()){
-            System.out.print("invaild role");
+         String userRole = esql.getUserRole(login);
+         if(userRole == null || !userRole.equals("manager")) {
+            System.out.println("Access denied! Only managers can view the sales report.");
             return;
          }
-         else if(viewOrderRole.equals("customer")){
-         String query = "SELECT fd.orderID FROM FoodOrder fd, Users u WHERE fd.login = u.login ";
-         int orderCount = esql.executeQuery(query);
 
-         if(orderCount == 0){
-            System.out.println("\nNo Orders");
+         System.out.print("From date (YYYY-MM-DD): ");
+         LocalDate from = LocalDate.parse(in.readLine().trim());
+         System.out.print("To date, inclusive (YYYY-MM-DD): ");
+         LocalDate to = LocalDate.parse(in.readLine().trim()).plusDays(1);
+         if(!from.isBefore(to)) {
+            System.out.println("The from date must not be after the to date.");
             return;
          }
-         
-            System.out.println("\nOrder Hisotry");
-            String allOrderQuery = "SELECT fd.orderID AS All_Orders FROM foodOrder fd, Users u WHERE fd.login = u.login";
-            esql.executeQueryAndPrintResult(allOrderQuery);
+
+         System.out.println("1. By store");
+         System.out.println("2. By city");
+         System.out.println("3. By state");
+         System.out.print("Enter your choice: ");
+         StoreReport.Level level;
+         switch(Integer.parseInt(in.readLine())) {
+            case 1: level = StoreReport.Level.STORE; break;
+            case 2: level = StoreReport.Level.CITY; break;
+            case 3: level = StoreReport.Level.STATE; break;
+            default: System.out.println("Unrecognized choice!"); return;
          }
-         else if(viewOrderRole.equals("manager") || viewOrderRole.equals("driver")){
-            System.out.println("\nAll Orders");
-            String allOrderQuery = "SELECT fd.orderID FROM foodOrder fd";
-            esql.executeQueryAndPrintResult(allOrderQuery);
-         } 
 
+         long start = System.currentTimeMillis();
+         StoreReport report = new StoreReport(esql.allShards());
+         Map<String, StoreReport.Totals> rows = report.rollUp(report.byStore(from, to), level);
+         StoreReport.print(level == StoreReport.Level.STORE ? "storeID" : level == StoreReport.Level.CITY ? "city" : "state", rows);
+         System.out.printf("(%d row(s) in %d ms)\n", rows.size(), System.currentTimeMillis() - start);
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
-   }
+   }//end storeSalesReport
 
-   public static void viewRecentOrders(PizzaStore esql) {
-      
-              try{
-         //check if user is a manager
+   /*
+    * Writes every order line over a date range to a CSV or columnar file
+    * for offline analysis, streaming from every shard (see OrderExporter).
+    **/
+   public static void exportOrders(PizzaStore esql) {
+      try {
          System.out.print("\tEnter your login: ");
          String login = in.readLine();
-         
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleCheckQuery);
-
-         String viewOrderRole = roleResult.get(0).get(0).trim();
-
-         if(viewOrderRole.isEmpty()){
-            System.out.print("invaild role");
+         String userRole = esql.getUserRole(login);
+         if(userRole == null || !userRole.equals("manager")) {
+            System.out.println("Access denied! Only managers can export orders.");
             return;
          }
-         else if(viewOrderRole.equals("customer")){
-         String query = "SELECT fd.orderID FROM FoodOrder fd, Users u WHERE fd.login = u.login ";
-         int orderCount = esql.executeQuery(query);
 
-         if(orderCount == 0){
-            System.out.println("\nNo Orders");
+         System.out.print("From date (YYYY-MM-DD): ");
+         LocalDate from = LocalDate.parse(in.readLine().trim());
+         System.out.print("To date, inclusive (YYYY-MM-DD): ");
+         LocalDate to = LocalDate.parse(in.readLine().trim()).plusDays(1);
+         if(!from.isBefore(to)) {
+            System.out.println("The from date must not be after the to date.");
             return;
          }
-         
-            System.out.println("\nOrder Hisotry");
-            String allOrderQuery = "SELECT fd.orderID FROM foodOrder fd, Users u WHERE fd.login = u.login ORDER BY fd.orderTimeStamp DESC LIMIT 5";
-            esql.executeQueryAndPrintResult(allOrderQuery);
+
+         System.out.println("1. CSV");
+         System.out.println("2. Columnar (read with OrderExportReader)");
+         System.out.print("Enter your choice: ");
+         OrderExporter.Format format;
+         switch(Integer.parseInt(in.readLine())) {
+            case 1: format = OrderExporter.Format.CSV; break;
+            case 2: format = OrderExporter.Format.COLUMNAR; break;
+            default: System.out.println("Unrecognized choice!"); return;
          }
-         else if(viewOrderRole.equals("manager") || viewOrderRole.equals("driver")){
-            System.out.println("\nAll Orders");
-            String allOrderQuery = "SELECT fd.orderID FROM foodOrder fd ORDER BY fd.orderTimeStamp DESC LIMIT 5";
-            esql.executeQueryAndPrintResult(allOrderQuery);
-         } 
+         System.out.print("Output file: ");
+         File file = new File(in.readLine().trim());
 
+         long start = System.currentTimeMillis();
+         long rows = new OrderExporter(esql.allShards()).export(from, to, format, file);
+         System.out.printf("%d order line(s) written to %s in %d ms\n", rows, file, System.currentTimeMillis() - start);
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
-   }
+   }//end exportOrders
 
-   public static void viewOrderInfo(PizzaStore esql) {
+   /*
+    * Shows a store's pending orders and then prints order changes as they
+    * happen until Enter is pressed.  The queue is kept by the order feed, so
+    * watching does not query FoodOrder.
+    **/
+   public static void watchStoreOrders(PizzaStore esql) {
       try {
-         // String query;
-         // System.out.println("Enter the Order Number: ");
-         // int orderNum = Integer.parseInt(in.readLine());
-
          System.out.print("\tEnter your login: ");
          String login = in.readLine();
-         
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleCheckQuery);
-
-         String OrderRole = roleResult.get(0).get(0).trim();
 
-         if(OrderRole.equals("customer")){
-            String Custquery = String.format("Select fo.orderTimestamp, fo.totalPrice, fo.orderStatus, io.itemName, io.quantity, io.orderID FROM FoodOrder fo NATURAL JOIN ItemsInOrder io WHERE fo.login = '%s'", login); //ordernum
-            esql.executeQueryAndPrintResult(Custquery);
+         String role = esql.getUserRole(login);
+         if(role == null){
+            System.out.println("User does not exsist.");
+            return;
          }
-         else if( OrderRole.equals("manager") || OrderRole.equals("driver")){
-                        String Custquery = String.format("Select fo.orderTimestamp, fo.totalPrice, fo.orderStatus, io.itemName, io.quantity, io.orderID FROM FoodOrder fo NATURAL JOIN ItemsInOrder io"); //ordernum
-            esql.executeQueryAndPrintResult(Custquery);
+         if(!role.equals("manager") && !role.equals("driver")){
+            System.out.println("Access denied! Only drivers and managers can watch orders.");
+            return;
          }
-      
 
-      } catch(Exception e) {
-         System.err.println(e.getMessage());
-      }
-   }
-   
+         System.out.print("\tEnter store ID: ");
+         final int storeID = Integer.parseInt(in.readLine());
 
-public static void viewStores(PizzaStore esql) {
-      try {
-         System.out.println("\nAll Stores:");
-         System.out.println("----------------------------------------");
-         
-         //uery to get all store information
-         String query = "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store ORDER BY storeID";
-         int storeCount = esql.executeQueryAndPrintResult(query);
-         
-         if(storeCount == 0) {
-            System.out.println("No stores found in the system!");
+         OrderFeed feed = esql.shardForStore(storeID).getOrderFeed();
+         System.out.println("\nPending orders, oldest first:");
+         for (PendingOrder order : feed.pendingOrders(storeID)) {
+            System.out.println("  " + order);
+         }
+
+         OrderFeed.Listener listener = event -> {
+            if (event.storeID == storeID) {
+               System.out.println("  * " + event);
+            }
+         };
+         feed.addListener(listener);
+         System.out.println("\nWatching store " + storeID + " (press Enter to stop)...");
+         try {
+            in.readLine();
+         } finally {
+            feed.removeListener(listener);
          }
-         
-         System.out.println("\nPress Enter to continue...");
-         in.readLine();
-         
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
-   }//end viewStores
-
-   public static void updateOrderStatus(PizzaStore esql) {
-
-      //gets the order ID
-      String getOrderIDQuery = "SELECT MAX(orderID) FROM FoodOrder";
+   }//end watchStoreOrders
 
+   /*
+    * Puts drivers on shift at a store and assigns the store's oldest pending
+    * orders to them in one batch.
+    **/
+   public static void dispatchOrders(PizzaStore esql) {
       try {
-
          System.out.print("\tEnter your login: ");
          String login = in.readLine();
-         
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleCheckQuery);
-
-         String userRole = roleResult.get(0).get(0).trim();
-
 
-          if(roleResult.isEmpty()){
+         String role = esql.getUserRole(login);
+         if(role == null){
             System.out.println("User does not exsist.");
             return;
          }
-
-         if(!userRole.equals("manager")){
-            System.out.println("Access denied! Only managers can update users.");
+         if(!role.equals("manager")){
+            System.out.println("Access denied! Only managers can dispatch orders.");
             return;
          }
 
+         System.out.print("\tEnter store ID: ");
+         int storeID = Integer.parseInt(in.readLine());
 
-         System.out.println("Enter OrderID: ");
-         //int currOrderID = in.readLine();
-         
-         while(true) {
-            System.out.println("1. Update Order Time Stamp");
-            System.out.println("2. Update Order Status");
-            System.out.println("3. Back to main menu");
-            System.out.print("Enter your choice: ");
-            
-            int choice = Integer.parseInt(in.readLine());
-
-            // String UpdateTimeStampQuery;
-            // String UpdateOrderStatuspQuery;
-
-            if(choice == 3){
-               return;
+         //the store's orders and assignments live on its order shard
+         PizzaStore shard = esql.shardForStore(storeID);
+         DispatchEngine engine = shard.getDispatchEngine();
+
+         System.out.print("\tEnter drivers on shift (comma-separated, blank to keep current): ");
+         String shift = in.readLine().trim();
+         if(!shift.isEmpty()) {
+            StringBuilder logins = new StringBuilder();
+            for (String driver : shift.split(",")) {
+               if (logins.length() > 0) logins.append(", ");
+               logins.append(quote(driver.trim()));
             }
-            switch(choice){
-               case 1:
-               System.out.print("Enter OrderID: ");
-               int oID = Integer.parseInt(in.readLine());
-
-               String checkQuery = String.format("SELECT orderID FROM foodOrder WHERE orderID = '%s'", oID);
-               int orderIDCount = esql.executeQuery(checkQuery);
-
-               if(orderIDCount == 0){
-                  System.out.println("Invaid OrderID.");
-                  break;
-               }
-               
-                  System.out.println("\n Enter the new Time Stamp (YYYY-MM-DD HH:MI:SS): ");
-                  String newTimeStamp = in.readLine();
-                  //UpdateTimeStampQuery = String.format("SELECT * FROM FoodOrder WHERE orderID = '%i'", newTimeStamp); 
-                  String updateTimeStamp = String.format(
-                  "l", 
-                  newTimeStamp, oID);
-                  esql.executeUpdate(updateTimeStamp);
-                  break;
-            
-               case 2:
-               System.out.print("Enter OrderID: ");
-               int oIDs = Integer.parseInt(in.readLine());
-
-               String checkQuerys = String.format("SELECT orderID FROM foodOrder WHERE orderID = '%s'", oIDs);
-               int orderIDCounts = esql.executeQuery(checkQuerys);
-
-               if(orderIDCounts == 0){
-                  System.out.println("Invaid OrderID.");
-               }
-            
-                  System.out.println("\n Enter the new Order Status (Complete or Incomplete or Pending): ");
-                  String newOrderStatus = in.readLine();
-                  String UpdateOrderStatuspQuery = String.format("UPDATE FoodOrder SET orderStatus = '%s' WHERE orderID = '%s'", newOrderStatus, oIDs); 
-                  esql.executeUpdate(UpdateOrderStatuspQuery);
-                  break;
-      
-
+            int capacity = Integer.getInteger("pizzastore.dispatch.driverCapacity", 3);
+            List<String> drivers = esql.executeQueryAndMap(
+               "SELECT login FROM Users WHERE role = 'driver' AND login IN (" + logins + ")",
+               rs -> rs.getString(1));
+            for (String driver : drivers) {
+               engine.registerDriver(driver, storeID, capacity);
             }
-         } 
+            //count deliveries these drivers already have against their capacity
+            String activeQuery = String.format(
+               "SELECT da.orderID, da.driverLogin FROM DriverAssignment da JOIN FoodOrder f ON f.orderID = da.orderID " +
+               "WHERE f.orderStatus = 'pending' AND da.storeID = %d AND da.driverLogin IN (%s)", storeID, logins);
+            for (Object[] row : shard.executeQueryAndMap(activeQuery, rs -> new Object[] { rs.getInt(1), rs.getString(2) })) {
+               engine.restoreAssignment((Integer) row[0], (String) row[1]);
+            }
+            System.out.println(drivers.size() + " driver(s) on shift.");
+         }
+
+         int batchSize = Integer.getInteger("pizzastore.dispatch.batchSize", 100);
+         List<DispatchEngine.Assignment> batch = engine.dispatch(storeID, batchSize);
+         Set<Integer> saved;
+         try {
+            saved = DispatchEngine.save(shard.connection(), batch);
+         } catch(SQLException e) {
+            //the orders go back to the queue for the next dispatch
+            engine.undo(batch);
+            throw e;
+         }
+         //orders another dispatcher assigned first keep that driver
+         List<DispatchEngine.Assignment> lost = new ArrayList<DispatchEngine.Assignment>();
+         for (DispatchEngine.Assignment assignment : batch) {
+            if (saved.contains(assignment.orderID)) System.out.println("  " + assignment);
+            else lost.add(assignment);
+         }
+         engine.withdraw(lost);
+         System.out.printf("%d order(s) assigned, %d still pending.\n", saved.size(), engine.pendingCount(storeID));
       } catch(Exception e) {
          System.err.println(e.getMessage());
       }
-   }
+   }//end dispatchOrders
 
 public static void updateMenu(PizzaStore esql){
       try {
          //define shared queries at the beginning
-         String menuQuery = "SELECT itemName, typeOfItem, price FROM Items ORDER BY itemName";
+         String menuQuery = "SELECT itemName, typeOfItem, price, retired FROM Items ORDER BY itemName";
          
          //check if user is a manager
          System.out.print("\tEnter your login: ");
          String login = in.readLine();
          
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleCheckQuery);
-
-         String usersRole = roleResult.get(0).get(0).trim(); //remove white space
+         String usersRole = esql.getUserRole(login);
 
-         if(roleResult.isEmpty()){
+         if(usersRole == null){
             System.out.println("User does not exsist.");
             return;
          }
@@ -971,12 +2655,15 @@ public static void updateMenu(PizzaStore esql){
             System.out.println("1. Add new item");
             System.out.println("2. Update existing item");
             System.out.println("3. Delete item");
-            System.out.println("4. Back to main menu");
+            System.out.println("4. Change prices by type");
+            System.out.println("5. Import menu from CSV");
+            System.out.println("6. Retire or delete items");
+            System.out.println("7. Back to main menu");
             System.out.print("Enter your choice: ");
             
             int choice = Integer.parseInt(in.readLine());
             
-            if(choice == 4) {
+            if(choice == 7) {
                return;
             }
             
@@ -1019,7 +2706,7 @@ public static void updateMenu(PizzaStore esql){
                      "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) " +
                      "VALUES ('%s', '%s', '%s', %.2f, '%s')",
                      itemName, ingredients, typeOfItem, price, description);
-                  esql.executeUpdate(insertQuery);
+                  esql.executeReferenceUpdate(insertQuery);
                   System.out.println("Item added successfully!");
                   break;
                   
@@ -1088,7 +2775,7 @@ public static void updateMenu(PizzaStore esql){
                   String updateQuery = String.format(
                      "UPDATE Items SET %s = '%s' WHERE itemName = '%s'",
                      updateField, newValue, updateItemName);
-                  esql.executeUpdate(updateQuery);
+                  esql.executeReferenceUpdate(updateQuery);
                   System.out.println("Item updated successfully!");
                   break;
                   
@@ -1106,19 +2793,34 @@ public static void updateMenu(PizzaStore esql){
                      continue;
                   }
                   
-                  //check if item is in any orders
+                  //check if item is in any orders on any shard
                   String checkOrderQuery = String.format(
                      "SELECT COUNT(*) FROM ItemsInOrder WHERE itemName = '%s'", deleteItemName);
-                  List<List<String>> orderResult = esql.executeQueryAndReturnResult(checkOrderQuery);
-                  if(Integer.parseInt(orderResult.get(0).get(0)) > 0) {
+                  int orderCount = 0;
+                  for (PizzaStore shard : esql.allShards()) {
+                     orderCount += shard.executeQueryForInt(checkOrderQuery, 0);
+                  }
+                  if(orderCount > 0) {
                      System.out.println("Cannot delete item: it is part of existing orders!");
                      continue;
                   }
                   
                   String deleteQuery = String.format("DELETE FROM Items WHERE itemName = '%s'", deleteItemName);
-                  esql.executeUpdate(deleteQuery);
+                  esql.executeReferenceUpdate(deleteQuery);
                   System.out.println("Item deleted successfully!");
                   break;
+
+               case 4:
+                  changePricesByType(esql);
+                  break;
+
+               case 5:
+                  importMenuCsv(esql);
+                  break;
+
+               case 6:
+                  retireItems(esql);
+                  break;
                   
                default:
                   System.out.println("Invalid choice!");
@@ -1134,6 +2836,169 @@ public static void updateMenu(PizzaStore esql){
       }
    }//end updateMenu
 
+   /*
+    * Asks whether to apply the previewed changes.
+    **/
+   private static boolean confirmChanges() throws IOException {
+      System.out.print("\nApply these changes? (y/n): ");
+      return in.readLine().trim().equalsIgnoreCase("y");
+   }//end confirmChanges
+
+   /*
+    * Raises or lowers the price of every current item of one type by a
+    * percentage, as one UPDATE.
+    **/
+   private static void changePricesByType(PizzaStore esql) throws IOException, SQLException {
+      System.out.print("\tEnter type of item (e.g., drinks, entree, sides): ");
+      String type = in.readLine().trim().toLowerCase();
+      System.out.print("\tEnter percent change (e.g., 10 or -15): ");
+      BigDecimal percent = new BigDecimal(in.readLine().trim());
+      if(percent.compareTo(new BigDecimal(-100)) <= 0) {
+         System.out.println("Prices must stay greater than 0!");
+         return;
+      }
+
+      String newPrice = String.format("ROUND(price * (100 + %s) / 100, 2)", percent.toPlainString());
+      String where = String.format("trim(typeOfItem) = %s AND NOT retired", quote(type));
+      System.out.println("\nPrice changes:");
+      int count = esql.executeQueryAndPrintResult(String.format(
+         "SELECT itemName, price AS old_price, %s AS new_price FROM Items WHERE %s ORDER BY itemName", newPrice, where));
+      if(count == 0) {
+         System.out.println("No items of type " + type + ".");
+         return;
+      }
+      if(!confirmChanges()) return;
+
+      int updated = esql.executeReferenceUpdate(String.format(
+         "UPDATE Items SET price = %s WHERE %s AND %s > 0", newPrice, where, newPrice));
+      System.out.println(updated + " price(s) updated.");
+   }//end changePricesByType
+
+   /*
+    * Adds or replaces menu items from a csv file in the items.csv layout
+    * (itemName, ingredients, typeOfItem, price, description) with one
+    * INSERT ... ON CONFLICT statement.  Imported items are un-retired.
+    **/
+   private static void importMenuCsv(PizzaStore esql) throws IOException, SQLException {
+      System.out.print("\tEnter csv file path: ");
+      List<String[]> rows = InMemoryBackend.readCsv(new File(in.readLine().trim()));
+      if(rows.isEmpty()) {
+         System.out.println("No items in file.");
+         return;
+      }
+
+      Map<String, MenuItem> current = new HashMap<>();
+      for (MenuItem item : esql.executeQueryAndMap(
+            "SELECT itemName, ingredients, typeOfItem, price, description FROM Items",
+            rs -> new MenuItem(rs.getString(1).trim(), rs.getString(2), rs.getString(3).trim(),
+                               toCents(rs.getBigDecimal(4)), rs.getString(5)))) {
+         current.put(item.itemName, item);
+      }
+
+      //a later line for the same item replaces an earlier one
+      Map<String, String> values = new LinkedHashMap<>();
+      int added = 0, changed = 0, unchanged = 0;
+      System.out.println("\nChanges:");
+      for (String[] row : rows) {
+         if(row.length < 4) {
+            System.out.println("Skipping incomplete line: " + String.join(",", row));
+            continue;
+         }
+         String description = row.length > 4 ? row[4] : null;
+         long priceCents = toCents(new BigDecimal(row[3]));
+         if(priceCents <= 0) {
+            System.out.println("Skipping " + row[0] + ": price must be greater than 0");
+            continue;
+         }
+         MenuItem old = current.get(row[0]);
+         if(old == null) {
+            System.out.printf("  + %s (%s) $%s\n", row[0], row[2], formatCents(priceCents));
+            added++;
+         } else if(old.priceCents != priceCents || !old.typeOfItem.equals(row[2])
+                   || !old.ingredients.equals(row[1]) || !String.valueOf(old.description).equals(String.valueOf(description))) {
+            System.out.printf("  ~ %s $%s -> $%s\n", row[0], formatCents(old.priceCents), formatCents(priceCents));
+            changed++;
+         } else {
+            unchanged++;
+         }
+         values.put(row[0], String.format("(%s, %s, %s, %s, %s, false)", quote(row[0]), quote(row[1]), quote(row[2]),
+                                          formatCents(priceCents), quote(description)));
+      }
+      System.out.printf("%d new, %d changed, %d unchanged.\n", added, changed, unchanged);
+      if(values.isEmpty() || !confirmChanges()) return;
+
+      esql.executeReferenceUpdate(
+         "INSERT INTO Items (itemName, ingredients, typeOfItem, price, description, retired) VALUES " +
+         String.join(", ", values.values()) +
+         " ON CONFLICT (itemName) DO UPDATE SET ingredients = EXCLUDED.ingredients, typeOfItem = EXCLUDED.typeOfItem," +
+         " price = EXCLUDED.price, description = EXCLUDED.description, retired = false");
+      System.out.println("Menu imported.");
+   }//end importMenuCsv
+
+   /*
+    * Takes items off the menu, chosen by name or by type.  Retired items
+    * stay in Items for order history.  Deleting removes only items that
+    * were never ordered on any shard and retires the rest.
+    **/
+   private static void retireItems(PizzaStore esql) throws IOException, SQLException {
+      System.out.print("\tEnter item names (comma-separated) or type:<typeOfItem>: ");
+      String selection = in.readLine().trim();
+      String where;
+      if(selection.startsWith("type:")) {
+         where = "trim(typeOfItem) = " + quote(selection.substring(5).trim().toLowerCase());
+      } else {
+         StringBuilder names = new StringBuilder();
+         for (String name : selection.split(",")) {
+            if(names.length() > 0) names.append(", ");
+            names.append(quote(name.trim()));
+         }
+         where = "itemName IN (" + names + ")";
+      }
+
+      List<String> selected = esql.executeQueryAndMap(
+         "SELECT itemName FROM Items WHERE NOT retired AND " + where + " ORDER BY itemName", rs -> rs.getString(1));
+      if(selected.isEmpty()) {
+         System.out.println("No matching items on the menu.");
+         return;
+      }
+
+      System.out.println("\n1. Retire (hide from menu)");
+      System.out.println("2. Delete (items never ordered; the rest are retired)");
+      System.out.print("Enter your choice: ");
+      boolean delete = Integer.parseInt(in.readLine()) == 2;
+
+      Set<String> ordered = new HashSet<>();
+      if(delete) {
+         for (PizzaStore shard : esql.allShards()) {
+            ordered.addAll(shard.executeQueryAndMap(
+               "SELECT DISTINCT itemName FROM AllItemsInOrder WHERE itemName IN (SELECT itemName FROM Items WHERE " + where + ")",
+               rs -> rs.getString(1)));
+         }
+      }
+      StringBuilder toDelete = new StringBuilder();
+      int deleted = 0;
+      System.out.println("\nChanges:");
+      for (String itemName : selected) {
+         boolean remove = delete && !ordered.contains(itemName);
+         System.out.println((remove ? "  - delete " : "  - retire ") + itemName);
+         if(remove) {
+            if(toDelete.length() > 0) toDelete.append(", ");
+            toDelete.append(quote(itemName));
+            deleted++;
+         }
+      }
+      if(!confirmChanges()) return;
+
+      //one statement, so the deletes and the retirements are applied together
+      String retire = "UPDATE Items SET retired = true WHERE NOT retired AND " + where;
+      if(deleted > 0) {
+         retire = "WITH removed AS (DELETE FROM Items WHERE itemName IN (" + toDelete + ") RETURNING itemName) " +
+                  retire + " AND itemName NOT IN (SELECT itemName FROM removed)";
+      }
+      int retired = esql.executeReferenceUpdate(retire);
+      System.out.printf("%d item(s) retired, %d deleted.\n", retired, deleted);
+   }//end retireItems
+
 public static void updateUser(PizzaStore esql){
       try {
          //define shared queries at the beginning
@@ -1143,12 +3008,9 @@ public static void updateUser(PizzaStore esql){
          System.out.print("\tEnter your login: ");
          String login = in.readLine();
          
-         String roleCheckQuery = String.format("SELECT role FROM Users WHERE login = '%s'", login);
-         List<List<String>> roleResult = esql.executeQueryAndReturnResult(roleCheckQuery);
+         String usersRole = esql.getUserRole(login);
 
-         String usersRole = roleResult.get(0).get(0).trim(); //remove white space
-
-         if(roleResult.isEmpty()){
+         if(usersRole == null){
             System.out.println("User does not exsist.");
             return;
          }
@@ -1167,12 +3029,13 @@ public static void updateUser(PizzaStore esql){
             System.out.println("\nUser Update Options:");
             System.out.println("1. Update user role");
             System.out.println("2. Update user login");
-            System.out.println("3. Back to main menu");
+            System.out.println("3. Change role of several users");
+            System.out.println("4. Back to main menu");
             System.out.print("Enter your choice: ");
             
             int choice = Integer.parseInt(in.readLine());
             
-            if(choice == 3) {
+            if(choice == 4) {
                return;
             }
             
@@ -1203,7 +3066,7 @@ public static void updateUser(PizzaStore esql){
                   String updateRoleQuery = String.format(
                      "UPDATE Users SET role = '%s' WHERE login = '%s'",
                      newRole, updateLogin);
-                  esql.executeUpdate(updateRoleQuery);
+                  esql.executeReferenceUpdate(updateRoleQuery);
                   System.out.println("User role updated successfully!");
                   break;
                   
@@ -1224,27 +3087,26 @@ public static void updateUser(PizzaStore esql){
                   System.out.print("\tEnter new login: ");
                   String newLogin = in.readLine();
                   
-                  //check if new login already exists
-                  String checkNewLoginQuery = String.format("SELECT * FROM Users WHERE login = '%s'", newLogin);
-                  if(esql.executeQuery(checkNewLoginQuery) > 0) {
+                  //one statement: the foreign keys on FoodOrder, DriverAssignment
+                  //and StoreReview are ON UPDATE CASCADE, so the user's rows
+                  //there are renamed in the same transaction, and nothing is
+                  //changed if the new login is taken
+                  String updateLoginQuery = String.format(
+                     "UPDATE Users SET login = %s WHERE login = %s " +
+                     "AND NOT EXISTS (SELECT 1 FROM Users WHERE login = %s)",
+                     quote(newLogin), quote(currentLogin), quote(newLogin));
+                  if(esql.executeReferenceUpdate(updateLoginQuery) == 0) {
                      System.out.println("Login already exists! Please choose a different login.");
                      continue;
                   }
                   
-                  //update login in Users table
-                  String updateLoginQuery = String.format(
-                     "UPDATE Users SET login = '%s' WHERE login = '%s'",
-                     newLogin, currentLogin);
-                  esql.executeUpdate(updateLoginQuery);
-                  
-                  //update login in FoodOrder table
-                  String updateOrderLoginQuery = String.format(
-                     "UPDATE FoodOrder SET login = '%s' WHERE login = '%s'",
-                     newLogin, currentLogin);
-                  esql.executeUpdate(updateOrderLoginQuery);
-                  
+                  esql.getLoginService().noteLogin(newLogin);
                   System.out.println("User login updated successfully!");
                   break;
+
+               case 3:
+                  changeRoles(esql);
+                  break;
                   
                default:
                   System.out.println("Invalid choice!");
@@ -1260,6 +3122,47 @@ public static void updateUser(PizzaStore esql){
       }
    }//end updateUser
 
+   /*
+    * Sets the role of several users, chosen by login or by current role,
+    * with one UPDATE after a preview.
+    **/
+   private static void changeRoles(PizzaStore esql) throws IOException, SQLException {
+      System.out.print("\tEnter logins (comma-separated) or role:<current role>: ");
+      String selection = in.readLine().trim();
+      String where;
+      if(selection.startsWith("role:")) {
+         where = "trim(role) = " + quote(selection.substring(5).trim().toLowerCase());
+      } else {
+         StringBuilder logins = new StringBuilder();
+         for (String user : selection.split(",")) {
+            if(logins.length() > 0) logins.append(", ");
+            logins.append(quote(user.trim()));
+         }
+         where = "login IN (" + logins + ")";
+      }
+
+      System.out.print("\tEnter new role (customer/driver/manager): ");
+      String newRole = in.readLine().trim().toLowerCase();
+      if (!newRole.equals("customer") && !newRole.equals("driver") && !newRole.equals("manager")) {
+         System.out.println("Invalid role! Must be customer, driver, or manager.");
+         return;
+      }
+
+      where += " AND trim(role) <> " + quote(newRole);
+      System.out.println("\nRole changes:");
+      int count = esql.executeQueryAndPrintResult(String.format(
+         "SELECT login, role AS old_role, %s AS new_role FROM Users WHERE %s ORDER BY login", quote(newRole), where));
+      if(count == 0) {
+         System.out.println("No users to change.");
+         return;
+      }
+      if(!confirmChanges()) return;
+
+      int updated = esql.executeReferenceUpdate(String.format(
+         "UPDATE Users SET role = %s WHERE %s", quote(newRole), where));
+      System.out.println(updated + " user(s) updated.");
+   }//end changeRoles
+
 };
 //end PizzaStore
 
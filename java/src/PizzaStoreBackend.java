@@ -0,0 +1,96 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Data access used by the PizzaStore operations for users, menu items,
+ * stores, orders and their line items.
+ *
+ * JdbcBackend runs against Postgres; InMemoryBackend keeps everything in
+ * concurrent primitive-keyed maps for simulations and local testing.
+ */
+public interface PizzaStoreBackend {
+
+   /**
+    * @return the trimmed role of the user, or null if there is no such user
+    */
+   String getUserRole(String login) throws SQLException;
+
+   /**
+    * @param password the plaintext password; stored as a salted hash
+    * @return false if the login is already taken
+    */
+   boolean createUser(String login, String password, String role, String phoneNum) throws SQLException;
+
+   /**
+    * @return the item, or null if it is not on the menu or was retired
+    */
+   MenuItem getItem(String itemName) throws SQLException;
+
+   /**
+    * @return every menu item that is not retired, ordered by itemName
+    */
+   List<MenuItem> listItems() throws SQLException;
+
+   /**
+    * @return the store, or null if there is no such store
+    */
+   StoreInfo getStore(int storeID) throws SQLException;
+
+   /**
+    * @return every store ordered by storeID
+    */
+   List<StoreInfo> listStores() throws SQLException;
+
+   /**
+    * Saves an order and its line items atomically with status 'pending'.
+    *
+    * @return the new orderID
+    */
+   int placeOrder(OrderRequest order) throws SQLException;
+
+   /**
+    * @return the order with its line items, or null if there is no such order
+    */
+   OrderInfo getOrder(int orderID) throws SQLException;
+
+   /**
+    * @param limit the maximum number of ids, or 0 for the whole history
+    * @return the user's orderIDs, most recent first
+    */
+   int[] orderIDsForLogin(String login, int limit) throws SQLException;
+
+   /**
+    * @return the store's orderIDs, most recent first
+    */
+   int[] orderIDsForStore(int storeID) throws SQLException;
+
+   /**
+    * Sets the status whatever the current version, as a compare-and-set
+    * retried a bounded number of times when the order changes meanwhile.
+    *
+    * @return false if there is no such order
+    * @throws java.sql.SQLException also when every attempt conflicted
+    */
+   boolean updateOrderStatus(int orderID, String orderStatus) throws SQLException;
+
+   /**
+    * Sets the status of each order whose version still matches, in one
+    * round trip.
+    *
+    * @param expectedVersions the version each order was read at
+    * @return the new version of each order, or -1 where the order changed
+    *         since it was read or does not exist
+    */
+   int[] updateOrderStatuses(int[] orderIDs, int[] expectedVersions, String[] orderStatuses) throws SQLException;
+
+   /**
+    * Saves the user's rating of a completed order and adds it to the store's
+    * running review sum and count.
+    *
+    * @param rating 1 to 5
+    * @return the reviewed storeID, or -1 if the order is not a complete order
+    *         of this user or was already reviewed
+    */
+   int reviewStore(String login, int orderID, int rating, String comment) throws SQLException;
+
+}//end PizzaStoreBackend
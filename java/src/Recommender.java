@@ -0,0 +1,267 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory item popularity used for suggestions in placeOrder: quantities
+ * ordered per item overall and per store, and how often two items were in
+ * the same order.  Rankings are cached and only recomputed after a change,
+ * so suggestions never query the database.
+ *
+ * Orders are counted as this client places them and by catchUp(), which
+ * reads the orders above the last orderID it saw on each order shard.  The
+ * model is saved to a snapshot file at shutdown, so a restart only has to
+ * catch up on the orders placed since.
+ */
+public class Recommender {
+
+   private static final int MAGIC = 0x52454331;   // "REC1"
+
+   /* item counts with a cached ranking, most ordered first */
+   private static final class Counts {
+      final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+      volatile String[] ranking = null;
+
+      void add(String item, long n) {
+         counts.computeIfAbsent(item, k -> new LongAdder()).add(n);
+         ranking = null;
+      }
+
+      long get(String item) {
+         LongAdder count = counts.get(item);
+         return count == null ? 0 : count.sum();
+      }
+
+      String[] ranking() {
+         String[] result = ranking;
+         if (result == null) {
+            result = counts.keySet().toArray(new String[0]);
+            final Map<String, Long> snapshot = new HashMap<String, Long>();
+            for (String item : result) snapshot.put(item, get(item));
+            Arrays.sort(result, (a, b) -> {
+               int c = Long.compare(snapshot.get(b), snapshot.get(a));
+               return c != 0 ? c : a.compareTo(b);
+            });
+            ranking = result;
+         }
+         return result;
+      }
+
+      void writeTo(DataOutputStream out) throws IOException {
+         Map<String, LongAdder> copy = new HashMap<String, LongAdder>(counts);
+         out.writeInt(copy.size());
+         for (Map.Entry<String, LongAdder> e : copy.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue().sum());
+         }
+      }
+
+      void readFrom(DataInputStream in) throws IOException {
+         int size = in.readInt();
+         for (int i = 0; i < size; i++) {
+            String item = in.readUTF();
+            add(item, in.readLong());
+         }
+      }
+   }//end Counts
+
+   private final Counts global = new Counts();
+   private final ConcurrentHashMap<Integer, Counts> byStore = new ConcurrentHashMap<Integer, Counts>();
+   private final ConcurrentHashMap<String, Counts> together = new ConcurrentHashMap<String, Counts>();
+
+   // per order shard: highest orderID read by catchUp, and the ids above it
+   // that were already counted when they were placed
+   private final AtomicLongArray watermark;
+   private final List<Set<Integer>> counted = new ArrayList<Set<Integer>>();
+   private final int topN;
+
+   public Recommender(int shardCount) {
+      this.watermark = new AtomicLongArray(shardCount);
+      for (int i = 0; i < shardCount; i++) {
+         counted.add(ConcurrentHashMap.<Integer>newKeySet());
+      }//end for
+      this.topN = Integer.getInteger("pizzastore.recommender.topN", 3);
+   }//end Recommender
+
+   /**
+    * Reads a snapshot written by save(), or starts empty when there is none
+    * or it was written for a different number of order shards.
+    */
+   public static Recommender load(File snapshot, int shardCount) {
+      Recommender model = new Recommender(shardCount);
+      if (!snapshot.exists()) return model;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+         if (in.readInt() != MAGIC || in.readInt() != shardCount) return new Recommender(shardCount);
+         for (int i = 0; i < shardCount; i++) {
+            model.watermark.set(i, in.readLong());
+            int ids = in.readInt();
+            for (int j = 0; j < ids; j++) model.counted.get(i).add(in.readInt());
+         }//end for
+         model.global.readFrom(in);
+         int stores = in.readInt();
+         for (int i = 0; i < stores; i++) {
+            model.byStore.computeIfAbsent(in.readInt(), k -> new Counts()).readFrom(in);
+         }//end for
+         int items = in.readInt();
+         for (int i = 0; i < items; i++) {
+            model.together.computeIfAbsent(in.readUTF(), k -> new Counts()).readFrom(in);
+         }//end for
+         return model;
+      } catch (IOException e) {
+         System.err.println("Ignoring recommendation snapshot: " + e.getMessage());
+         return new Recommender(shardCount);
+      }//end try
+   }//end load
+
+   /**
+    * Writes the model to a temporary file and renames it over the snapshot.
+    *
+    * @throws java.io.IOException when the snapshot cannot be written
+    */
+   public void save(File snapshot) throws IOException {
+      File tmp = new File(snapshot.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+         out.writeInt(MAGIC);
+         out.writeInt(watermark.length());
+         for (int i = 0; i < watermark.length(); i++) {
+            out.writeLong(watermark.get(i));
+            Integer[] ids = counted.get(i).toArray(new Integer[0]);
+            out.writeInt(ids.length);
+            for (Integer id : ids) out.writeInt(id);
+         }//end for
+         global.writeTo(out);
+         Map<Integer, Counts> stores = new HashMap<Integer, Counts>(byStore);
+         out.writeInt(stores.size());
+         for (Map.Entry<Integer, Counts> e : stores.entrySet()) {
+            out.writeInt(e.getKey());
+            e.getValue().writeTo(out);
+         }//end for
+         Map<String, Counts> pairs = new HashMap<String, Counts>(together);
+         out.writeInt(pairs.size());
+         for (Map.Entry<String, Counts> e : pairs.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().writeTo(out);
+         }//end for
+      }
+      Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+   }//end save
+
+   /**
+    * Counts an order unless it was counted before.
+    *
+    * @param shard the index of the order shard holding the order
+    */
+   public void recordOrder(int shard, int orderID, int storeID, String[] itemNames, int[] quantities) {
+      if (orderID <= watermark.get(shard) || !counted.get(shard).add(orderID)) return;
+      Counts store = byStore.computeIfAbsent(storeID, k -> new Counts());
+      for (int i = 0; i < itemNames.length; i++) {
+         global.add(itemNames[i], quantities[i]);
+         store.add(itemNames[i], quantities[i]);
+         for (int j = 0; j < itemNames.length; j++) {
+            if (j != i && !itemNames[j].equals(itemNames[i])) {
+               together.computeIfAbsent(itemNames[i], k -> new Counts()).add(itemNames[j], 1);
+            }
+         }
+      }//end for
+   }//end recordOrder
+
+   /**
+    * Counts the orders placed on each shard since the last catch up.
+    *
+    * @param shards the order shards, in ShardRouter order
+    * @return the number of orders counted
+    * @throws java.sql.SQLException when a shard cannot be read
+    */
+   public int catchUp(List<PizzaStore> shards) throws SQLException {
+      int orders = 0;
+      for (int shard = 0; shard < shards.size(); shard++) {
+         String query = String.format(
+            "SELECT f.orderID, f.storeID, i.itemName, i.quantity FROM AllFoodOrders f " +
+            "JOIN AllItemsInOrder i ON i.orderID = f.orderID AND i.orderTimestamp = f.orderTimestamp " +
+            "WHERE f.orderID > %d ORDER BY f.orderID", watermark.get(shard));
+         List<Object[]> lines = shards.get(shard).executeQueryAndMap(query,
+            rs -> new Object[] { rs.getInt(1), rs.getInt(2), rs.getString(3).trim(), rs.getInt(4) });
+         int start = 0;
+         for (int i = 1; i <= lines.size(); i++) {
+            if (i < lines.size() && lines.get(i)[0].equals(lines.get(start)[0])) continue;
+            String[] itemNames = new String[i - start];
+            int[] quantities = new int[i - start];
+            for (int j = start; j < i; j++) {
+               itemNames[j - start] = (String) lines.get(j)[2];
+               quantities[j - start] = (Integer) lines.get(j)[3];
+            }
+            Object[] first = lines.get(start);
+            recordOrder(shard, (Integer) first[0], (Integer) first[1], itemNames, quantities);
+            orders++;
+            start = i;
+         }//end for
+         if (!lines.isEmpty()) {
+            final long last = (Integer) lines.get(lines.size() - 1)[0];
+            watermark.set(shard, last);
+            counted.get(shard).removeIf(id -> id <= last);
+         }//end if
+      }//end for
+      return orders;
+   }//end catchUp
+
+   /**
+    * @return the store's most ordered items, or the most ordered items
+    *         overall if the store has no orders yet
+    */
+   public List<String> topItems(int storeID) {
+      Counts store = byStore.get(storeID);
+      return first(store == null ? global.ranking() : store.ranking(), null);
+   }//end topItems
+
+   /**
+    * @return the items most often ordered together with the given item
+    */
+   public List<String> orderedWith(String itemName) {
+      Counts pairs = together.get(itemName);
+      return pairs == null ? new ArrayList<String>() : first(pairs.ranking(), null);
+   }//end orderedWith
+
+   /**
+    * @param favorites the user's favorite items
+    * @return the items most often ordered with the favorites, favorites excluded
+    */
+   public List<String> forFavorites(Collection<String> favorites) {
+      Counts combined = new Counts();
+      for (String favorite : favorites) {
+         Counts pairs = together.get(favorite);
+         if (pairs == null) continue;
+         for (Map.Entry<String, LongAdder> e : pairs.counts.entrySet()) {
+            combined.add(e.getKey(), e.getValue().sum());
+         }
+      }//end for
+      return first(combined.ranking(), favorites);
+   }//end forFavorites
+
+   private List<String> first(String[] ranking, Collection<String> exclude) {
+      List<String> result = new ArrayList<String>();
+      for (String item : ranking) {
+         if (result.size() == topN) break;
+         if (exclude == null || !exclude.contains(item)) result.add(item);
+      }//end for
+      return result;
+   }//end first
+
+}//end Recommender
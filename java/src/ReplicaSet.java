@@ -0,0 +1,127 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read replicas of one database (the home database or an order shard).
+ * PizzaStore.executeRead() runs read-only work on a replica chosen here, or
+ * on the primary when
+ *   - the primary was written to within the last stickyMillis, so a user
+ *     reads their own order or profile change right after making it,
+ *   - every replica lags more than maxLagMillis behind the primary, or
+ *   - every replica failed within the last retryMillis.
+ *
+ * Replicas are listed in -Dpizzastore.replicas.<primary port>=port/dbname,...
+ * Other settings:
+ *   pizzastore.replicas.maxLagMillis    replay lag still served (default 1000)
+ *   pizzastore.replicas.stickyMillis    primary-only time after a write (default 2000)
+ *   pizzastore.replicas.lagCheckMillis  time between lag checks (default 500)
+ *   pizzastore.replicas.retryMillis     time a failed replica is skipped (default 5000)
+ */
+public class ReplicaSet {
+
+   // 0 when the replica has replayed everything it received; otherwise the
+   // age of the last replayed transaction, in whole milliseconds
+   private static final String LAG_QUERY =
+      "SELECT (CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+      "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END)::bigint";
+
+   private static final class Replica {
+      final PizzaStore db;
+      volatile long lagMillis = 0;
+      volatile long lagCheckedAt = 0;
+      volatile long failedAt = 0;
+      // held by the one reader checking the lag; the others use the last value
+      final AtomicBoolean checking = new AtomicBoolean();
+
+      Replica(PizzaStore db) {
+         this.db = db;
+      }
+   }//end Replica
+
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final long maxLagMillis;
+   private final long stickyMillis;
+   private final long lagCheckMillis;
+   private final long retryMillis;
+   private volatile long lastWriteAt = 0;
+   private final AtomicInteger next = new AtomicInteger();
+
+   public ReplicaSet(List<PizzaStore> replicas) {
+      for (PizzaStore db : replicas) {
+         this.replicas.add(new Replica(db));
+      }//end for
+      this.maxLagMillis = Long.getLong("pizzastore.replicas.maxLagMillis", 1000L);
+      this.stickyMillis = Long.getLong("pizzastore.replicas.stickyMillis", 2000L);
+      this.lagCheckMillis = Long.getLong("pizzastore.replicas.lagCheckMillis", 500L);
+      this.retryMillis = Long.getLong("pizzastore.replicas.retryMillis", 5000L);
+   }//end ReplicaSet
+
+   /**
+    * Connects to the replicas configured for the database on the given
+    * port, or returns null when there are none.
+    *
+    * @throws java.sql.SQLException when a replica cannot be reached
+    */
+   public static ReplicaSet fromProperties(String primaryPort, String user, String passwd) throws SQLException {
+      String list = System.getProperty("pizzastore.replicas." + primaryPort);
+      if (list == null || list.trim().isEmpty()) return null;
+      List<PizzaStore> replicas = new ArrayList<PizzaStore>();
+      for (String replica : list.split(",")) {
+         String[] portAndName = replica.trim().split("/");
+         replicas.add(new PizzaStore(portAndName[1], portAndName[0], user, passwd));
+      }//end for
+      return new ReplicaSet(replicas);
+   }//end fromProperties
+
+   /** Called for every write on the primary. */
+   public void noteWrite() {
+      lastWriteAt = System.currentTimeMillis();
+   }//end noteWrite
+
+   /**
+    * Picks the next usable replica, round robin.  Readers do not wait for
+    * each other: while one checks a replica's lag, the others go by the
+    * lag found last time.
+    *
+    * @return the replica, or null if reads have to go to the primary
+    */
+   public PizzaStore choose() {
+      long now = System.currentTimeMillis();
+      if (now - lastWriteAt < stickyMillis) return null;
+      int first = next.getAndIncrement();
+      for (int i = 0; i < replicas.size(); i++) {
+         Replica replica = replicas.get(Math.floorMod(first + i, replicas.size()));
+         if (now - replica.failedAt < retryMillis) continue;
+         if (now - replica.lagCheckedAt >= lagCheckMillis && replica.checking.compareAndSet(false, true)) {
+            try {
+               replica.lagMillis = replica.db.executeQueryForInt(LAG_QUERY, 0);
+               replica.lagCheckedAt = now;
+            } catch (SQLException e) {
+               replica.failedAt = now;
+               continue;
+            } finally {
+               replica.checking.set(false);
+            }//end try
+         }//end if
+         if (replica.lagMillis <= maxLagMillis) return replica.db;
+      }//end for
+      return null;
+   }//end choose
+
+   /** Skips the replica for retryMillis after a failed read. */
+   public void markFailed(PizzaStore db) {
+      for (Replica replica : replicas) {
+         if (replica.db == db) replica.failedAt = System.currentTimeMillis();
+      }//end for
+   }//end markFailed
+
+   public void close() {
+      for (Replica replica : replicas) {
+         replica.db.cleanup();
+      }//end for
+   }//end close
+
+}//end ReplicaSet
@@ -0,0 +1,218 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Maps stores to order shards, i.e. separate Postgres databases that each
+ * hold the FoodOrder/ItemsInOrder rows of their stores.
+ *
+ * Shard 0 is the database PizzaStore was started with.  Further shards come
+ * from -Dpizzastore.extraShards=port/dbname[,port/dbname...] (on localhost).
+ * Stores are assigned by hash of storeID, or by -Dpizzastore.shardRanges=
+ * b1,b2,... where stores below b1 go to shard 0, below b2 to shard 1, etc.
+ *
+ * Every shard issues orderIDs congruent to its index modulo the shard
+ * count, so an orderID alone identifies its shard.  New ids start above
+ * the highest id on any shard, so they never repeat the id of an order
+ * kept on shard 0 from before sharding; see seedOrderIds.  Users, Items and Store
+ * are reference tables replicated to every shard; writes to them go through
+ * broadcastUpdate().
+ */
+public class ShardRouter {
+
+   /** A read run against one shard by scatter(). */
+   public interface ShardQuery<T> {
+      T run(PizzaStore shard) throws SQLException;
+   }//end ShardQuery
+
+   private final PizzaStore[] shards;
+   private final int[] rangeBounds;
+   private final ExecutorService scatterPool;
+
+   public ShardRouter(PizzaStore[] shards, int[] rangeBounds) {
+      if (rangeBounds != null && rangeBounds.length != shards.length - 1) {
+         throw new IllegalArgumentException("need " + (shards.length - 1) + " shard range bounds");
+      }//end if
+      this.shards = shards;
+      this.rangeBounds = rangeBounds;
+      this.scatterPool = Executors.newFixedThreadPool(shards.length, r -> {
+         Thread t = new Thread(r, "shard-scatter");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardRouter
+
+   /**
+    * Builds the router from the system properties, or returns null when no
+    * extra shards are configured.
+    *
+    * @throws java.sql.SQLException when a shard cannot be reached
+    */
+   public static ShardRouter fromProperties(PizzaStore home, String user, String passwd) throws SQLException {
+      String extra = System.getProperty("pizzastore.extraShards");
+      if (extra == null || extra.trim().isEmpty()) return null;
+      List<PizzaStore> shards = new ArrayList<PizzaStore>();
+      shards.add(home);
+      for (String shard : extra.split(",")) {
+         String[] portAndName = shard.trim().split("/");
+         shards.add(new PizzaStore(portAndName[1], portAndName[0], user, passwd));
+      }//end for
+      int[] bounds = null;
+      String ranges = System.getProperty("pizzastore.shardRanges");
+      if (ranges != null) {
+         bounds = Arrays.stream(ranges.split(",")).mapToInt(b -> Integer.parseInt(b.trim())).toArray();
+      }//end if
+      return new ShardRouter(shards.toArray(new PizzaStore[0]), bounds);
+   }//end fromProperties
+
+   /**
+    * Sets up FoodOrder_orderID_seq on every database holding orders, so
+    * that shard i of n counts i, i+n, i+2n, ... above the highest live or
+    * archived orderID on any shard.  A sequence already set up that way is
+    * left alone; any other starts over above that id.
+    *
+    * @param shards the databases holding orders, shard 0 first
+    * @throws java.sql.SQLException when a sequence cannot be read or changed
+    */
+   public static void seedOrderIds(List<PizzaStore> shards) throws SQLException {
+      int n = shards.size();
+      long floor = 0;
+      for (PizzaStore shard : shards) {
+         floor = Math.max(floor, shard.executeQueryForInt(
+            "SELECT GREATEST((SELECT COALESCE(MAX(orderID), 0) FROM FoodOrder), " +
+            "(SELECT COALESCE(MAX(orderID), 0) FROM FoodOrderArchive))", 0));
+      }//end for
+      for (int i = 0; i < n; i++) {
+         long[] sequence = shards.get(i).executeQueryForObject(
+            "SELECT increment_by, COALESCE(last_value, 0) FROM pg_sequences " +
+            "WHERE schemaname = current_schema() AND sequencename = 'foodorder_orderid_seq'",
+            rs -> new long[] { rs.getLong(1), rs.getLong(2) });
+         if (sequence == null) throw new SQLException("FoodOrder_orderID_seq is missing on shard " + i);
+         if (sequence[0] == n && sequence[1] >= floor && Math.floorMod(sequence[1], (long) n) == i) continue;
+         shards.get(i).executeUpdate(String.format(
+            "ALTER SEQUENCE FoodOrder_orderID_seq INCREMENT BY %d RESTART WITH %d", n, (floor / n + 1) * n + i));
+      }//end for
+   }//end seedOrderIds
+
+   public int size() {
+      return shards.length;
+   }//end size
+
+   public int shardIndexForStore(int storeID) {
+      if (rangeBounds != null) {
+         int i = 0;
+         while (i < rangeBounds.length && storeID >= rangeBounds[i]) i++;
+         return i;
+      }//end if
+      int h = storeID * 0x9E3779B9;
+      return Math.floorMod(h ^ (h >>> 16), shards.length);
+   }//end shardIndexForStore
+
+   public PizzaStore forStore(int storeID) {
+      return shards[shardIndexForStore(storeID)];
+   }//end forStore
+
+   public int shardIndexForOrder(int orderID) {
+      return Math.floorMod(orderID, shards.length);
+   }//end shardIndexForOrder
+
+   public PizzaStore forOrder(int orderID) {
+      return shards[shardIndexForOrder(orderID)];
+   }//end forOrder
+
+   public PizzaStore shard(int index) {
+      return shards[index];
+   }//end shard
+
+   public List<PizzaStore> all() {
+      return Arrays.asList(shards);
+   }//end all
+
+   /**
+    * Runs the query on every shard in parallel, under the caller's
+    * latency budget.
+    *
+    * @return the per-shard results in shard order
+    * @throws java.sql.SQLException when any shard fails
+    */
+   public <T> List<T> scatter(final ShardQuery<T> query) throws SQLException {
+      final LatencyBudget.Budget budget = LatencyBudget.current();
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (final PizzaStore shard : shards) {
+         futures.add(scatterPool.submit(() -> LatencyBudget.callWith(budget, () -> query.run(shard))));
+      }//end for
+      List<T> results = new ArrayList<T>();
+      for (Future<T> future : futures) {
+         try {
+            results.add(future.get());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while querying shards");
+         } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException("Shard query failed: " + cause);
+         }//end try
+      }//end for
+      return results;
+   }//end scatter
+
+   /**
+    * Collects orderIDs from every shard, most recent first.
+    *
+    * @param condition an SQL condition on AllFoodOrders, or null for all orders
+    * @param limit the maximum number of ids, or 0 for no limit
+    * @return the newest matching orderIDs across all shards
+    * @throws java.sql.SQLException when any shard fails
+    */
+   public int[] newestOrderIDs(String condition, int limit) throws SQLException {
+      final String query = "SELECT orderID, orderTimestamp FROM AllFoodOrders" +
+         (condition == null ? "" : " WHERE " + condition) +
+         " ORDER BY orderTimestamp DESC" + (limit > 0 ? " LIMIT " + limit : "");
+      List<long[]> merged = new ArrayList<long[]>();
+      for (List<long[]> rows : scatter(shard -> shard.executeRead(db -> db.executeQueryAndMap(query,
+            rs -> new long[] { rs.getTimestamp(2).getTime(), rs.getInt(1) })))) {
+         merged.addAll(rows);
+      }//end for
+      merged.sort((a, b) -> Long.compare(b[0], a[0]));
+      int size = limit > 0 ? Math.min(limit, merged.size()) : merged.size();
+      int[] ids = new int[size];
+      for (int i = 0; i < size; i++) ids[i] = (int) merged.get(i)[1];
+      return ids;
+   }//end newestOrderIDs
+
+   /**
+    * Applies a write to a replicated reference table (Users, Items, Store)
+    * on every shard, shard 0 first.  The shards are not updated atomically;
+    * a failure on a later shard is reported and has to be re-applied.
+    *
+    * @return the row count reported by shard 0
+    * @throws java.sql.SQLException when a shard rejects the write
+    */
+   public int broadcastUpdate(String sql) throws SQLException {
+      int count = shards[0].executeUpdateCount(sql);
+      for (int i = 1; i < shards.length; i++) {
+         try {
+            shards[i].executeUpdateCount(sql);
+         } catch (SQLException e) {
+            throw new SQLException("Reference update applied up to shard " + (i - 1) +
+                                   " but failed on shard " + i + ": " + e.getMessage());
+         }//end try
+      }//end for
+      return count;
+   }//end broadcastUpdate
+
+   /** Closes the extra shard connections; shard 0 belongs to the caller. */
+   public void close() {
+      scatterPool.shutdownNow();
+      for (int i = 1; i < shards.length; i++) {
+         shards[i].cleanup();
+      }//end for
+   }//end close
+
+}//end ShardRouter
@@ -0,0 +1,131 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PizzaStoreBackend over the order shards of a ShardRouter.  Orders are
+ * placed on and read from the shard that owns their store; a user's history
+ * is gathered from all shards.  Users, items and stores are read from shard 0
+ * and user creation is applied to every shard.
+ *
+ * Orders placed before sharding keep their ids and stay on shard 0, so an
+ * order that is not on the shard its id points to is looked up there too.
+ */
+public class ShardedBackend implements PizzaStoreBackend {
+
+   private final ShardRouter router;
+   private final JdbcBackend[] shards;
+
+   public ShardedBackend(ShardRouter router) {
+      this.router = router;
+      this.shards = new JdbcBackend[router.size()];
+      for (int i = 0; i < shards.length; i++) {
+         shards[i] = new JdbcBackend(router.shard(i));
+      }//end for
+   }//end ShardedBackend
+
+   public String getUserRole(String login) throws SQLException {
+      return shards[0].getUserRole(login);
+   }//end getUserRole
+
+   public boolean createUser(String login, String password, String role, String phoneNum) throws SQLException {
+      String passwordHash = LoginService.hashPassword(password);
+      if (!shards[0].createUserWithHash(login, passwordHash, role, phoneNum)) return false;
+      for (int i = 1; i < shards.length; i++) {
+         shards[i].createUserWithHash(login, passwordHash, role, phoneNum);
+      }//end for
+      return true;
+   }//end createUser
+
+   public MenuItem getItem(String itemName) throws SQLException {
+      return shards[0].getItem(itemName);
+   }//end getItem
+
+   public List<MenuItem> listItems() throws SQLException {
+      return shards[0].listItems();
+   }//end listItems
+
+   public StoreInfo getStore(int storeID) throws SQLException {
+      return shards[0].getStore(storeID);
+   }//end getStore
+
+   public List<StoreInfo> listStores() throws SQLException {
+      return shards[0].listStores();
+   }//end listStores
+
+   public int placeOrder(OrderRequest order) throws SQLException {
+      return shards[router.shardIndexForStore(order.storeID)].placeOrder(order);
+   }//end placeOrder
+
+   public OrderInfo getOrder(int orderID) throws SQLException {
+      int shard = router.shardIndexForOrder(orderID);
+      OrderInfo order = shards[shard].getOrder(orderID);
+      return order == null && shard != 0 ? shards[0].getOrder(orderID) : order;
+   }//end getOrder
+
+   public int[] orderIDsForLogin(String login, int limit) throws SQLException {
+      return router.newestOrderIDs("login = " + PizzaStore.quote(login), limit);
+   }//end orderIDsForLogin
+
+   public int[] orderIDsForStore(int storeID) throws SQLException {
+      return shards[router.shardIndexForStore(storeID)].orderIDsForStore(storeID);
+   }//end orderIDsForStore
+
+   public boolean updateOrderStatus(int orderID, String orderStatus) throws SQLException {
+      int shard = router.shardIndexForOrder(orderID);
+      if (shards[shard].updateOrderStatus(orderID, orderStatus)) return true;
+      return shard != 0 && shards[0].updateOrderStatus(orderID, orderStatus);
+   }//end updateOrderStatus
+
+   public int[] updateOrderStatuses(int[] orderIDs, int[] expectedVersions, String[] orderStatuses)
+         throws SQLException {
+      int[] versions = new int[orderIDs.length];
+      for (int shard = 0; shard < shards.length; shard++) {
+         List<Integer> positions = new ArrayList<Integer>();
+         for (int i = 0; i < orderIDs.length; i++) {
+            if (router.shardIndexForOrder(orderIDs[i]) == shard) positions.add(i);
+         }//end for
+         if (positions.isEmpty()) continue;
+         int[] ids = new int[positions.size()];
+         int[] expected = new int[positions.size()];
+         String[] statuses = new String[positions.size()];
+         for (int j = 0; j < ids.length; j++) {
+            ids[j] = orderIDs[positions.get(j)];
+            expected[j] = expectedVersions[positions.get(j)];
+            statuses[j] = orderStatuses[positions.get(j)];
+         }//end for
+         int[] updated = shards[shard].updateOrderStatuses(ids, expected, statuses);
+         for (int j = 0; j < ids.length; j++) {
+            versions[positions.get(j)] = updated[j];
+            // orders placed before sharding live on shard 0
+            if (updated[j] < 0 && shard != 0) {
+               versions[positions.get(j)] = shards[0].updateOrderStatuses(
+                  new int[] { ids[j] }, new int[] { expected[j] }, new String[] { statuses[j] })[0];
+            }//end if
+         }//end for
+      }//end for
+      return versions;
+   }//end updateOrderStatuses
+
+   /*
+    * The review is saved on the order's shard together with that shard's
+    * copy of the store totals; the other copies are updated afterwards.
+    */
+   public int reviewStore(String login, int orderID, int rating, String comment) throws SQLException {
+      int shard = router.shardIndexForOrder(orderID);
+      int storeID = shards[shard].reviewStore(login, orderID, rating, comment);
+      if (storeID < 0 && shard != 0) {
+         shard = 0;
+         storeID = shards[0].reviewStore(login, orderID, rating, comment);
+      }//end if
+      if (storeID < 0) return storeID;
+      String totals = String.format(
+         "UPDATE Store SET reviewSum = reviewSum + %d, reviewCount = reviewCount + 1, " +
+         "reviewScore = (reviewSum + %d) / (reviewCount + 1) WHERE storeID = %d", rating, rating, storeID);
+      for (int i = 0; i < shards.length; i++) {
+         if (i != shard) router.shard(i).executeUpdateCount(totals);
+      }//end for
+      return storeID;
+   }//end reviewStore
+
+}//end ShardedBackend
@@ -0,0 +1,37 @@
+/**
+ * A row of Store.
+ */
+public final class StoreInfo {
+
+   public final int storeID;
+   public final String address;
+   public final String city;
+   public final String state;
+   public final boolean isOpen;
+   public final double reviewScore;
+   public final int reviewCount;
+
+   public StoreInfo(int storeID, String address, String city, String state, boolean isOpen,
+                    double reviewScore, int reviewCount) {
+      this.storeID = storeID;
+      this.address = address;
+      this.city = city;
+      this.state = state;
+      this.isOpen = isOpen;
+      this.reviewScore = reviewScore;
+      this.reviewCount = reviewCount;
+   }//end StoreInfo
+
+   /**
+    * @return this store with one more rating averaged into its score
+    */
+   public StoreInfo withReview(int rating) {
+      return new StoreInfo(storeID, address, city, state, isOpen,
+                           (reviewScore * reviewCount + rating) / (reviewCount + 1), reviewCount + 1);
+   }//end withReview
+
+   public String toString() {
+      return storeID + "\t" + address + "\t" + city + "\t" + state + "\t" + (isOpen ? "yes" : "no") + "\t" + reviewScore + "\t" + reviewCount;
+   }//end toString
+
+}//end StoreInfo
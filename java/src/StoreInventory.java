@@ -0,0 +1,302 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingredient stock per store, checked and taken in memory at checkout.
+ *
+ * Every (store, ingredient) row of StoreInventory gets its own counter, so
+ * orders only contend when they take the same ingredient at the same
+ * store, and then only on a compare-and-set, never on a database row lock.
+ * An order takes one unit of each ingredient of an item (Items.ingredients,
+ * compared without case) per unit ordered.  It is turned away if any
+ * ingredient would go below zero, and nothing is taken then.  Ingredients
+ * without a row are not tracked and never run out.
+ *
+ * What orders took is written to the database in one UPDATE per shard
+ * every flushMillis, as a decrement, so other clients' takings and
+ * restocks made directly in StoreInventory are not overwritten.  Those are
+ * read back every refreshSeconds and added to the counters.  The rows live
+ * on the shard that holds the store's orders.  Queries use pooled
+ * connections.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.inventory.flushMillis     time between writes of what was taken (default 1000)
+ *   pizzastore.inventory.refreshSeconds  time between reads of the stock (default 10)
+ */
+public class StoreInventory {
+
+   /* one store's stock of one ingredient */
+   private static final class Stock {
+      final int storeID;
+      // as spelled in StoreInventory
+      final String ingredient;
+      // what orders may still take
+      final AtomicLong available;
+      // taken since the last flush; negative if more was given back
+      final AtomicLong unflushed = new AtomicLong();
+      // the database quantity as last read, less what was flushed since;
+      // used only by the flushing thread
+      long expected;
+
+      Stock(int storeID, String ingredient, long quantity) {
+         this.storeID = storeID;
+         this.ingredient = ingredient;
+         this.available = new AtomicLong(quantity);
+         this.expected = quantity;
+      }
+   }//end Stock
+
+   private final PizzaStore esql;
+   private final long flushMillis;
+   private final long refreshMillis;
+   private final ConcurrentHashMap<String, Stock> stock = new ConcurrentHashMap<String, Stock>();
+   private volatile Map<String, List<String>> recipes = new HashMap<String, List<String>>();
+   private ScheduledExecutorService scheduler = null;
+   private long refreshedAt = 0;
+
+   public StoreInventory(PizzaStore esql) {
+      this.esql = esql;
+      this.flushMillis = Long.getLong("pizzastore.inventory.flushMillis", 1000L);
+      this.refreshMillis = Long.getLong("pizzastore.inventory.refreshSeconds", 10L) * 1000;
+   }//end StoreInventory
+
+   /**
+    * Reads the stock and the item ingredients, then flushes every
+    * flushMillis on a daemon thread.
+    *
+    * @throws java.sql.SQLException when the stock cannot be read
+    */
+   public synchronized void start() throws SQLException {
+      if (scheduler != null) return;
+      refresh();
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "inventory-flush");
+         t.setDaemon(true);
+         return t;
+      });
+      scheduler.scheduleWithFixedDelay(this::runOnce, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+   }//end start
+
+   /**
+    * Stops the flushing thread and writes what is left.
+    */
+   public void stop() {
+      synchronized (this) {
+         if (scheduler == null) return;
+         scheduler.shutdown();
+         try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+         scheduler = null;
+      }
+      try {
+         flush();
+      } catch (SQLException e) {
+         System.err.println("Inventory not saved: " + e.getMessage());
+      }//end try
+   }//end stop
+
+   /**
+    * Takes the ingredients of an order from its store's stock, all or
+    * nothing.
+    *
+    * @return the ingredients short, empty if the order was taken
+    */
+   public List<String> reserve(OrderRequest order) {
+      Map<Stock, Long> needs = needs(order.storeID, order.itemNames, order.quantities);
+      List<String> missing = new ArrayList<String>();
+      List<Map.Entry<Stock, Long>> taken = new ArrayList<Map.Entry<Stock, Long>>();
+      for (Map.Entry<Stock, Long> need : needs.entrySet()) {
+         if (take(need.getKey().available, need.getValue())) taken.add(need);
+         else missing.add(need.getKey().ingredient);
+      }//end for
+      if (!missing.isEmpty()) {
+         for (Map.Entry<Stock, Long> need : taken) need.getKey().available.addAndGet(need.getValue());
+         return missing;
+      }//end if
+      for (Map.Entry<Stock, Long> need : taken) need.getKey().unflushed.addAndGet(need.getValue());
+      return missing;
+   }//end reserve
+
+   /**
+    * Gives back the ingredients of a reserved order that was not placed.
+    */
+   public void release(OrderRequest order) {
+      for (Map.Entry<Stock, Long> need : needs(order.storeID, order.itemNames, order.quantities).entrySet()) {
+         need.getKey().available.addAndGet(need.getValue());
+         need.getKey().unflushed.addAndGet(-need.getValue());
+      }//end for
+   }//end release
+
+   /**
+    * Checks, without taking anything, whether the store has enough of the
+    * item's ingredients.
+    *
+    * @return the ingredients short
+    */
+   public List<String> shortages(int storeID, String itemName, int quantity) {
+      List<String> missing = new ArrayList<String>();
+      Map<Stock, Long> needs = needs(storeID, new String[] { itemName }, new int[] { quantity });
+      for (Map.Entry<Stock, Long> need : needs.entrySet()) {
+         if (need.getKey().available.get() < need.getValue()) missing.add(need.getKey().ingredient);
+      }//end for
+      return missing;
+   }//end shortages
+
+   /**
+    * @return the stock a store still has of each tracked ingredient
+    */
+   public Map<String, Long> available(int storeID) {
+      Map<String, Long> result = new TreeMap<String, Long>();
+      for (Stock s : stock.values()) {
+         if (s.storeID == storeID) result.put(s.ingredient, s.available.get());
+      }//end for
+      return result;
+   }//end available
+
+   private void runOnce() {
+      try {
+         flush();
+         if (System.currentTimeMillis() - refreshedAt >= refreshMillis) refresh();
+      } catch (SQLException e) {
+         System.err.println("Inventory flush failed: " + e.getMessage());
+      }//end try
+   }//end runOnce
+
+   /*
+    * Writes what was taken since the last flush, one UPDATE per shard.  If
+    * it fails, the amounts are kept for the next flush.
+    */
+   private synchronized void flush() throws SQLException {
+      Map<PizzaStore, List<Stock>> byShard = new HashMap<PizzaStore, List<Stock>>();
+      Map<Stock, Long> deltas = new HashMap<Stock, Long>();
+      for (Stock s : stock.values()) {
+         long delta = s.unflushed.getAndSet(0);
+         if (delta == 0) continue;
+         deltas.put(s, delta);
+         byShard.computeIfAbsent(shardFor(s.storeID), k -> new ArrayList<Stock>()).add(s);
+      }//end for
+      SQLException failure = null;
+      for (Map.Entry<PizzaStore, List<Stock>> shard : byShard.entrySet()) {
+         StringBuilder values = new StringBuilder();
+         for (Stock s : shard.getValue()) {
+            if (values.length() > 0) values.append(", ");
+            values.append(String.format("(%d, %s, %d)", s.storeID, PizzaStore.quote(s.ingredient), deltas.get(s)));
+         }//end for
+         try {
+            update(shard.getKey(),
+               "UPDATE StoreInventory i SET quantity = i.quantity - d.taken, updatedAt = CURRENT_TIMESTAMP " +
+               "FROM (VALUES " + values + ") AS d(storeID, ingredient, taken) " +
+               "WHERE i.storeID = d.storeID AND i.ingredient = d.ingredient");
+            for (Stock s : shard.getValue()) s.expected -= deltas.get(s);
+         } catch (SQLException e) {
+            for (Stock s : shard.getValue()) s.unflushed.addAndGet(deltas.get(s));
+            failure = e;
+         }//end try
+      }//end for
+      if (failure != null) throw failure;
+   }//end flush
+
+   /*
+    * Reads the item ingredients and every shard's stock.  Changes made by
+    * others since the last read are added to the counters; rows that
+    * appeared or went away start or stop being tracked.
+    */
+   private synchronized void refresh() throws SQLException {
+      Map<String, List<String>> items = new HashMap<String, List<String>>();
+      for (String[] row : esql.getConnectionPool().query("SELECT itemName, ingredients FROM Items",
+            rs -> new String[] { rs.getString(1).trim(), rs.getString(2) })) {
+         List<String> ingredients = new ArrayList<String>();
+         if (row[1] != null) {
+            for (String ingredient : row[1].split(",")) {
+               if (!ingredient.trim().isEmpty()) ingredients.add(ingredient.trim().toLowerCase());
+            }//end for
+         }//end if
+         items.put(row[0], ingredients);
+      }//end for
+      recipes = items;
+
+      Map<String, Boolean> seen = new HashMap<String, Boolean>();
+      for (PizzaStore shard : esql.allShards()) {
+         for (Object[] row : shard.getConnectionPool().query(
+               "SELECT storeID, ingredient, quantity FROM StoreInventory",
+               rs -> new Object[] { rs.getInt(1), rs.getString(2), rs.getLong(3) })) {
+            int storeID = (Integer) row[0];
+            String ingredient = (String) row[1];
+            long quantity = (Long) row[2];
+            String key = key(storeID, ingredient.trim().toLowerCase());
+            seen.put(key, Boolean.TRUE);
+            Stock s = stock.get(key);
+            if (s == null) {
+               stock.put(key, new Stock(storeID, ingredient, quantity));
+            } else {
+               s.available.addAndGet(quantity - s.expected);
+               s.expected = quantity;
+            }//end if
+         }//end for
+      }//end for
+      stock.keySet().retainAll(seen.keySet());
+      refreshedAt = System.currentTimeMillis();
+   }//end refresh
+
+   /* units of each tracked ingredient needed, by stock counter */
+   private Map<Stock, Long> needs(int storeID, String[] itemNames, int[] quantities) {
+      Map<String, List<String>> items = recipes;
+      Map<Stock, Long> needs = new HashMap<Stock, Long>();
+      for (int i = 0; i < itemNames.length; i++) {
+         List<String> ingredients = items.get(itemNames[i]);
+         if (ingredients == null) continue;
+         for (String ingredient : ingredients) {
+            Stock s = stock.get(key(storeID, ingredient));
+            if (s != null) needs.merge(s, (long) quantities[i], Long::sum);
+         }//end for
+      }//end for
+      return needs;
+   }//end needs
+
+   /* takes amount if that much is available */
+   private static boolean take(AtomicLong available, long amount) {
+      while (true) {
+         long current = available.get();
+         if (current < amount) return false;
+         if (available.compareAndSet(current, current - amount)) return true;
+      }//end while
+   }//end take
+
+   private PizzaStore shardFor(int storeID) {
+      return esql.getShards() == null ? esql : esql.getShards().forStore(storeID);
+   }//end shardFor
+
+   private static void update(PizzaStore shard, String sql) throws SQLException {
+      ConnectionPool pool = shard.getConnectionPool();
+      Connection connection = pool.borrow();
+      try {
+         Statement stmt = connection.createStatement();
+         try {
+            stmt.executeUpdate(sql);
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         pool.release(connection);
+      }
+   }//end update
+
+   private static String key(int storeID, String ingredient) {
+      return storeID + ":" + ingredient;
+   }//end key
+
+}//end StoreInventory
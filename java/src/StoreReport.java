@@ -0,0 +1,219 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Orders, revenue, average basket size and status counts per store over a
+ * date range, rolled up to city or state for the manager report.
+ *
+ * FoodOrder is partitioned by month, so the range is cut into one slice per
+ * month and order shard.  The slices are split in halves on a ForkJoinPool
+ * until each task holds one, which runs a single GROUP BY storeID query on
+ * a pooled connection of its shard; the per-store totals are merged back
+ * up the tree.  Every query reads one partition, so the report takes about
+ * as long as the busiest month divided by the pool size.
+ */
+public class StoreReport {
+
+   public enum Level { STORE, CITY, STATE }
+
+   /** Totals of one store or one group of stores. */
+   public static final class Totals {
+      long orders = 0;
+      long revenueCents = 0;
+      long items = 0;
+      final Map<String, Long> byStatus = new TreeMap<String, Long>();
+
+      void add(Totals other) {
+         orders += other.orders;
+         revenueCents += other.revenueCents;
+         items += other.items;
+         for (Map.Entry<String, Long> e : other.byStatus.entrySet()) {
+            byStatus.merge(e.getKey(), e.getValue(), Long::sum);
+         }//end for
+      }
+
+      double averageBasket() {
+         return orders == 0 ? 0 : (double) items / orders;
+      }
+   }//end Totals
+
+   /* one month on one shard */
+   private static final class Slice {
+      final PizzaStore shard;
+      final LocalDate from;
+      final LocalDate to;
+
+      Slice(PizzaStore shard, LocalDate from, LocalDate to) {
+         this.shard = shard;
+         this.from = from;
+         this.to = to;
+      }
+   }//end Slice
+
+   private static final class SliceTask extends RecursiveTask<Map<Integer, Totals>> {
+      private static final long serialVersionUID = 1L;
+
+      private final List<Slice> slices;
+      private final int lo;
+      private final int hi;
+
+      SliceTask(List<Slice> slices, int lo, int hi) {
+         this.slices = slices;
+         this.lo = lo;
+         this.hi = hi;
+      }
+
+      @Override
+      protected Map<Integer, Totals> compute() {
+         if (hi - lo == 1) {
+            try {
+               return query(slices.get(lo));
+            } catch (SQLException e) {
+               throw new IllegalStateException(e);
+            }//end try
+         }//end if
+         int mid = (lo + hi) >>> 1;
+         SliceTask left = new SliceTask(slices, lo, mid);
+         left.fork();
+         Map<Integer, Totals> result = new SliceTask(slices, mid, hi).compute();
+         merge(result, left.join());
+         return result;
+      }
+   }//end SliceTask
+
+   private final List<PizzaStore> shards;
+
+   /**
+    * @param shards the order shards; store locations are read from the first
+    */
+   public StoreReport(List<PizzaStore> shards) {
+      this.shards = shards;
+   }//end StoreReport
+
+   /**
+    * Computes the totals of every store with orders in [from, to).
+    *
+    * @return the totals by storeID
+    * @throws java.sql.SQLException when a shard query fails
+    */
+   public Map<Integer, Totals> byStore(LocalDate from, LocalDate to) throws SQLException {
+      List<Slice> slices = new ArrayList<Slice>();
+      for (PizzaStore shard : shards) {
+         LocalDate lo = from;
+         while (lo.isBefore(to)) {
+            LocalDate hi = lo.withDayOfMonth(1).plusMonths(1);
+            if (hi.isAfter(to)) hi = to;
+            slices.add(new Slice(shard, lo, hi));
+            lo = hi;
+         }//end while
+      }//end for
+      if (slices.isEmpty()) return new TreeMap<Integer, Totals>();
+
+      int connections = 0;
+      for (PizzaStore shard : shards) connections += shard.getConnectionPool().size();
+      ForkJoinPool pool = new ForkJoinPool(connections);
+      try {
+         return pool.invoke(new SliceTask(slices, 0, slices.size()));
+      } catch (IllegalStateException e) {
+         if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+         throw e;
+      } finally {
+         pool.shutdown();
+      }
+   }//end byStore
+
+   /**
+    * Rolls the store totals up to the given level.
+    *
+    * @return the totals by store id, "city, state" or state, sorted by key
+    * @throws java.sql.SQLException when the store locations cannot be read
+    */
+   public Map<String, Totals> rollUp(Map<Integer, Totals> byStore, Level level) throws SQLException {
+      Map<Integer, String> groups = new HashMap<Integer, String>();
+      if (level != Level.STORE) {
+         for (String[] row : shards.get(0).executeQueryAndMap("SELECT storeID, city, state FROM Store",
+               rs -> new String[] { rs.getString(1), rs.getString(2).trim(), rs.getString(3).trim() })) {
+            groups.put(Integer.parseInt(row[0].trim()), level == Level.CITY ? row[1] + ", " + row[2] : row[2]);
+         }//end for
+      }//end if
+      Map<String, Totals> result = new TreeMap<String, Totals>();
+      for (Map.Entry<Integer, Totals> e : byStore.entrySet()) {
+         String key = level == Level.STORE ? String.format("%6d", e.getKey())
+                                           : groups.getOrDefault(e.getKey(), "(unknown)");
+         result.computeIfAbsent(key, k -> new Totals()).add(e.getValue());
+      }//end for
+      return result;
+   }//end rollUp
+
+   public static void print(String heading, Map<String, Totals> rows) {
+      System.out.println(heading + "\torders\trevenue\tavg items\tstatus");
+      Totals all = new Totals();
+      for (Map.Entry<String, Totals> e : rows.entrySet()) {
+         printLine(e.getKey().trim(), e.getValue());
+         all.add(e.getValue());
+      }//end for
+      printLine("all", all);
+   }//end print
+
+   private static void printLine(String label, Totals t) {
+      StringBuilder statuses = new StringBuilder();
+      for (Map.Entry<String, Long> e : t.byStatus.entrySet()) {
+         if (statuses.length() > 0) statuses.append(' ');
+         statuses.append(e.getKey()).append('=').append(e.getValue());
+      }//end for
+      System.out.printf("%s\t%d\t$%s\t%.2f\t%s\n", label, t.orders, PizzaStore.formatCents(t.revenueCents),
+                        t.averageBasket(), statuses);
+   }//end printLine
+
+   private static Map<Integer, Totals> query(Slice slice) throws SQLException {
+      String lo = PizzaStore.quote(slice.from.toString());
+      String hi = PizzaStore.quote(slice.to.toString());
+      String sql = String.format(
+         "SELECT f.storeID, COALESCE(f.orderStatus, 'unknown'), count(*), COALESCE(sum(f.totalPrice), 0), " +
+         "COALESCE(sum(q.items), 0) FROM AllFoodOrders f " +
+         "LEFT JOIN (SELECT orderID, orderTimestamp, sum(quantity) AS items FROM AllItemsInOrder " +
+         "WHERE orderTimestamp >= %s AND orderTimestamp < %s GROUP BY orderID, orderTimestamp) q " +
+         "ON q.orderID = f.orderID AND q.orderTimestamp = f.orderTimestamp " +
+         "WHERE f.orderTimestamp >= %s AND f.orderTimestamp < %s GROUP BY 1, 2", lo, hi, lo, hi);
+      Map<Integer, Totals> result = new HashMap<Integer, Totals>();
+      ConnectionPool pool = slice.shard.getConnectionPool();
+      Connection connection = pool.borrow();
+      try {
+         Statement stmt = connection.createStatement();
+         try {
+            ResultSet rs = stmt.executeQuery(sql);
+            while (rs.next()) {
+               Totals t = result.computeIfAbsent(rs.getInt(1), k -> new Totals());
+               long orders = rs.getLong(3);
+               t.orders += orders;
+               t.revenueCents += PizzaStore.toCents(rs.getBigDecimal(4));
+               t.items += rs.getLong(5);
+               t.byStatus.merge(rs.getString(2).trim(), orders, Long::sum);
+            }//end while
+         } finally {
+            stmt.close();
+         }
+      } finally {
+         pool.release(connection);
+      }
+      return result;
+   }//end query
+
+   private static void merge(Map<Integer, Totals> into, Map<Integer, Totals> from) {
+      for (Map.Entry<Integer, Totals> e : from.entrySet()) {
+         Totals t = into.get(e.getKey());
+         if (t == null) into.put(e.getKey(), e.getValue()); else t.add(e.getValue());
+      }//end for
+   }//end merge
+
+}//end StoreReport
@@ -0,0 +1,275 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Lightweight tracing of menu operations and the SQL statements they run.
+ *
+ * startTrace() opens the root span of an operation on the current thread;
+ * startSpan() opens a child of the span open on this thread, and does
+ * nothing when there is none, so statements run by background workers are
+ * not traced.  A trace is kept with probability sampleRate, decided when
+ * it starts; the spans of a trace that is not kept are one shared no-op
+ * object, with no clock reads.
+ *
+ * Finished traces are written by a daemon thread to traceFile, one line
+ * per trace holding a Zipkin v2 JSON span array, the body accepted by
+ * POST /api/v2/spans.  When the writer falls behind by queueSize traces,
+ * new traces are dropped and counted.
+ *
+ * Settings are read from system properties:
+ *   pizzastore.trace.sampleRate  fraction of operations traced (default 0, off)
+ *   pizzastore.trace.file        output file (default "traces.json")
+ *   pizzastore.trace.queueSize   finished traces waiting to be written (default 1000)
+ */
+public class Tracer {
+
+   /** An open span; close() ends it.  Tags are Zipkin string tags. */
+   public static class Span implements AutoCloseable {
+      private final Trace trace;
+      private final Span parent;
+      private final String id;
+      private final String name;
+      private final long startMicros;
+      private final long startNanos;
+      private Map<String, String> tags = null;
+      private long rows = -1;
+      private boolean closed = false;
+
+      private Span(Trace trace, Span parent, String name) {
+         this.trace = trace;
+         this.parent = parent;
+         this.id = trace == null ? null : hexId();
+         this.name = name;
+         this.startMicros = trace == null ? 0 : System.currentTimeMillis() * 1000;
+         this.startNanos = trace == null ? 0 : System.nanoTime();
+      }
+
+      /** @return whether this span is recorded */
+      public boolean isSampled() {
+         return trace != null;
+      }
+
+      public Span tag(String key, String value) {
+         if (trace == null) return this;
+         if (tags == null) tags = new LinkedHashMap<String, String>();
+         tags.put(key, value);
+         return this;
+      }
+
+      /** Records the rows a statement returned or changed. */
+      public Span rows(long count) {
+         rows = count;
+         return this;
+      }
+
+      public Span error(Throwable t) {
+         return tag("error", String.valueOf(t.getMessage()));
+      }
+
+      @Override
+      public void close() {
+         if (trace == null || closed) return;
+         closed = true;
+         if (rows >= 0) tag("rows", Long.toString(rows));
+         long durationMicros = Math.max(1, (System.nanoTime() - startNanos) / 1000);
+         CURRENT.set(parent);
+         trace.finished(this, durationMicros);
+      }
+   }//end Span
+
+   /* the spans of one sampled trace, sent to the writer when the root ends */
+   private static final class Trace {
+      final String traceId = hexId() + hexId();
+      final StringBuilder json = new StringBuilder(512).append('[');
+      int spans = 0;
+
+      synchronized void finished(Span span, long durationMicros) {
+         if (spans++ > 0) json.append(',');
+         json.append("{\"traceId\":\"").append(traceId)
+             .append("\",\"id\":\"").append(span.id).append('"');
+         if (span.parent != null) json.append(",\"parentId\":\"").append(span.parent.id).append('"');
+         json.append(",\"name\":");
+         quote(json, span.name);
+         json.append(",\"timestamp\":").append(span.startMicros)
+             .append(",\"duration\":").append(durationMicros)
+             .append(",\"localEndpoint\":{\"serviceName\":\"pizzastore\"}");
+         if (span.tags != null) {
+            json.append(",\"tags\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> tag : span.tags.entrySet()) {
+               if (!first) json.append(',');
+               first = false;
+               quote(json, tag.getKey());
+               json.append(':');
+               quote(json, tag.getValue());
+            }//end for
+            json.append('}');
+         }//end if
+         json.append('}');
+         if (span.parent == null) {
+            json.append(']');
+            if (!QUEUE.offer(json.toString())) DROPPED.incrementAndGet();
+         }//end if
+      }
+   }//end Trace
+
+   private static final Span NOOP = new Span(null, null, null);
+   private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+   private static final double SAMPLE_RATE =
+      Double.parseDouble(System.getProperty("pizzastore.trace.sampleRate", "0"));
+   private static final ArrayBlockingQueue<String> QUEUE =
+      new ArrayBlockingQueue<String>(Integer.getInteger("pizzastore.trace.queueSize", 1000));
+   private static final AtomicLong DROPPED = new AtomicLong();
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static Thread writer = null;
+
+   private Tracer() {
+   }//end Tracer
+
+   /**
+    * Starts the root span of an operation on this thread, sampled with
+    * probability sampleRate.  A span already open on the thread is ended
+    * first.
+    */
+   public static Span startTrace(String name) {
+      Span open = CURRENT.get();
+      if (open != null) open.close();
+      CURRENT.remove();
+      if (SAMPLE_RATE <= 0 || ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE) return NOOP;
+      startWriter();
+      Span span = new Span(new Trace(), null, name);
+      CURRENT.set(span);
+      return span;
+   }//end startTrace
+
+   /**
+    * Starts a child of the span open on this thread, or does nothing if
+    * no sampled trace is open.
+    */
+   public static Span startSpan(String name) {
+      Span parent = CURRENT.get();
+      if (parent == null) return NOOP;
+      Span span = new Span(parent.trace, parent, name);
+      CURRENT.set(span);
+      return span;
+   }//end startSpan
+
+   /**
+    * Starts a span for a SQL statement: named after its first keyword and
+    * tagged with the statement, string literals masked.
+    */
+   public static Span startStatement(String sql) {
+      if (CURRENT.get() == null) return NOOP;
+      String text = sql.trim();
+      int space = text.indexOf(' ');
+      Span span = startSpan((space < 0 ? text : text.substring(0, space)).toUpperCase());
+      span.tag("sql.query", STRING_LITERAL.matcher(text).replaceAll("'?'"));
+      return span;
+   }//end startStatement
+
+   /**
+    * Wraps a result set so that the span's row count follows the rows
+    * read.  Unsampled spans get the result set itself.
+    */
+   public static ResultSet countRows(final ResultSet rs, final Span span) {
+      if (!span.isSampled()) return rs;
+      span.rows(0);
+      return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+         (proxy, method, args) -> {
+            Object result;
+            try {
+               result = method.invoke(rs, args);
+            } catch (InvocationTargetException e) {
+               throw e.getCause();
+            }//end try
+            if (Boolean.TRUE.equals(result) && method.getName().equals("next")) span.rows++;
+            return result;
+         });
+   }//end countRows
+
+   /**
+    * @return the traces dropped because the writer fell behind
+    */
+   public static long dropped() {
+      return DROPPED.get();
+   }//end dropped
+
+   private static synchronized void startWriter() {
+      if (writer != null) return;
+      final String file = System.getProperty("pizzastore.trace.file", "traces.json");
+      writer = new Thread(() -> {
+         try (BufferedWriter out = new BufferedWriter(new FileWriter(file, true))) {
+            List<String> batch = new ArrayList<String>();
+            while (true) {
+               String trace = QUEUE.poll(1, TimeUnit.SECONDS);
+               if (trace == null) continue;
+               batch.add(trace);
+               QUEUE.drainTo(batch);
+               for (String line : batch) {
+                  out.write(line);
+                  out.newLine();
+               }//end for
+               out.flush();
+               batch.clear();
+            }//end while
+         } catch (IOException e) {
+            System.err.println("Trace writer stopped: " + e.getMessage());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }//end try
+      }, "trace-writer");
+      writer.setDaemon(true);
+      writer.start();
+   }//end startWriter
+
+   /**
+    * Writes the traces still queued, for shutdown.
+    */
+   public static void flush(long waitMillis) {
+      long deadline = System.currentTimeMillis() + waitMillis;
+      while (!QUEUE.isEmpty() && System.currentTimeMillis() < deadline) {
+         try {
+            Thread.sleep(10);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }//end try
+      }//end while
+   }//end flush
+
+   private static String hexId() {
+      return String.format("%016x", ThreadLocalRandom.current().nextLong());
+   }//end hexId
+
+   private static void quote(StringBuilder json, String value) {
+      json.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': json.append("\\\""); break;
+            case '\\': json.append("\\\\"); break;
+            case '\n': json.append("\\n"); break;
+            case '\r': json.append("\\r"); break;
+            case '\t': json.append("\\t"); break;
+            default:
+               if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+               else json.append(c);
+         }//end switch
+      }//end for
+      json.append('"');
+   }//end quote
+
+}//end Tracer
@@ -0,0 +1,13 @@
+#!/bin/bash
+# Creates the extra order shards listed in $SHARD_PORTS (e.g. "5433 5434"),
+# one database per port.  Run PizzaStore with
+#   -Dpizzastore.extraShards=5433/$USER"_project_phase_3_DB",5434/...
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+for port in $SHARD_PORTS; do
+#cs166_createdb -p $port $USER"_project_phase_3_DB"
+cs166_psql -p $port $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
+cs166_psql -p $port $USER"_project_phase_3_DB" < $DIR/../src/create_partitions.sql
+cs166_psql -p $port $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
+cs166_psql -p $port $USER"_project_phase_3_DB" < $DIR/../src/create_triggers.sql
+cs166_psql -p $port $USER"_project_phase_3_DB" < $DIR/../src/load_shard_data.sql
+done
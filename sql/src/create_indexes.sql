@@ -0,0 +1,27 @@
+/* Indexes declared on the partitioned parents are created on every current
+   and future partition automatically. */
+CREATE INDEX FoodOrder_login_ts ON FoodOrder (login, orderTimestamp DESC);
+CREATE INDEX FoodOrder_store_ts ON FoodOrder (storeID, orderTimestamp DESC);
+CREATE INDEX FoodOrder_ts ON FoodOrder (orderTimestamp DESC);
+
+CREATE INDEX FoodOrderArchive_login_ts ON FoodOrderArchive (login, orderTimestamp DESC);
+CREATE INDEX FoodOrderArchive_id ON FoodOrderArchive (orderID);
+CREATE INDEX ItemsInOrderArchive_id ON ItemsInOrderArchive (orderID);
+
+/* loads the open order queues in OrderFeed */
+CREATE INDEX FoodOrder_pending ON FoodOrder (storeID, orderTimestamp) WHERE orderStatus = 'pending';
+
+CREATE INDEX DriverAssignment_driver ON DriverAssignment (driverLogin);
+
+/* viewStores sorts and filters on the maintained average */
+CREATE INDEX Store_reviewScore ON Store (reviewScore DESC NULLS LAST);
+CREATE INDEX StoreReview_store ON StoreReview (storeID);
+
+/* bulk menu changes select items by type */
+CREATE INDEX Items_type ON Items (typeOfItem);
+
+/* status history of one order */
+CREATE INDEX OrderStatusHistory_order ON OrderStatusHistory (orderID);
+
+/* pruning of old idempotency keys */
+CREATE INDEX OrderIdempotency_created ON OrderIdempotency (createdAt);
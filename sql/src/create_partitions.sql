@@ -0,0 +1,95 @@
+/* Partition maintenance for FoodOrder and ItemsInOrder.  Both tables are
+   partitioned by month on orderTimestamp and always get their partitions
+   created and archived together, so an order and its line items live in
+   partitions with the same suffix (foodorder_2024_11 / itemsinorder_2024_11).
+
+   PizzaStore calls these on a schedule (see PartitionMaintenance.java); they
+   can also be run by hand or from pg_cron:
+      SELECT ensure_order_partitions(current_date, 3);
+      SELECT archive_order_partitions(interval '12 months');
+*/
+
+/* Creates the monthly partitions from p_from through p_months_ahead months
+   after the current month.  Months that already exist, either live or
+   archived, are skipped.  Returns the number of months created. */
+CREATE OR REPLACE FUNCTION ensure_order_partitions(p_from date, p_months_ahead integer)
+RETURNS integer AS $$
+DECLARE
+   lo date := date_trunc('month', p_from);
+   last date := date_trunc('month', current_date) + make_interval(months => p_months_ahead);
+   hi date;
+   suffix text;
+   created integer := 0;
+BEGIN
+   WHILE lo <= last LOOP
+      hi := lo + interval '1 month';
+      suffix := to_char(lo, 'YYYY_MM');
+      IF to_regclass('foodorder_' || suffix) IS NULL THEN
+         EXECUTE format('CREATE TABLE %I PARTITION OF FoodOrder FOR VALUES FROM (%L) TO (%L)',
+                        'foodorder_' || suffix, lo, hi);
+         EXECUTE format('CREATE TABLE %I PARTITION OF ItemsInOrder FOR VALUES FROM (%L) TO (%L)',
+                        'itemsinorder_' || suffix, lo, hi);
+         created := created + 1;
+      END IF;
+      lo := hi;
+   END LOOP;
+   RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Moves every month that ended more than p_horizon ago and whose orders are
+   all complete from FoodOrder/ItemsInOrder to FoodOrderArchive/
+   ItemsInOrderArchive.  A month that still has an open order stays live.
+   Returns the number of months archived. */
+CREATE OR REPLACE FUNCTION archive_order_partitions(p_horizon interval)
+RETURNS integer AS $$
+DECLARE
+   part record;
+   fk record;
+   lo date;
+   hi date;
+   items text;
+   busy boolean;
+   archived integer := 0;
+BEGIN
+   FOR part IN
+      SELECT c.relname AS name, substr(c.relname, length('foodorder_') + 1) AS suffix
+      FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+      WHERE i.inhparent = 'foodorder'::regclass
+      ORDER BY c.relname
+   LOOP
+      lo := to_date(part.suffix, 'YYYY_MM');
+      hi := lo + interval '1 month';
+      CONTINUE WHEN hi > now() - p_horizon;
+
+      EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I WHERE orderStatus IS DISTINCT FROM ''complete'')', part.name)
+         INTO busy;
+      CONTINUE WHEN busy;
+
+      -- line items go first so no live ItemsInOrder row references the
+      -- FoodOrder partition when it is detached.  The foreign keys cloned
+      -- onto the detached table are dropped; the archive is read only.
+      -- The order partition keeps its clone of the login foreign key, so
+      -- login renames still cascade to archived orders.
+      items := 'itemsinorder_' || part.suffix;
+      EXECUTE format('ALTER TABLE ItemsInOrder DETACH PARTITION %I', items);
+      FOR fk IN SELECT conname FROM pg_constraint
+                WHERE conrelid = items::regclass AND contype = 'f' LOOP
+         EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', items, fk.conname);
+      END LOOP;
+      EXECUTE format('ALTER TABLE FoodOrder DETACH PARTITION %I', part.name);
+
+      -- a matching CHECK constraint lets ATTACH skip its validation scan
+      EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I CHECK (orderTimestamp >= %L AND orderTimestamp < %L)',
+                     part.name, part.name || '_range', lo, hi);
+      EXECUTE format('ALTER TABLE %I ADD CONSTRAINT %I CHECK (orderTimestamp >= %L AND orderTimestamp < %L)',
+                     items, items || '_range', lo, hi);
+      EXECUTE format('ALTER TABLE FoodOrderArchive ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                     part.name, lo, hi);
+      EXECUTE format('ALTER TABLE ItemsInOrderArchive ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                     items, lo, hi);
+      archived := archived + 1;
+   END LOOP;
+   RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
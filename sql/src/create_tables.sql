@@ -3,9 +3,24 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP TABLE IF EXISTS FoodOrderArchive CASCADE;
+DROP TABLE IF EXISTS ItemsInOrderArchive CASCADE;
+DROP TABLE IF EXISTS OrderJournalApplied CASCADE;
+DROP TABLE IF EXISTS OrderJournalRejected CASCADE;
+DROP TABLE IF EXISTS OrderEvent CASCADE;
+DROP TABLE IF EXISTS DriverAssignment CASCADE;
+DROP TABLE IF EXISTS StoreReview CASCADE;
+DROP TABLE IF EXISTS OrderStatusHistory CASCADE;
+DROP TABLE IF EXISTS OrderIdempotency CASCADE;
+DROP TABLE IF EXISTS StoreInventory CASCADE;
+DROP SEQUENCE IF EXISTS FoodOrder_orderID_seq;
 
+/* password holds the plaintext of loaded users until their first login
+   moves it to passwordHash (see LoginService.java); new users only get a
+   hash. */
 CREATE TABLE Users ( login varchar(50) NOT NULL,
-                     password varchar(30) NOT NULL,
+                     password varchar(30),
+                     passwordHash varchar(120),
                      role char(20) NOT NULL,
                      favoriteItems text,
                      phoneNum varchar(20) NOT NULL,
@@ -17,6 +32,7 @@ CREATE TABLE Items ( itemName varchar(50) NOT NULL,
                        typeOfItem varchar(30) NOT NULL,
                        price decimal(10,2) NOT NULL,
                        description text,
+                       retired boolean NOT NULL DEFAULT false, --kept for order history, hidden from menus
                        PRIMARY KEY(itemName)
 );
 
@@ -25,31 +41,164 @@ CREATE TABLE Store ( storeID integer NOT NULL,
                            city varchar(50) NOT NULL,
                            state varchar(60) NOT NULL,
                            isOpen varchar(60) NOT NULL,
-                           reviewScore float,
+                           reviewScore float, --reviewSum / reviewCount, kept for sorting
+                           reviewSum float NOT NULL DEFAULT 0,
+                           reviewCount integer NOT NULL DEFAULT 0,
                            PRIMARY KEY(storeID)
 );
 
+/* FoodOrder and ItemsInOrder are range partitioned by month on orderTimestamp
+   (PostgreSQL 12+).  Partitions are created ahead of time and old, completed
+   months are moved to the archive tables by create_partitions.sql. */
 CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            login varchar(50) NOT NULL, --places relationship
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
                            orderStatus char(50),
-                           PRIMARY KEY(orderID),
+                           version integer NOT NULL DEFAULT 0, --bumped by every update, for compare-and-set
+                           updatedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                           PRIMARY KEY(orderID, orderTimestamp),
                            FOREIGN KEY(login) REFERENCES Users(login)
-                           ON DELETE CASCADE,
+                           ON DELETE CASCADE ON UPDATE CASCADE, --renaming a user carries over to its orders
                            FOREIGN KEY(storeID) REFERENCES Store(storeID)
                            ON DELETE CASCADE
-);
-
+) PARTITION BY RANGE (orderTimestamp);
 
+/* Source of new orderIDs.  On startup ShardRouter.seedOrderIds() moves it
+   above the highest existing id and, with n order shards, makes shard i
+   count i, i+n, i+2n, ... */
+CREATE SEQUENCE FoodOrder_orderID_seq;
 
 CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
+                           orderTimestamp timestamp NOT NULL, --copied from FoodOrder so line items share its partition
                            itemName varchar(50) NOT NULL,
                            quantity integer NOT NULL,
-                           PRIMARY KEY(orderID, itemName),
-                           FOREIGN KEY(orderID) REFERENCES FoodOrder(orderID) ON DELETE CASCADE,
+                           PRIMARY KEY(orderID, orderTimestamp, itemName),
+                           FOREIGN KEY(orderID, orderTimestamp) REFERENCES FoodOrder(orderID, orderTimestamp)
+                           ON DELETE CASCADE ON UPDATE CASCADE,
                            FOREIGN KEY(itemName) REFERENCES Items(itemName)
                            ON DELETE CASCADE
+) PARTITION BY RANGE (orderTimestamp);
+
+/* Detached partitions of old, completed months.  These are read only by full
+   order history lookups through AllFoodOrders / AllItemsInOrder. */
+CREATE TABLE FoodOrderArchive ( LIKE FoodOrder INCLUDING DEFAULTS
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE TABLE ItemsInOrderArchive ( LIKE ItemsInOrder INCLUDING DEFAULTS
+) PARTITION BY RANGE (orderTimestamp);
+
+CREATE VIEW AllFoodOrders AS
+   SELECT * FROM FoodOrder
+   UNION ALL
+   SELECT * FROM FoodOrderArchive;
+
+CREATE VIEW AllItemsInOrder AS
+   SELECT * FROM ItemsInOrder
+   UNION ALL
+   SELECT * FROM ItemsInOrderArchive;
+
+/* Last journal record saved to FoodOrder/ItemsInOrder for each local order
+   journal; updated in the same transaction as the inserts. */
+CREATE TABLE OrderJournalApplied ( journalID varchar(36) NOT NULL,
+                                   lastSeq bigint NOT NULL,
+                                   PRIMARY KEY(journalID)
+);
+
+/* Journal records that can never be saved, e.g. an order for a user, store
+   or item deleted while it sat in the journal.  OrderJournalDrainer moves
+   them here, advancing OrderJournalApplied in the same transaction, so the
+   records after them are not held up.  No foreign keys, so any record fits. */
+CREATE TABLE OrderJournalRejected ( journalID varchar(36) NOT NULL,
+                                    seq bigint NOT NULL,
+                                    login varchar(50) NOT NULL,
+                                    storeID integer NOT NULL,
+                                    totalPrice decimal(10,2) NOT NULL,
+                                    orderTimestamp timestamp NOT NULL,
+                                    items text NOT NULL, --"itemName x quantity, ..."
+                                    idempotencyKey varchar(64),
+                                    error text,
+                                    rejectedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                                    PRIMARY KEY(journalID, seq)
 );
 
+/* Change feed of FoodOrder, filled by the publish_order_event trigger in
+   create_triggers.sql and read by OrderFeed after a NOTIFY. */
+CREATE TABLE OrderEvent ( eventID bigserial NOT NULL,
+                          orderID integer NOT NULL,
+                          storeID integer NOT NULL,
+                          orderStatus varchar(50),
+                          orderTimestamp timestamp NOT NULL,
+                          eventTime timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                          PRIMARY KEY(eventID)
+);
+
+/* Driver chosen for an order by DispatchEngine; written in batches. */
+CREATE TABLE DriverAssignment ( orderID integer NOT NULL,
+                                storeID integer NOT NULL,
+                                driverLogin varchar(50) NOT NULL,
+                                assignedAt timestamp NOT NULL,
+                                PRIMARY KEY(orderID),
+                                FOREIGN KEY(driverLogin) REFERENCES Users(login)
+                                ON DELETE CASCADE ON UPDATE CASCADE,
+                                FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                                ON DELETE CASCADE
+);
+
+/* One rating per completed order.  Store.reviewSum/reviewCount/reviewScore
+   are updated in the same statement as the insert. */
+CREATE TABLE StoreReview ( orderID integer NOT NULL,
+                           storeID integer NOT NULL,
+                           login varchar(50) NOT NULL,
+                           rating integer NOT NULL CHECK (rating BETWEEN 1 AND 5),
+                           comment text,
+                           reviewedAt timestamp NOT NULL,
+                           PRIMARY KEY(orderID),
+                           FOREIGN KEY(login) REFERENCES Users(login)
+                           ON DELETE CASCADE ON UPDATE CASCADE,
+                           FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                           ON DELETE CASCADE
+);
+
+/* Append-only log of order status changes, written in batches by
+   OrderHistoryWriter and read incrementally by DeliveryAnalytics.  No
+   foreign keys, so the log outlives archived and deleted orders. */
+CREATE TABLE OrderStatusHistory ( historyID bigserial NOT NULL,
+                                  orderID integer NOT NULL,
+                                  storeID integer NOT NULL,
+                                  orderStatus varchar(50) NOT NULL,
+                                  orderTimestamp timestamp NOT NULL,
+                                  changedAt timestamp NOT NULL,
+                                  changedBy varchar(50),
+                                  recordedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                                  PRIMARY KEY(historyID)
+);
+
+/* Client-supplied keys of submitted orders.  placeOrder claims the key and
+   writes the order in one transaction, so a retried submission finds the
+   key and gets the original orderID back instead of a second order.  Rows
+   are pruned by PartitionMaintenance after pizzastore.idempotency.retention. */
+CREATE TABLE OrderIdempotency ( idempotencyKey varchar(64) NOT NULL,
+                                login varchar(50) NOT NULL,
+                                orderID integer,
+                                createdAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                                PRIMARY KEY(idempotencyKey),
+                                FOREIGN KEY(login) REFERENCES Users(login)
+                                ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+/* Stock of each ingredient (as named in Items.ingredients, any case) at
+   a store, on the shard that holds the store's orders.  StoreInventory.java
+   takes stock in memory at checkout and subtracts it here in batches, so
+   restocks are made by adding to quantity.  An ingredient without a row is
+   not tracked.  quantity may go below zero when several clients sell the
+   last units at once. */
+CREATE TABLE StoreInventory ( storeID integer NOT NULL,
+                              ingredient varchar(50) NOT NULL,
+                              quantity bigint NOT NULL,
+                              updatedAt timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                              PRIMARY KEY(storeID, ingredient),
+                              FOREIGN KEY(storeID) REFERENCES Store(storeID)
+                              ON DELETE CASCADE
+);
@@ -0,0 +1,59 @@
+/* Publishes every new order and every orderStatus change to OrderEvent and
+   wakes listeners with NOTIFY order_events (the payload is the storeID).
+   The row is written by the trigger, so placeOrder, updateOrderStatus and the
+   order journal drainer all publish without extra code.  Listeners read the
+   new OrderEvent rows by eventID, which also works with drivers that do not
+   deliver NOTIFY payloads. */
+CREATE OR REPLACE FUNCTION publish_order_event()
+RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'UPDATE' AND NEW.orderStatus IS NOT DISTINCT FROM OLD.orderStatus THEN
+      RETURN NULL;
+   END IF;
+   INSERT INTO OrderEvent (orderID, storeID, orderStatus, orderTimestamp)
+   VALUES (NEW.orderID, NEW.storeID, trim(NEW.orderStatus), NEW.orderTimestamp);
+   PERFORM pg_notify('order_events', NEW.storeID::text);
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS FoodOrder_publish_event ON FoodOrder;
+CREATE TRIGGER FoodOrder_publish_event
+   AFTER INSERT OR UPDATE OF orderStatus ON FoodOrder
+   FOR EACH ROW EXECUTE FUNCTION publish_order_event();
+
+/* Rejects a FoodOrder row whose orderID is already used by another live or
+   archived order.  The primary key (orderID, orderTimestamp) only makes the
+   pair unique, so two orders in different months could otherwise share an
+   id.  Writers take ids from FoodOrder_orderID_seq, which makes this a
+   guard against other writers rather than a race to lose.  An AFTER
+   trigger, since PostgreSQL 12 has no BEFORE row triggers on partitioned
+   tables. */
+CREATE OR REPLACE FUNCTION check_order_id_unique()
+RETURNS trigger AS $$
+BEGIN
+   IF (SELECT count(*) FROM FoodOrder WHERE orderID = NEW.orderID) > 1
+      OR EXISTS (SELECT 1 FROM FoodOrderArchive WHERE orderID = NEW.orderID) THEN
+      RAISE EXCEPTION 'orderID % is already used', NEW.orderID
+         USING ERRCODE = 'unique_violation';
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS FoodOrder_unique_id ON FoodOrder;
+CREATE TRIGGER FoodOrder_unique_id
+   AFTER INSERT OR UPDATE OF orderID ON FoodOrder
+   FOR EACH ROW EXECUTE FUNCTION check_order_id_unique();
+
+/* Deletes feed rows older than p_keep; run by PartitionMaintenance. */
+CREATE OR REPLACE FUNCTION prune_order_events(p_keep interval)
+RETURNS integer AS $$
+DECLARE
+   pruned integer;
+BEGIN
+   DELETE FROM OrderEvent WHERE eventTime < now() - p_keep;
+   GET DIAGNOSTICS pruned = ROW_COUNT;
+   RETURN pruned;
+END;
+$$ LANGUAGE plpgsql;
@@ -1,20 +1,38 @@
 /* Replace the location to where you saved the data files*/
-COPY Users
+COPY Users (login, password, role, favoriteItems, phoneNum)
 FROM '/home/csmajs/hpan047/cs166_project_phase3/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Items
+COPY Items (itemName, ingredients, typeOfItem, price, description)
 FROM '/home/csmajs/hpan047/cs166_project_phase3/data/items.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Store
+COPY Store (storeID, address, city, state, isOpen, reviewScore)
 FROM '/home/csmajs/hpan047/cs166_project_phase3/data/store.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY FoodOrder
+/* the csv score counts as one review so later ratings are averaged into it */
+UPDATE Store SET reviewSum = reviewScore, reviewCount = 1 WHERE reviewScore IS NOT NULL;
+
+/* FoodOrder only accepts rows that fall into an existing monthly partition */
+SELECT ensure_order_partitions(DATE '2014-01-01', 3);
+
+COPY FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus)
 FROM '/home/csmajs/hpan047/cs166_project_phase3/data/foodorder.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY ItemsInOrder
+SELECT setval('FoodOrder_orderID_seq', (SELECT MAX(orderID) FROM FoodOrder));
+
+/* the csv has no orderTimestamp, so line items are staged and joined to
+   their order to pick up the partition key */
+CREATE TEMP TABLE ItemsInOrderStage ( orderID integer, itemName varchar(50), quantity integer );
+
+COPY ItemsInOrderStage
 FROM '/home/csmajs/hpan047/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+INSERT INTO ItemsInOrder (orderID, orderTimestamp, itemName, quantity)
+SELECT s.orderID, f.orderTimestamp, s.itemName, s.quantity
+FROM ItemsInOrderStage s JOIN FoodOrder f ON f.orderID = s.orderID;
+
+SELECT archive_order_partitions(interval '12 months');
@@ -0,0 +1,20 @@
+/* Reference data for an extra order shard (see java/src/ShardRouter.java).
+   Users, Items and Store are copied to every shard; orders are placed on the
+   shard that owns their store, so an extra shard starts with none.
+   Replace the location to where you saved the data files*/
+COPY Users (login, password, role, favoriteItems, phoneNum)
+FROM '/home/csmajs/hpan047/cs166_project_phase3/data/users.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+COPY Items (itemName, ingredients, typeOfItem, price, description)
+FROM '/home/csmajs/hpan047/cs166_project_phase3/data/items.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+COPY Store (storeID, address, city, state, isOpen, reviewScore)
+FROM '/home/csmajs/hpan047/cs166_project_phase3/data/store.csv'
+WITH DELIMITER ',' CSV HEADER;
+
+/* the csv score counts as one review so later ratings are averaged into it */
+UPDATE Store SET reviewSum = reviewScore, reviewCount = 1 WHERE reviewScore IS NOT NULL;
+
+SELECT ensure_order_partitions(current_date, 3);